@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import com.google.api.services.compute.model.AttachedDisk;
+import com.google.api.services.compute.model.AttachedDiskInitializeParams;
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Data disks attached to each agent in addition to the boot disk, such as local SSDs for scratch
+ * I/O. They are deleted with the agent.
+ */
+@Getter
+@EqualsAndHashCode
+public class AdditionalDiskConfiguration implements Describable<AdditionalDiskConfiguration> {
+    public static final String LOCAL_SSD = "local-ssd";
+    public static final String INTERFACE_NVME = "NVME";
+    public static final String INTERFACE_SCSI = "SCSI";
+    public static final Integer DEFAULT_COUNT = 1;
+    public static final Long DEFAULT_SIZE_GB = 100L;
+    public static final String DEFAULT_MOUNT_PATH = "/mnt/disks/scratch";
+
+    private final String diskType;
+    private final String countStr;
+    private final String sizeGbStr;
+    private final String mountPath;
+
+    @Setter(onMethod = @__(@DataBoundSetter))
+    private String interfaceType;
+
+    @Setter(onMethod = @__(@DataBoundSetter))
+    private boolean remoteFsRoot;
+
+    @DataBoundConstructor
+    public AdditionalDiskConfiguration(String diskType, String countStr, String sizeGbStr, String mountPath) {
+        this.diskType = diskType;
+        this.countStr = countStr;
+        this.sizeGbStr = sizeGbStr;
+        this.mountPath = mountPath;
+    }
+
+    public boolean isLocalSsd() {
+        return LOCAL_SSD.equals(diskType);
+    }
+
+    public int count() {
+        return InstanceConfiguration.intOrDefault(countStr, DEFAULT_COUNT);
+    }
+
+    public long sizeGb() {
+        return InstanceConfiguration.longOrDefault(sizeGbStr, DEFAULT_SIZE_GB);
+    }
+
+    /**
+     * Returns where the i-th disk of this configuration is mounted. A single disk is mounted at the
+     * mount path, several disks in numbered directories below it.
+     *
+     * @param i Position of the disk in this configuration.
+     * @return The mount path of the disk.
+     */
+    public String mountPath(int i) {
+        String path = mountPath == null || mountPath.isEmpty() ? DEFAULT_MOUNT_PATH : mountPath;
+        return count() == 1 ? path : path + "/" + i;
+    }
+
+    /**
+     * Returns the device path of a disk on Linux agents. Local SSDs are numbered by Compute Engine
+     * among the local SSDs of the instance, other disks are named by the plugin.
+     *
+     * @param index Position of the disk among the local SSDs, or among the other additional disks.
+     * @return The device path.
+     */
+    public String devicePath(int index) {
+        if (isLocalSsd()) {
+            String nvme = INTERFACE_NVME.equals(interfaceType) ? "nvme-" : "";
+            return "/dev/disk/by-id/google-local-" + nvme + "ssd-" + index;
+        }
+        return "/dev/disk/by-id/google-" + deviceName(index);
+    }
+
+    /**
+     * Builds the disk to attach to a new instance.
+     *
+     * @param zone Zone of the instance.
+     * @param index Position of the disk among the local SSDs, or among the other additional disks.
+     * @return The disk to attach.
+     */
+    public AttachedDisk attachedDisk(String zone, int index) {
+        AttachedDiskInitializeParams params =
+                new AttachedDiskInitializeParams().setDiskType(String.format("zones/%s/diskTypes/%s", zone, diskType));
+        AttachedDisk disk = new AttachedDisk().setBoot(false).setAutoDelete(true).setInitializeParams(params);
+        if (interfaceType != null && !interfaceType.isEmpty()) {
+            disk.setInterface(interfaceType);
+        }
+        if (isLocalSsd()) {
+            return disk.setType("SCRATCH");
+        }
+        params.setDiskSizeGb(sizeGb());
+        return disk.setType("PERSISTENT").setDeviceName(deviceName(index));
+    }
+
+    private static String deviceName(int index) {
+        return "jenkins-disk-" + index;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Descriptor<AdditionalDiskConfiguration> getDescriptor() {
+        return Jenkins.get().getDescriptor(getClass());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d x %s (%s)", count(), diskType, mountPath(0));
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<AdditionalDiskConfiguration> {
+        public static String defaultCountStr() {
+            return DEFAULT_COUNT.toString();
+        }
+
+        public static String defaultSizeGbStr() {
+            return DEFAULT_SIZE_GB.toString();
+        }
+
+        public static String defaultMountPath() {
+            return DEFAULT_MOUNT_PATH;
+        }
+
+        public ListBoxModel doFillDiskTypeItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Local SSD (375GB each)", LOCAL_SSD);
+            items.add("SSD persistent disk", "pd-ssd");
+            items.add("Balanced persistent disk", "pd-balanced");
+            items.add("Extreme persistent disk", "pd-extreme");
+            items.add("Hyperdisk Balanced", "hyperdisk-balanced");
+            items.add("Hyperdisk Extreme", "hyperdisk-extreme");
+            items.add("Hyperdisk Throughput", "hyperdisk-throughput");
+            return items;
+        }
+
+        public ListBoxModel doFillInterfaceTypeItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Default", "");
+            items.add(INTERFACE_NVME);
+            items.add(INTERFACE_SCSI);
+            return items;
+        }
+
+        public FormValidation doCheckCountStr(@QueryParameter String value) {
+            if (InstanceConfiguration.intOrDefault(value, DEFAULT_COUNT) < 1) {
+                return FormValidation.error(Messages.AdditionalDiskConfiguration_CountLessThanOneError());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
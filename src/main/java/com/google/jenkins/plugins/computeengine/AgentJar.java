@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.Util;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import jenkins.model.Jenkins;
+import lombok.Getter;
+
+/**
+ * The agent.jar served by this controller, prepared once for transfer to agents: the raw bytes, a
+ * gzip compressed copy and the SHA-256 digest of the raw bytes used to verify it remotely.
+ */
+@Getter
+final class AgentJar {
+    private static volatile AgentJar agentJar;
+
+    private final byte[] content;
+    private final byte[] compressed;
+    private final String sha256;
+
+    AgentJar(byte[] content) throws IOException {
+        this.content = content;
+        this.compressed = gzip(content);
+        this.sha256 = sha256(content);
+    }
+
+    /**
+     * Returns the agent.jar of this controller. It only changes on upgrade, so it is read and
+     * compressed once instead of on every launch.
+     *
+     * @return The agent.jar prepared for transfer.
+     * @throws IOException If agent.jar could not be read.
+     */
+    static AgentJar get() throws IOException {
+        if (agentJar == null) {
+            synchronized (AgentJar.class) {
+                if (agentJar == null) {
+                    agentJar = new AgentJar(Jenkins.get()
+                            .getJnlpJars(ComputeEngineComputerLauncher.AGENT_JAR)
+                            .readFully());
+                }
+            }
+        }
+        return agentJar;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
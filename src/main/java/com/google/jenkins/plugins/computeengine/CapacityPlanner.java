@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.model.Label;
+import hudson.model.Queue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Shares the instance cap of a cloud between its instance configurations. A configuration may
+ * reserve instances that the other configurations can't use, and may limit the instances it bursts
+ * to. When the spare capacity of the cloud does not cover all waiting builds, configurations of a
+ * higher priority get new agents first, and idle agents of a lower priority are deleted early.
+ */
+final class CapacityPlanner {
+    /** How long an agent is idle before it may be deleted for builds of a higher priority. */
+    static final long RECLAIM_IDLE_MILLIS = Long.getLong(
+            "com.google.jenkins.plugins.computeengine.CapacityPlanner.reclaimIdleMillis",
+            TimeUnit.MINUTES.toMillis(1));
+
+    private final ComputeEngineCloud cloud;
+    /** Agents of each configuration, by name prefix. */
+    private final Map<String, Integer> agents = new HashMap<>();
+    /** Agents still needed by the builds waiting for each configuration, by name prefix. */
+    private final Map<String, Integer> waiting = new HashMap<>();
+    /** Instances the cloud may still create within its instance cap. */
+    private int available;
+
+    /**
+     * Plans the capacity of a cloud from its agents and the builds waiting in the queue.
+     *
+     * @param cloud Cloud to plan the capacity of.
+     * @param available Instances the cloud may still create within its instance cap.
+     */
+    CapacityPlanner(ComputeEngineCloud cloud, int available) {
+        this.cloud = cloud;
+        this.available = available;
+        Map<String, Integer> freeExecutors = new HashMap<>();
+        for (ComputeEngineComputer computer : cloud.getComputers()) {
+            ComputeEngineInstance node = computer.getNode();
+            if (node == null || node.getConfigName() == null) {
+                continue;
+            }
+            agents.merge(node.getConfigName(), 1, Integer::sum);
+            // Agents still coming online will take waiting builds too
+            int free = computer.isOffline() ? node.getNumExecutors() : computer.countIdle();
+            freeExecutors.merge(node.getConfigName(), free, Integer::sum);
+        }
+        Map<String, Integer> builds = new HashMap<>();
+        Map<String, InstanceConfiguration> configs = new HashMap<>();
+        for (Queue.BuildableItem item : Jenkins.get().getQueue().getBuildableItems()) {
+            InstanceConfiguration config = preferred(item.getAssignedLabel());
+            if (config != null) {
+                builds.merge(config.getNamePrefix(), 1, Integer::sum);
+                configs.put(config.getNamePrefix(), config);
+            }
+        }
+        builds.forEach((namePrefix, count) -> {
+            int executors = Math.max(1, configs.get(namePrefix).getNumExecutors());
+            int unserved = count - freeExecutors.getOrDefault(namePrefix, 0);
+            if (unserved > 0) {
+                waiting.put(namePrefix, (unserved + executors - 1) / executors);
+            }
+        });
+    }
+
+    /** @return The configuration of the highest priority that provisions agents for a label. */
+    private InstanceConfiguration preferred(Label label) {
+        try {
+            return cloud.getInstanceConfigurations(label).stream()
+                    .max(Comparator.comparingInt(InstanceConfiguration::getPriority))
+                    .orElse(null);
+        } catch (NoConfigurationException nce) {
+            return null;
+        }
+    }
+
+    private int agents(InstanceConfiguration config) {
+        return agents.getOrDefault(config.getNamePrefix(), 0);
+    }
+
+    /** @return Instances reserved by the other configurations and not used by their agents. */
+    int unusedReservations(InstanceConfiguration config) {
+        int unused = 0;
+        for (InstanceConfiguration other : cloud.getConfigurations()) {
+            if (!other.getNamePrefix().equals(config.getNamePrefix())) {
+                unused += Math.max(0, other.getReservedInstances() - agents(other));
+            }
+        }
+        return unused;
+    }
+
+    /** @return Agents needed by waiting builds of configurations of a higher priority. */
+    int higherPriorityWaiting(InstanceConfiguration config) {
+        int needed = 0;
+        for (InstanceConfiguration other : cloud.getConfigurations()) {
+            if (other.getPriority() > config.getPriority()) {
+                needed += waiting.getOrDefault(other.getNamePrefix(), 0);
+            }
+        }
+        return needed;
+    }
+
+    /** @return true if a new agent of the configuration fits in the capacity left for it. */
+    boolean allows(InstanceConfiguration config) {
+        int agents = agents(config);
+        if (available <= 0 || (config.getMaxInstances() > 0 && agents >= config.getMaxInstances())) {
+            return false;
+        }
+        return agents < config.getReservedInstances()
+                || available - unusedReservations(config) - higherPriorityWaiting(config) > 0;
+    }
+
+    /**
+     * @param configs Configurations that can provision an agent.
+     * @return The configurations of the highest priority among those that a new agent fits in.
+     */
+    List<InstanceConfiguration> allowed(List<InstanceConfiguration> configs) {
+        List<InstanceConfiguration> allowed = new ArrayList<>();
+        int priority = Integer.MIN_VALUE;
+        for (InstanceConfiguration config : configs) {
+            if (!allows(config) || config.getPriority() < priority) {
+                continue;
+            }
+            if (config.getPriority() > priority) {
+                priority = config.getPriority();
+                allowed.clear();
+            }
+            allowed.add(config);
+        }
+        return allowed;
+    }
+
+    /** Accounts for a new agent of a configuration. */
+    void provisioned(InstanceConfiguration config) {
+        agents.merge(config.getNamePrefix(), 1, Integer::sum);
+        waiting.computeIfPresent(config.getNamePrefix(), (namePrefix, count) -> count > 1 ? count - 1 : null);
+        available--;
+    }
+
+    /**
+     * @return true if an idle agent of the configuration is to be deleted, to make room for waiting
+     *     builds of a higher priority in a cloud at its instance cap.
+     */
+    boolean reclaims(InstanceConfiguration config) {
+        return available <= 0 && agents(config) > config.getReservedInstances() && higherPriorityWaiting(config) > 0;
+    }
+
+    /**
+     * Checks if an idle agent is to be deleted early for waiting builds of a higher priority. Agents
+     * are counted from the nodes of the cloud, to not list its instances on each check.
+     */
+    static boolean reclaims(ComputeEngineComputer computer) {
+        ComputeEngineInstance node = computer.getNode();
+        if (node == null
+                || !computer.isIdle()
+                || System.currentTimeMillis() - computer.getIdleStartMilliseconds() < RECLAIM_IDLE_MILLIS) {
+            return false;
+        }
+        InstanceConfiguration config = node.getConfiguration().orElse(null);
+        try {
+            ComputeEngineCloud cloud = node.getCloud();
+            if (config == null
+                    || cloud.getConfigurations().stream()
+                            .noneMatch(other -> other.getPriority() > config.getPriority())) {
+                return false;
+            }
+            return new CapacityPlanner(cloud, cloud.getInstanceCap() - cloud.getComputers().size()).reclaims(config);
+        } catch (CloudNotFoundException cnfe) {
+            return false;
+        }
+    }
+}
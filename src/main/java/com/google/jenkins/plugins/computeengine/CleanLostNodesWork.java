@@ -17,16 +17,22 @@
 package com.google.jenkins.plugins.computeengine;
 
 import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CLOUD_ID_LABEL_KEY;
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CONFIG_LABEL_KEY;
 import static java.util.Collections.emptyList;
 
 import com.google.api.services.compute.model.Instance;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.PeriodicWork;
 import hudson.model.Slave;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,10 +40,15 @@ import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
 import org.jenkinsci.Symbol;
 
-/** Periodically checks if there are no lost nodes in GCP. If it finds any they are deleted. */
+/**
+ * Periodically checks if there are no lost nodes in GCP. If it finds any they are deleted, or
+ * adopted when their cloud {@link ComputeEngineCloud#isAdoptLostInstances() adopts lost instances}.
+ */
 @Extension
 @Symbol("cleanLostNodesWork")
 public class CleanLostNodesWork extends PeriodicWork {
+    private static final Set<String> ADOPTABLE_STATUSES = ImmutableSet.of("PROVISIONING", "STAGING", "RUNNING");
+
     protected final Logger logger = Logger.getLogger(getClass().getName());
 
     /** {@inheritDoc} */
@@ -53,31 +64,82 @@ public class CleanLostNodesWork extends PeriodicWork {
         getClouds().forEach(this::cleanCloud);
     }
 
+    /**
+     * Adopts the lost instances of the clouds that adopt them on startup, before provisioning starts,
+     * so that their agents count as capacity. Instances that can't be adopted are deleted later. Runs
+     * once the {@link ProvisioningJournal} is loaded, as the instances it resumes are not lost.
+     */
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED, requires = ProvisioningJournal.RESUMED)
+    public static void adoptAfterRestart() {
+        CleanLostNodesWork work = ExtensionList.lookupSingleton(CleanLostNodesWork.class);
+        work.getClouds().stream().filter(ComputeEngineCloud::isAdoptLostInstances).forEach(cloud -> {
+            Set<String> localInstances = work.findLocalInstances(cloud);
+            work.findRemoteInstances(cloud).stream()
+                    .filter(remote -> work.isOrphaned(remote, localInstances))
+                    .forEach(remote -> work.adoptInstance(remote, cloud));
+        });
+    }
+
     private void cleanCloud(ComputeEngineCloud cloud) {
         logger.log(Level.FINEST, "Cleaning cloud " + cloud.getCloudName());
         List<Instance> remoteInstances = findRemoteInstances(cloud);
         Set<String> localInstances = findLocalInstances(cloud);
         remoteInstances.stream()
                 .filter(remote -> isOrphaned(remote, localInstances))
+                .filter(remote -> !cloud.isAdoptLostInstances() || !adoptInstance(remote, cloud))
                 .forEach(remote -> terminateInstance(remote, cloud));
     }
 
     private boolean isOrphaned(Instance remote, Set<String> localInstances) {
         String instanceName = remote.getName();
         logger.log(Level.FINEST, "Checking instance " + instanceName);
-        return !localInstances.contains(instanceName);
+        // Instances inserted just before their agent is added, or before a restart, are not lost
+        return !localInstances.contains(instanceName)
+                && !ProvisioningJournal.get().isProvisioning(instanceName);
     }
 
-    private void terminateInstance(Instance remote, ComputeEngineCloud cloud) {
+    /**
+     * Creates an agent for a lost instance, from the instance configuration named by its labels.
+     *
+     * @return true if the instance was adopted, false if it should be deleted.
+     */
+    private boolean adoptInstance(Instance remote, ComputeEngineCloud cloud) {
         String instanceName = remote.getName();
-        logger.log(Level.INFO, "Remote instance " + instanceName + " not found locally, removing it");
+        if (!ADOPTABLE_STATUSES.contains(remote.getStatus())) {
+            return false;
+        }
+        String configName = remote.getLabels() == null ? null : remote.getLabels().get(CONFIG_LABEL_KEY);
+        List<InstanceConfiguration> configurations = cloud.getConfigurations();
+        Optional<InstanceConfiguration> configuration = configName == null || configurations == null
+                ? Optional.empty()
+                : configurations.stream()
+                        .filter(config -> configName.equals(config.getNamePrefix()))
+                        .findFirst();
+        if (!configuration.isPresent()) {
+            logger.log(Level.INFO, "Lost instance " + instanceName + " has no instance configuration, not adopting it");
+            return false;
+        }
         try {
-            cloud.getClient().terminateInstanceAsync(cloud.getProjectId(), remote.getZone(), instanceName);
+            ComputeEngineInstance node = configuration.get().adopt(remote);
+            if (node == null) {
+                return false;
+            }
+            Jenkins.get().addNode(node);
+            logger.log(Level.INFO, "Adopted lost instance " + instanceName);
+            return true;
         } catch (IOException ex) {
-            logger.log(Level.WARNING, "Error terminating remote instance " + instanceName, ex);
+            logger.log(Level.WARNING, "Error adopting lost instance " + instanceName, ex);
+            return false;
         }
     }
 
+    private void terminateInstance(Instance remote, ComputeEngineCloud cloud) {
+        String instanceName = remote.getName();
+        logger.log(Level.INFO, "Remote instance " + instanceName + " not found locally, removing it");
+        // Instances of a managed instance group are deleted through it, so that it does not recreate them
+        TerminationQueue.get().submit(cloud, remote.getZone(), instanceName, ManagedInstanceGroup.groupOf(remote));
+    }
+
     private List<ComputeEngineCloud> getClouds() {
         return Jenkins.get().clouds.stream()
                 .filter(cloud -> cloud instanceof ComputeEngineCloud)
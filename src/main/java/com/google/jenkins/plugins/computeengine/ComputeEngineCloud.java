@@ -23,15 +23,18 @@ import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.google.api.services.compute.Compute;
 import com.google.api.services.compute.model.Instance;
 import com.google.cloud.graphite.platforms.plugin.client.ClientFactory;
 import com.google.cloud.graphite.platforms.plugin.client.ComputeClient;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
 import com.google.jenkins.plugins.computeengine.client.ClientUtil;
 import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2Credentials;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
@@ -50,10 +53,15 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -64,8 +72,10 @@ import java.util.logging.SimpleFormatter;
 import java.util.stream.Collectors;
 import javax.servlet.ServletException;
 import jenkins.model.Jenkins;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.java.Log;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -90,7 +100,22 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
     private List<InstanceConfiguration> configurations;
 
     private transient volatile ComputeClient client;
+    private transient volatile Compute compute;
+
+    /** Configurations matching a label, by label expression, cleared when the configurations change. */
+    @Getter(AccessLevel.NONE)
+    private transient volatile Map<String, List<InstanceConfiguration>> configurationsByLabel;
+
     private boolean noDelayProvisioning;
+    private boolean adoptLostInstances;
+    private boolean packWorkload;
+    private boolean jobAffinity;
+    private boolean draining;
+    private int maxPreemptedReschedules;
+    private int snapshotRetentionDays;
+    private int maxSnapshots;
+    private int maxImageUpgrades;
+    private String federation;
 
     @DataBoundConstructor
     public ComputeEngineCloud(String cloudName, String projectId, String credentialsId, String instanceCapStr) {
@@ -150,11 +175,133 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
         this.noDelayProvisioning = noDelayProvisioning;
     }
 
+    /**
+     * Sets if instances of this cloud that have no agent, such as after a restore of the controller
+     * from a backup, get a new agent instead of being deleted.
+     */
+    @DataBoundSetter
+    public void setAdoptLostInstances(boolean adoptLostInstances) {
+        this.adoptLostInstances = adoptLostInstances;
+    }
+
+    /**
+     * Sets if the workload of a label is covered with the fewest instances of its configurations,
+     * instead of taking turns between them.
+     */
+    @DataBoundSetter
+    public void setPackWorkload(boolean packWorkload) {
+        this.packWorkload = packWorkload;
+    }
+
+    /**
+     * Sets if builds wait for a free agent that ran their job before, instead of going to any
+     * agent, see {@link JobAffinityDispatcher}.
+     */
+    @DataBoundSetter
+    public void setJobAffinity(boolean jobAffinity) {
+        this.jobAffinity = jobAffinity;
+    }
+
+    /**
+     * Sets the name of the federation of this cloud. Provisioning is routed between the clouds of a
+     * federation, see {@link Federation}.
+     */
+    @DataBoundSetter
+    public void setFederation(String federation) {
+        this.federation = Util.fixEmptyAndTrim(federation);
+    }
+
+    /** @return Number of instances of the clouds of the federation of this cloud. */
+    public int getFederationInstances() {
+        return federation != null ? Federation.instances(federation) : 0;
+    }
+
+    /** @return Number of clouds in the federation of this cloud. */
+    public int getFederationClouds() {
+        return federation != null ? Federation.members(federation).size() : 0;
+    }
+
+    /**
+     * Sets after how many preemptions a rescheduled build is only run on agents that are not
+     * preemptible. 0 disables pinning.
+     */
+    @DataBoundSetter
+    public void setMaxPreemptedReschedules(int maxPreemptedReschedules) {
+        this.maxPreemptedReschedules = Math.max(0, maxPreemptedReschedules);
+    }
+
+    /** Sets after how many days snapshots of failed agents are deleted. 0 keeps them forever. */
+    @DataBoundSetter
+    public void setSnapshotRetentionDays(int snapshotRetentionDays) {
+        this.snapshotRetentionDays = Math.max(0, snapshotRetentionDays);
+    }
+
+    /** Sets how many snapshots of failed agents are kept, newest first. 0 keeps all of them. */
+    @DataBoundSetter
+    public void setMaxSnapshots(int maxSnapshots) {
+        this.maxSnapshots = Math.max(0, maxSnapshots);
+    }
+
+    /**
+     * Sets if this cloud is drained: it provisions no agents, and its agents accept no new tasks
+     * once their current ones complete.
+     */
+    @DataBoundSetter
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    /** @return Agents of this cloud. */
+    List<ComputeEngineComputer> getComputers() {
+        List<ComputeEngineComputer> computers = new ArrayList<>();
+        for (Computer c : Jenkins.get().getComputers()) {
+            if (c instanceof ComputeEngineComputer) {
+                ComputeEngineInstance node = ((ComputeEngineComputer) c).getNode();
+                if (node != null && name.equals(node.getCloudName())) {
+                    computers.add((ComputeEngineComputer) c);
+                }
+            }
+        }
+        return computers;
+    }
+
+    /** @return Number of agents of this cloud that are running tasks. */
+    public int getBusyAgents() {
+        return (int) getComputers().stream().filter(c -> c.countBusy() > 0).count();
+    }
+
+    /** @return Reuse of the agents of each instance configuration of this cloud that ran tasks. */
+    public List<IdleRetention> getIdleRetentions() {
+        return IdleRetention.of(this);
+    }
+
+    /**
+     * Sets how many agents running an outdated image are replaced at a time, see {@link
+     * ImageUpgradeWork}. 0 leaves them until they are deleted.
+     */
+    @DataBoundSetter
+    public void setMaxImageUpgrades(int maxImageUpgrades) {
+        this.maxImageUpgrades = Math.max(0, maxImageUpgrades);
+    }
+
+    /**
+     * Check if a build preempted the given number of times must avoid preemptible agents.
+     *
+     * @param preemptions Number of times the build was preempted.
+     * @return true if the build should only run on agents that are not preemptible.
+     */
+    public boolean isPinnedToStandard(int preemptions) {
+        return maxPreemptedReschedules > 0 && preemptions >= maxPreemptedReschedules;
+    }
+
     protected Object readResolve() {
         if (configurations != null) {
             for (InstanceConfiguration configuration : configurations) {
                 configuration.setCloud(this);
-                configuration.readResolve();
+                // Configurations kept from the previous definition of this cloud are already resolved
+                if (configuration.getLabelSet() == null) {
+                    configuration.readResolve();
+                }
                 // Apply a label that associates an instance configuration with
                 // this cloud provider
                 configuration.appendLabel(CLOUD_ID_LABEL_KEY, getInstanceId());
@@ -163,6 +310,7 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
                 configuration.appendLabel(CONFIG_LABEL_KEY, configuration.getNamePrefix());
             }
         }
+        configurationsByLabel = new ConcurrentHashMap<>();
         setInstanceId(instanceId);
         return this;
     }
@@ -209,6 +357,44 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
         return client;
     }
 
+    /**
+     * Replaces the GCP client of this cloud, for tests and benchmarks that simulate Compute Engine.
+     *
+     * @param client GCP client to use instead of the one created from the credentials.
+     */
+    @VisibleForTesting
+    public void setClient(ComputeClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Replaces the Compute Engine API client of this cloud, for tests that simulate Compute Engine.
+     *
+     * @param compute Compute Engine API client to use instead of the one created from the credentials.
+     */
+    @VisibleForTesting
+    public void setCompute(Compute compute) {
+        this.compute = compute;
+    }
+
+    /**
+     * Returns the Compute Engine API client for that cloud, for calls not covered by {@link
+     * #getClient()}.
+     *
+     * @return Compute Engine API client.
+     * @throws IOException If the client could not be created.
+     */
+    public Compute getCompute() throws IOException {
+        if (compute == null) {
+            synchronized (this) {
+                if (compute == null) {
+                    compute = ClientUtil.getCompute(Jenkins.get(), credentialsId);
+                }
+            }
+        }
+        return compute;
+    }
+
     /**
      * Set configurations for this cloud.
      *
@@ -216,10 +402,39 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
      */
     @DataBoundSetter
     public void setConfigurations(List<InstanceConfiguration> configurations) {
-        this.configurations = configurations;
+        this.configurations = keepUnchanged(configurations);
         readResolve();
     }
 
+    /**
+     * Replaces the configurations identical to one of the cloud this cloud is replacing, such as on a
+     * reload of the configuration as code, by the existing configuration. Only the configurations
+     * that changed are then resolved again, and the others keep their state.
+     */
+    private List<InstanceConfiguration> keepUnchanged(List<InstanceConfiguration> configurations) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (configurations == null || jenkins == null) {
+            return configurations;
+        }
+        Cloud previous = jenkins.clouds.getByName(name);
+        if (!(previous instanceof ComputeEngineCloud)) {
+            return configurations;
+        }
+        List<InstanceConfiguration> existing = ((ComputeEngineCloud) previous).getConfigurations();
+        if (existing == null) {
+            return configurations;
+        }
+        Map<String, InstanceConfiguration> byFingerprint = existing.stream()
+                .collect(Collectors.toMap(InstanceConfiguration::fingerprint, c -> c, (first, second) -> first));
+        List<InstanceConfiguration> result = new ArrayList<>(configurations.size());
+        for (InstanceConfiguration configuration : configurations) {
+            // An existing configuration is kept at most once, as it can only belong to one cloud
+            InstanceConfiguration unchanged = byFingerprint.remove(configuration.fingerprint());
+            result.add(unchanged != null ? unchanged : configuration);
+        }
+        return result;
+    }
+
     /**
      * Adds one configuration.
      *
@@ -237,6 +452,18 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
     @Override
     public Collection<PlannedNode> provision(Label label, int excessWorkload) {
         List<PlannedNode> result = new ArrayList<>();
+        if (draining) {
+            log.info(String.format(
+                    "Not provisioning nodes for label '%s', cloud %s is draining", label, getCloudName()));
+            return result;
+        }
+        excessWorkload = Federation.share(this, label, excessWorkload);
+        if (excessWorkload <= 0) {
+            log.fine(String.format(
+                    "Not provisioning nodes for label '%s', preferred clouds of federation %s cover the workload",
+                    label, federation));
+            return result;
+        }
         try {
             List<InstanceConfiguration> configs = getInstanceConfigurations(label);
             log.log(
@@ -249,6 +476,13 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
                             + label
                             + "'");
             int availableCapacity = availableNodeCapacity();
+            CapacityPlanner planner = new CapacityPlanner(this, availableCapacity);
+            int pinnedWorkload = pinnedWorkload(label);
+            // Agents of configurations using a managed instance group, created with one resize per group
+            Map<InstanceConfiguration, Integer> groupAgents = new LinkedHashMap<>();
+            Iterator<InstanceConfiguration> packed = packWorkload && pinnedWorkload <= 0
+                    ? WorkloadPacker.pack(configs, excessWorkload).iterator()
+                    : Collections.emptyIterator();
             while (excessWorkload > 0) {
                 if (availableCapacity <= 0) {
                     log.warning(String.format(
@@ -257,13 +491,37 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
                     break;
                 }
 
-                InstanceConfiguration config = chooseConfigFromList(configs);
+                List<InstanceConfiguration> allowed = planner.allowed(configs);
+                if (allowed.isEmpty()) {
+                    log.info(String.format(
+                            "Could not provision new nodes for label '%s' in cloud %s, its remaining capacity is "
+                                    + "reserved for other configurations or waiting builds of a higher priority",
+                            label, getCloudName()));
+                    break;
+                }
+                InstanceConfiguration config = packed.hasNext() ? packed.next() : null;
+                if (config == null || !allowed.contains(config)) {
+                    config = chooseConfig(allowed, pinnedWorkload > 0);
+                }
+                planner.provisioned(config);
+                if (config.usesManagedInstanceGroup()) {
+                    groupAgents.merge(config, 1, Integer::sum);
+                    excessWorkload -= config.getNumExecutors();
+                    availableCapacity -= config.getNumExecutors();
+                    pinnedWorkload -= config.getNumExecutors();
+                    continue;
+                }
 
                 final ComputeEngineInstance node = config.provision();
                 Jenkins.get().addNode(node);
+                ProvisioningJournal.get().launching(node.getNodeName());
                 result.add(createPlannedNode(config, node));
                 excessWorkload -= node.getNumExecutors();
                 availableCapacity -= node.getNumExecutors();
+                pinnedWorkload -= node.getNumExecutors();
+            }
+            for (Map.Entry<InstanceConfiguration, Integer> entry : groupAgents.entrySet()) {
+                result.addAll(provisionFromGroup(entry.getKey(), entry.getValue()));
             }
         } catch (IOException ioe) {
             log.log(Level.WARNING, "Error provisioning node", ioe);
@@ -275,6 +533,9 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
                             label.getName()),
                     nce.getMessage());
         }
+        if (federation != null) {
+            Federation.provisioned(this, result.size());
+        }
         return result;
     }
 
@@ -290,6 +551,83 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
         return configs.get(Math.abs(configsNext++) % configs.size());
     }
 
+    /**
+     * Choose config for a new node, preferring configs that are not preemptible when the node is for
+     * builds that were preempted too many times.
+     */
+    private InstanceConfiguration chooseConfig(List<InstanceConfiguration> configs, boolean pinned) {
+        if (pinned) {
+            List<InstanceConfiguration> standardConfigs = configs.stream()
+                    .filter(config -> !config.isPreemptibleOrSpot())
+                    .collect(Collectors.toList());
+            if (!standardConfigs.isEmpty()) {
+                return chooseConfigFromList(standardConfigs);
+            }
+        }
+        return chooseConfigFromList(configs);
+    }
+
+    /** Number of buildable items for the label that may only run on agents that are not preemptible. */
+    private int pinnedWorkload(Label label) {
+        if (maxPreemptedReschedules <= 0) {
+            return 0;
+        }
+        return (int) Jenkins.get().getQueue().getBuildableItems().stream()
+                .filter(item -> Objects.equals(item.getAssignedLabel(), label))
+                .filter(item -> isPinnedToStandard(PreemptionCountAction.preemptionsOf(item)))
+                .count();
+    }
+
+    /**
+     * Provisions an agent that replaces another agent of the same configuration. Like agents
+     * provisioned for the queue, it must fit within the instance cap of the cloud, the most instances
+     * of the configuration and the capacity reserved for other configurations, and counts towards
+     * the federation of the cloud.
+     *
+     * @param config Configuration of the replaced agent.
+     * @return The new agent, or null if the cloud has no capacity left for it.
+     * @throws IOException If the instance could not be created.
+     */
+    ComputeEngineInstance provisionReplacement(InstanceConfiguration config) throws IOException {
+        if (draining || config.usesManagedInstanceGroup()) {
+            return null;
+        }
+        int availableCapacity = availableNodeCapacity();
+        if (availableCapacity <= 0
+                || new CapacityPlanner(this, availableCapacity)
+                        .allowed(Collections.singletonList(config))
+                        .isEmpty()) {
+            return null;
+        }
+        ComputeEngineInstance node = config.provision();
+        Jenkins.get().addNode(node);
+        ProvisioningJournal.get().launching(node.getNodeName());
+        if (federation != null) {
+            Federation.provisioned(this, 1);
+        }
+        return node;
+    }
+
+    /**
+     * Grows the managed instance group of a configuration with a single resize, and plans an agent
+     * for each of the instances it will create.
+     */
+    private List<PlannedNode> provisionFromGroup(InstanceConfiguration config, int count) throws IOException {
+        ManagedInstanceGroup group = ManagedInstanceGroup.of(this, config);
+        group.resize(this, count);
+        List<PlannedNode> plannedNodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Future<Node> future = Computer.threadPoolForRemoting.submit(() -> {
+                ComputeEngineInstance node = group.awaitInstance(this, config);
+                Jenkins.get().addNode(node);
+                group.added(node.getNodeName());
+                return getPlannedNodeFuture(config, node).get();
+            });
+            plannedNodes.add(new PlannedNode(config.getNamePrefix(), future, config.getNumExecutors()));
+        }
+        return plannedNodes;
+    }
+
     private PlannedNode createPlannedNode(InstanceConfiguration config, ComputeEngineInstance node) {
         return new PlannedNode(node.getNodeName(), getPlannedNodeFuture(config, node), node.getNumExecutors());
     }
@@ -306,16 +644,20 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
                 Computer c = node.toComputer();
                 if (c != null) {
                     c.connect(false).get(config.getLaunchTimeoutMillis(), TimeUnit.MILLISECONDS);
+                    long elapsed = System.currentTimeMillis() - startTime;
                     log.log(
                             Level.INFO,
-                            String.format(
-                                    "%dms elapsed waiting for node %s to connect",
-                                    System.currentTimeMillis() - startTime, node.getNodeName()));
+                            String.format("%dms elapsed waiting for node %s to connect", elapsed, node.getNodeName()));
+                    Federation.recordLaunch(ComputeEngineCloud.this, elapsed);
                 } else {
                     log.log(Level.WARNING, String.format("No computer for node %s found", node.getNodeName()));
                 }
             } catch (TimeoutException e) {
                 log.log(Level.WARNING, String.format("Timeout waiting for node %s to connect", node.getNodeName()), e);
+                Federation.recordFailedLaunch(ComputeEngineCloud.this, config.getLaunchTimeoutMillis());
+            } catch (ExecutionException e) {
+                Federation.recordFailedLaunch(ComputeEngineCloud.this, config.getLaunchTimeoutMillis());
+                throw e;
             }
             return null;
         });
@@ -327,7 +669,7 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
      * @return
      * @throws IOException
      */
-    private synchronized Integer availableNodeCapacity() throws IOException {
+    synchronized Integer availableNodeCapacity() throws IOException {
         try {
             // We only care about instances that have a label indicating they
             // belong to this cloud
@@ -357,6 +699,9 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
 
     @Override
     public boolean canProvision(Label label) {
+        if (draining) {
+            return false;
+        }
         try {
             getInstanceConfigurations(label);
             return true;
@@ -372,9 +717,12 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
                     String.format("Cloud %s does not have any defined instance configurations.", this.getCloudName()));
         }
 
-        List<InstanceConfiguration> configurations = this.configurations.stream()
-                .filter(configuration -> matchesLabel(configuration, label))
-                .collect(Collectors.toList());
+        // canProvision is called for each label waiting in the queue, so avoid matching all configurations
+        List<InstanceConfiguration> configurations = configurationsByLabel.computeIfAbsent(
+                label == null ? "" : label.getExpression(),
+                expression -> Collections.unmodifiableList(this.configurations.stream()
+                        .filter(configuration -> matchesLabel(configuration, label))
+                        .collect(Collectors.toList())));
 
         if (configurations.isEmpty()) {
             throw new NoConfigurationException(
@@ -412,14 +760,59 @@ public class ComputeEngineCloud extends AbstractCloudImpl {
         if (c == null) {
             throw HttpResponses.error(SC_BAD_REQUEST, "No such Instance Configuration: " + configuration);
         }
+        if (draining) {
+            throw HttpResponses.error(SC_BAD_REQUEST, "Cloud " + getCloudName() + " is draining");
+        }
 
         ComputeEngineInstance node = c.provision();
         if (node == null) throw HttpResponses.error(SC_BAD_REQUEST, "Could not provision new node.");
         Jenkins.get().addNode(node);
+        ProvisioningJournal.get().launching(node.getNodeName());
 
         return HttpResponses.redirectViaContextPath("/computer/" + node.getNodeName());
     }
 
+    /**
+     * Drains this cloud: stops provisioning, and lets its agents complete their current tasks
+     * without accepting new ones. See {@link #doDrainStatus()} to know when it is drained.
+     */
+    @RequirePOST
+    public HttpResponse doDrain() throws IOException {
+        checkPermissions(this);
+        setDraining(true);
+        Jenkins.get().save();
+        getComputers().forEach(ComputeEngineComputer::drain);
+        log.info("Draining cloud " + getCloudName());
+        return HttpResponses.forwardToPreviousPage();
+    }
+
+    /** Resumes provisioning on this cloud, and lets its drained agents accept tasks again. */
+    @RequirePOST
+    public HttpResponse doResume() throws IOException {
+        checkPermissions(this);
+        setDraining(false);
+        Jenkins.get().save();
+        getComputers().forEach(ComputeEngineComputer::resume);
+        log.info("Resumed cloud " + getCloudName());
+        return HttpResponses.forwardToPreviousPage();
+    }
+
+    /**
+     * Reports the progress of a drain, as JSON: whether the cloud is draining, its number of agents
+     * and of agents running tasks, and whether it is drained and safe to change.
+     */
+    public HttpResponse doDrainStatus() {
+        checkPermissions(this, PROVISION);
+        List<ComputeEngineComputer> computers = getComputers();
+        int busyAgents = (int) computers.stream().filter(c -> c.countBusy() > 0).count();
+        JSONObject status = new JSONObject()
+                .element("draining", draining)
+                .element("agents", computers.size())
+                .element("busyAgents", busyAgents)
+                .element("drained", draining && busyAgents == 0);
+        return HttpResponses.okJSON(status);
+    }
+
     /**
      * Ensures the executing user has the specified permissions.
      *
@@ -19,11 +19,14 @@ package com.google.jenkins.plugins.computeengine;
 import com.google.api.services.compute.model.Instance;
 import com.google.api.services.compute.model.Scheduling;
 import hudson.model.Executor;
+import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.slaves.AbstractCloudComputer;
 import java.io.IOException;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import lombok.extern.java.Log;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -34,7 +37,17 @@ import org.kohsuke.stapler.HttpResponse;
 public class ComputeEngineComputer extends AbstractCloudComputer<ComputeEngineInstance> {
 
     private volatile Instance instance;
-    private CompletableFuture<Boolean> preemptedFuture;
+    private volatile boolean preempted;
+    /** Long-poll of the metadata server on the agent, completed when the instance gets a preemption notice. */
+    private volatile Future<Boolean> preemptionNotice;
+    private volatile boolean connected;
+    private final AtomicBoolean used = new AtomicBoolean();
+    private volatile boolean kept;
+    private volatile boolean drained;
+    /** Set while an image is baked from the agent, which takes no new tasks meanwhile. */
+    private volatile boolean baking;
+    /** Build that last ran on the agent, including the builds of Pipeline {@code node} blocks. */
+    private volatile String lastRunId;
 
     public ComputeEngineComputer(ComputeEngineInstance slave) {
         super(slave);
@@ -44,30 +57,84 @@ public class ComputeEngineComputer extends AbstractCloudComputer<ComputeEngineIn
         ComputeEngineInstance node = getNode();
         if (node != null) {
             node.onConnected();
+            connected = true;
+            ProvisioningJournal.get().remove(node.getNodeName());
+            if (isCloudDraining()) {
+                drain();
+            }
             if (getPreemptible()) {
                 String nodeName = node.getNodeName();
                 final String msg = "Instance " + nodeName + " is preemptive, setting up preemption listener";
                 log.log(Level.INFO, msg);
                 listener.getLogger().println(msg);
-                preemptedFuture = CompletableFuture.supplyAsync(
-                        () -> getPreemptedStatus(listener, nodeName), threadPoolForRemoting);
+                listenForPreemptionNotice(listener, nodeName);
             }
         }
     }
 
-    private Boolean getPreemptedStatus(TaskListener listener, String nodeName) {
+    /**
+     * Asks the agent to wait for a preemption notice from the metadata server. The call is
+     * asynchronous, so no controller thread waits for the notice; {@link PreemptionWatcher} checks
+     * whether it came.
+     */
+    private void listenForPreemptionNotice(TaskListener listener, String nodeName) {
+        VirtualChannel channel = getChannel();
+        if (channel == null) {
+            return;
+        }
+        try {
+            preemptionNotice = channel.callAsync(new PreemptedCheckCallable(listener));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error listening for the preemption notice of instance " + nodeName, e);
+        }
+    }
+
+    /** @return true if the agent received a preemption notice from the metadata server. */
+    boolean hasPreemptionNotice() {
+        Future<Boolean> notice = preemptionNotice;
+        if (notice == null || !notice.isDone()) {
+            return false;
+        }
         try {
-            boolean value = getChannel().call(new PreemptedCheckCallable(listener));
-            log.log(Level.FINE, "Got information that node was preempted with value [" + value + "]");
-            if (value) {
-                log.log(Level.FINE, "Preempted node was preempted, terminating all executors");
-                getChannel().close();
-                getExecutors().forEach(executor -> interruptExecutor(executor, nodeName));
+            return notice.get();
+        } catch (InterruptedException | ExecutionException e) {
+            log.log(Level.FINE, "No preemption notice from instance " + getName(), e);
+            return false;
+        }
+    }
+
+    /** @return true if the agent was connected at least once, so its instance was created. */
+    boolean hasConnected() {
+        return connected;
+    }
+
+    /**
+     * Called by {@link PreemptionWatcher} once the instance got a preemption notice or is seen shutting
+     * down or gone without Jenkins having asked for it. Stops accepting tasks and puts the running
+     * tasks back in the queue right away, then closes the channel and aborts running executors.
+     */
+    void onPreempted() {
+        if (preempted) {
+            return;
+        }
+        preempted = true;
+        String nodeName = getName();
+        log.log(Level.INFO, "Instance " + nodeName + " was preempted, terminating all executors");
+        getListener().getLogger().println("Got preemption event for instance " + nodeName);
+        setAcceptingTasks(false);
+        if (getRetentionStrategy() instanceof ComputeEngineRetentionStrategy) {
+            ComputeEngineRetentionStrategy strategy = (ComputeEngineRetentionStrategy) getRetentionStrategy();
+            getExecutors().forEach(strategy::reschedulePreempted);
+        }
+        VirtualChannel channel = getChannel();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Error closing channel of preempted instance " + nodeName, e);
             }
-            return value;
-        } catch (InterruptedException | IOException e) {
-            throw new RuntimeException(e);
         }
+        getExecutors().forEach(executor -> interruptExecutor(executor, nodeName));
     }
 
     private void interruptExecutor(Executor executor, String nodeName) {
@@ -78,12 +145,14 @@ public class ComputeEngineComputer extends AbstractCloudComputer<ComputeEngineIn
     /**
      * Check if instance is preemptible.
      *
-     * @return true if instance was set as preemptible.
+     * @return true if instance was set as preemptible or created as a Spot VM.
      */
     public boolean getPreemptible() {
         try {
             Scheduling scheduling = getInstance().getScheduling();
-            return scheduling != null && scheduling.getPreemptible();
+            return scheduling != null
+                    && (Boolean.TRUE.equals(scheduling.getPreemptible())
+                            || InstanceConfiguration.PROVISIONING_MODEL_SPOT.equals(scheduling.getProvisioningModel()));
         } catch (IOException e) {
             log.log(Level.WARNING, "Error when getting preemptible status", e);
             return false;
@@ -96,14 +165,92 @@ public class ComputeEngineComputer extends AbstractCloudComputer<ComputeEngineIn
      * @return true if instance was preempted (we can use it to reschedule job in this case).
      */
     public boolean getPreempted() {
+        return preempted;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>An agent an image is baked from takes no new tasks, whatever its accepting state.
+     */
+    @Override
+    public boolean isAcceptingTasks() {
+        return !baking && super.isAcceptingTasks();
+    }
+
+    /**
+     * Holds new tasks off the agent while an image is baked from it. Unlike {@link
+     * #setAcceptingTasks(boolean)}, ending the hold does not undo a drain, a retirement or a
+     * preemption that stopped the agent from accepting tasks meanwhile.
+     */
+    void setBaking(boolean baking) {
+        this.baking = baking;
+    }
+
+    /** Records the build a task that ran on the agent belonged to. */
+    void setLastRun(Run<?, ?> run) {
+        lastRunId = run.getExternalizableId();
+    }
+
+    /**
+     * @return The build that last ran on the agent, or null if none did. Builds of Pipeline {@code
+     *     node} blocks are only known once one completed since the agent connected.
+     */
+    Run<?, ?> getLastRun() {
+        String id = lastRunId;
+        if (id == null) {
+            return getBuilds().getLastBuild();
+        }
         try {
-            return preemptedFuture != null && preemptedFuture.isDone() && preemptedFuture.get();
-        } catch (InterruptedException | ExecutionException e) {
-            log.log(Level.WARNING, "Error when getting preempted status", e);
+            return Run.fromExternalizableId(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Stops accepting new tasks, as the cloud of the agent is draining. */
+    void drain() {
+        if (super.isAcceptingTasks()) {
+            log.log(Level.INFO, "Draining agent " + getName());
+            drained = true;
+            setAcceptingTasks(false);
+        }
+    }
+
+    /** Accepts new tasks again if the agent stopped accepting them for a drain. */
+    void resume() {
+        if (drained) {
+            drained = false;
+            setAcceptingTasks(true);
+        }
+    }
+
+    private boolean isCloudDraining() {
+        try {
+            return getCloud().isDraining();
+        } catch (CloudNotFoundException cnfe) {
             return false;
         }
     }
 
+    /**
+     * Records that the agent accepted a task.
+     *
+     * @return true if the agent accepted a task before.
+     */
+    boolean markUsed() {
+        return used.getAndSet(true);
+    }
+
+    /** @return true if the agent is idle past its retention time, kept for recent demand. */
+    boolean isKept() {
+        return kept;
+    }
+
+    void setKept(boolean kept) {
+        this.kept = kept;
+    }
+
     public String getNumExecutorsStr() {
         return String.valueOf(super.getNumExecutors());
     }
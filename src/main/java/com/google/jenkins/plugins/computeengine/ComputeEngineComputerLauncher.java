@@ -25,6 +25,7 @@ import com.google.cloud.graphite.platforms.plugin.client.ComputeClient.Operation
 import com.google.cloud.graphite.platforms.plugin.client.model.GuestAttribute;
 import com.google.cloud.graphite.platforms.plugin.client.model.InstanceResourceData;
 import com.google.cloud.graphite.platforms.plugin.client.util.ClientUtil;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.HTTPProxyData;
@@ -36,11 +37,15 @@ import hudson.model.TaskListener;
 import hudson.remoting.Channel;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.util.Base64;
+import java.util.List;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -52,14 +57,20 @@ import lombok.Getter;
 public abstract class ComputeEngineComputerLauncher extends ComputerLauncher {
     private static final Logger LOGGER = Logger.getLogger(ComputeEngineComputerLauncher.class.getName());
     private static final SimpleFormatter sf = new SimpleFormatter();
-    private static final String AGENT_JAR = "agent.jar";
+    protected static final String AGENT_JAR = "agent.jar";
+    protected static final String SEND_AGENT_JAR = "SEND_AGENT_JAR";
+    protected static final String SKIP_AGENT_JAR = "SKIP_AGENT_JAR";
     private static final String GUEST_ATTRIBUTE_HOST_KEY_NAMESPACE = "hostkeys";
 
-    // TODO(google-compute-engine-plugin/issues/134): make this configurable
-    private static final int SSH_PORT = 22;
+    // TODO(google-compute-engine-plugin/issues/134): make this configurable per instance configuration
+    private static final int SSH_PORT =
+            Integer.getInteger("com.google.jenkins.plugins.computeengine.ComputeEngineComputerLauncher.sshPort", 22);
     private static final int SSH_TIMEOUT_MILLIS = 10000;
     private static final int SSH_SLEEP_MILLIS = 5000;
 
+    private static volatile boolean singleSessionLaunch =
+            !Boolean.getBoolean("com.google.jenkins.plugins.computeengine.disableSingleSessionLaunch");
+
     private final String insertOperationId;
     private final String zone;
     private final String cloudName;
@@ -145,9 +156,12 @@ public abstract class ComputeEngineComputerLauncher extends ComputerLauncher {
             /* This call will log a null error when the operation is complete, or a relevant error if it
              * fails. */
             try {
-                Operation operation = cloud.getClient()
-                        .waitForOperationCompletion(
-                                cloud.getProjectId(), insertOperationId, zone, node.getLaunchTimeoutMillis());
+                // Instances adopted after a restart may not know their operation, but they already exist
+                Operation operation = insertOperationId == null
+                        ? new Operation()
+                        : cloud.getClient()
+                                .waitForOperationCompletion(
+                                        cloud.getProjectId(), insertOperationId, zone, node.getLaunchTimeoutMillis());
                 opError = operation.getError();
             } catch (OperationException e) {
                 opError = e.getError();
@@ -262,17 +276,192 @@ public abstract class ComputeEngineComputerLauncher extends ComputerLauncher {
         return false;
     }
 
+    private boolean mountDisks(
+            ComputeEngineComputer computer,
+            Connection conn,
+            PrintStream logger,
+            TaskListener listener,
+            ComputeEngineInstance node) {
+        if (node.getDiskMounts().isEmpty()) {
+            return true;
+        }
+        Optional<String> mountCommand = getMountDisksCommand(node.getDiskMounts(), node.getSshUser());
+        if (!mountCommand.isPresent()) {
+            logWarning(computer, listener, "Mounting data disks is not supported on this agent, skipping");
+            return true;
+        }
+        try {
+            if (testCommand(computer, conn, mountCommand.get(), logger, listener)) {
+                return true;
+            }
+        } catch (IOException | InterruptedException ex) {
+            logException(computer, listener, "Failed to mount data disks: ", ex);
+            return false;
+        }
+        logWarning(computer, listener, "Failed to mount data disks");
+        return false;
+    }
+
+    /**
+     * Returns a command that formats the data disks that have no file system yet, mounts them and
+     * makes them writable by the agent user.
+     *
+     * @param mounts Data disks to mount.
+     * @param user User the agent runs as.
+     * @return The command, or empty if the launcher can't mount disks.
+     */
+    protected Optional<String> getMountDisksCommand(List<DiskMount> mounts, String user) {
+        return Optional.empty();
+    }
+
     private void copyAgentJar(ComputeEngineComputer computer, Connection conn, TaskListener listener, String jenkinsDir)
             throws IOException {
         SCPClient scp = conn.createSCPClient();
         logInfo(computer, listener, "Copying agent.jar to: " + jenkinsDir);
-        scp.put(Jenkins.get().getJnlpJars(AGENT_JAR).readFully(), AGENT_JAR, jenkinsDir);
+        byte[] content = AgentJar.get().getContent();
+        long startTime = System.currentTimeMillis();
+        scp.put(content, AGENT_JAR, jenkinsDir);
+        logTransfer(computer, listener, content.length, content.length, System.currentTimeMillis() - startTime);
+    }
+
+    private void logTransfer(
+            ComputeEngineComputer computer, TaskListener listener, long sentBytes, long jarBytes, long millis) {
+        logInfo(
+                computer,
+                listener,
+                String.format("Transferred %d bytes for %d byte agent.jar in %dms", sentBytes, jarBytes, millis));
     }
 
     private String getJavaLaunchString(String javaExecPath, String jenkinsDir) {
         return String.format("%s -jar %s%s%s", javaExecPath, jenkinsDir, getPathSeparator(), AGENT_JAR);
     }
 
+    /**
+     * Returns a command that, in a single SSH session, verifies Java, reads exactly {@code
+     * agentJarLength} bytes of agent.jar from stdin into {@code jenkinsDir} and then replaces itself
+     * with the agent process, so the rest of the session's stdin/stdout carries the remoting channel.
+     *
+     * @param javaExecPath Java executable to verify and run the agent with.
+     * @param jenkinsDir Remote directory agent.jar is written to.
+     * @param agentJarLength Number of agent.jar bytes that will be streamed on stdin.
+     * @return The bootstrap command, or empty if the agent's shell does not support it.
+     */
+    protected Optional<String> getSingleSessionLaunchString(
+            String javaExecPath, String jenkinsDir, int agentJarLength) {
+        return Optional.empty();
+    }
+
+    /**
+     * Like {@link #getSingleSessionLaunchString(String, String, int)}, but agent.jar is sent gzip
+     * compressed and verified against {@code sha256} before it replaces the existing one. Before
+     * reading stdin the command prints {@link #SEND_AGENT_JAR} on stdout, or {@link #SKIP_AGENT_JAR}
+     * when the agent already has an agent.jar with that digest and nothing will be sent.
+     *
+     * @param javaExecPath Java executable to verify and run the agent with.
+     * @param jenkinsDir Remote directory agent.jar is written to.
+     * @param compressedLength Number of compressed bytes that will be streamed on stdin.
+     * @param sha256 Hex encoded SHA-256 digest of the uncompressed agent.jar.
+     * @return The bootstrap command, or empty if the agent's shell does not support it.
+     */
+    protected Optional<String> getCompressedSingleSessionLaunchString(
+            String javaExecPath, String jenkinsDir, int compressedLength, String sha256) {
+        return Optional.empty();
+    }
+
+    /**
+     * Switches between the single SSH session launch and separate sessions for the Java check, the
+     * agent.jar upload and the agent, for tests and benchmarks that compare them. Defaults to the
+     * single session unless the {@code com.google.jenkins.plugins.computeengine.disableSingleSessionLaunch}
+     * system property is set.
+     *
+     * @param enabled true to launch through a single session where the agent supports it.
+     */
+    @VisibleForTesting
+    public static void setSingleSessionLaunch(boolean enabled) {
+        singleSessionLaunch = enabled;
+    }
+
+    /**
+     * Launches the agent through a single SSH session instead of separate sessions for the Java
+     * check, the agent.jar upload and the agent itself.
+     *
+     * @return true if the channel was established, false if the caller should fall back to the
+     *     multi-session launch.
+     */
+    private boolean launchInSingleSession(
+            ComputeEngineComputer computer,
+            Connection conn,
+            TaskListener listener,
+            String javaExecPath,
+            String jenkinsDir,
+            boolean compressAgentJar) {
+        if (!singleSessionLaunch) {
+            return false;
+        }
+        Session sess = null;
+        try {
+            AgentJar agentJar = AgentJar.get();
+            Optional<String> launchString = compressAgentJar
+                    ? getCompressedSingleSessionLaunchString(
+                            javaExecPath, jenkinsDir, agentJar.getCompressed().length, agentJar.getSha256())
+                    : getSingleSessionLaunchString(javaExecPath, jenkinsDir, agentJar.getContent().length);
+            if (!launchString.isPresent()) {
+                return false;
+            }
+            logInfo(computer, listener, "Launching Jenkins agent via single SSH session: " + launchString.get());
+            sess = conn.openSession();
+            sess.execCommand(launchString.get());
+            InputStream stdout = sess.getStdout();
+            OutputStream stdin = sess.getStdin();
+            long startTime = System.currentTimeMillis();
+            byte[] payload = agentJar.getContent();
+            if (compressAgentJar) {
+                payload = SEND_AGENT_JAR.equals(readTransferMode(stdout)) ? agentJar.getCompressed() : new byte[0];
+            }
+            stdin.write(payload);
+            stdin.flush();
+            logTransfer(
+                    computer,
+                    listener,
+                    payload.length,
+                    agentJar.getContent().length,
+                    System.currentTimeMillis() - startTime);
+            Session finalSess = sess;
+            computer.setChannel(stdout, stdin, listener.getLogger(), new Channel.Listener() {
+                @Override
+                public void onClosed(Channel channel, IOException cause) {
+                    finalSess.close();
+                    conn.close();
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            if (sess != null) {
+                sess.close();
+            }
+            logException(computer, listener, "Single session launch failed, falling back to separate sessions: ", e);
+            return false;
+        }
+    }
+
+    /** Reads stdout lines until the bootstrap command announces whether agent.jar is needed. */
+    private static String readTransferMode(InputStream stdout) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = stdout.read()) != -1) {
+            if (c != '\n') {
+                line.append((char) c);
+                continue;
+            }
+            String mode = line.toString().trim();
+            if (SEND_AGENT_JAR.equals(mode) || SKIP_AGENT_JAR.equals(mode)) {
+                return mode;
+            }
+            line.setLength(0);
+        }
+        throw new EOFException("Agent closed the session before agent.jar could be sent");
+    }
+
     private void launch(ComputeEngineComputer computer, TaskListener listener) {
         ComputeEngineInstance node = computer.getNode();
         if (node == null) {
@@ -292,10 +481,17 @@ public abstract class ComputeEngineComputerLauncher extends ComputerLauncher {
             }
             conn = cleanupConn.get();
             String javaExecPath = node.getJavaExecPathOrDefault();
+            String jenkinsDir = node.getRemoteFS();
+            if (!mountDisks(computer, conn, logger, listener, node)) {
+                return;
+            }
+            if (launchInSingleSession(
+                    computer, conn, listener, javaExecPath, jenkinsDir, node.isCompressAgentJar())) {
+                return;
+            }
             if (!checkJavaInstalled(computer, conn, logger, listener, javaExecPath)) {
                 return;
             }
-            String jenkinsDir = node.getRemoteFS();
             copyAgentJar(computer, conn, listener, jenkinsDir);
             String launchString = getJavaLaunchString(javaExecPath, jenkinsDir);
             logInfo(computer, listener, "Launching Jenkins agent via plugin SSH: " + launchString);
@@ -16,7 +16,6 @@
 
 package com.google.jenkins.plugins.computeengine;
 
-import com.google.cloud.graphite.platforms.plugin.client.ComputeClient.OperationException;
 import com.google.common.base.Strings;
 import com.google.jenkins.plugins.computeengine.ssh.GoogleKeyCredential;
 import edu.umd.cs.findbugs.annotations.Nullable;
@@ -30,6 +29,7 @@ import hudson.slaves.ComputerLauncher;
 import hudson.slaves.RetentionStrategy;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,12 +52,21 @@ public class ComputeEngineInstance extends AbstractCloudSlave {
     private final SshConfiguration sshConfig;
     private final boolean createSnapshot;
     private final boolean oneShot;
+    private final boolean preemptible;
     private final boolean ignoreProxy;
+    private final boolean compressAgentJar;
     private final String javaExecPath;
     private final GoogleKeyCredential sshKeyCredential;
+    private final List<DiskMount> diskMounts;
+    private final String configName;
+    /** Partial URL of the managed instance group that created the instance, if any. */
+    private final String managedInstanceGroup;
+    /** Image the boot disk of the instance was created from, if known. */
+    private final String sourceImage;
     private Integer launchTimeout; // Seconds
     private Boolean connected;
     private transient ComputeEngineCloud cloud;
+    private transient volatile boolean terminating;
 
     @Builder
     private ComputeEngineInstance(
@@ -72,7 +81,9 @@ public class ComputeEngineInstance extends AbstractCloudSlave {
             @Nullable SshConfiguration sshConfig,
             boolean createSnapshot,
             boolean oneShot,
+            boolean preemptible,
             boolean ignoreProxy,
+            boolean compressAgentJar,
             int numExecutors,
             Mode mode,
             String labelString,
@@ -82,6 +93,10 @@ public class ComputeEngineInstance extends AbstractCloudSlave {
             // NOTE(craigatgoogle): Could not use Optional due to serialization req.
             @Nullable String javaExecPath,
             @Nullable GoogleKeyCredential sshKeyCredential,
+            @Nullable List<DiskMount> diskMounts,
+            @Nullable String configName,
+            @Nullable String managedInstanceGroup,
+            @Nullable String sourceImage,
             @Nullable ComputeEngineCloud cloud)
             throws Descriptor.FormException, IOException {
         super(
@@ -102,9 +117,15 @@ public class ComputeEngineInstance extends AbstractCloudSlave {
         this.sshConfig = sshConfig;
         this.createSnapshot = createSnapshot;
         this.oneShot = oneShot;
+        this.preemptible = preemptible;
         this.ignoreProxy = ignoreProxy;
+        this.compressAgentJar = compressAgentJar;
         this.javaExecPath = javaExecPath;
         this.sshKeyCredential = sshKeyCredential;
+        this.diskMounts = diskMounts;
+        this.configName = configName;
+        this.managedInstanceGroup = managedInstanceGroup;
+        this.sourceImage = sourceImage;
         this.cloud = cloud;
     }
 
@@ -115,6 +136,8 @@ public class ComputeEngineInstance extends AbstractCloudSlave {
 
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
+        terminating = true;
+        ProvisioningJournal.get().remove(name);
         try {
             ComputeEngineCloud cloud = getCloud();
 
@@ -123,23 +146,61 @@ public class ComputeEngineInstance extends AbstractCloudSlave {
                     && this.createSnapshot
                     && computer != null
                     && !computer.getBuilds().failureOnly().isEmpty()) {
-                LOGGER.log(Level.INFO, "Creating snapshot for node ... " + this.getNodeName());
+                LOGGER.log(Level.INFO, "Queueing snapshot for node ... " + this.getNodeName());
                 long createSnapshotTimeout =
                         (windowsConfig != null) ? CREATE_SNAPSHOT_TIMEOUT_WINDOWS : CREATE_SNAPSHOT_TIMEOUT_LINUX;
-                cloud.getClient()
-                        .createSnapshotSync(cloud.getProjectId(), this.zone, this.getNodeName(), createSnapshotTimeout);
+                // The worker deletes the instance once its disk is captured.
+                if (SnapshotWorker.submit(this, cloud, createSnapshotTimeout)) {
+                    return;
+                }
             }
 
-            // If the instance is running, attempt to terminate it. This is an async call and we
-            // return immediately, hoping for the best.
-            cloud.getClient().terminateInstanceAsync(cloud.getProjectId(), zone, name);
+            deleteInstance(cloud);
         } catch (CloudNotFoundException cnfe) {
             listener.error(cnfe.getMessage());
-        } catch (OperationException oe) {
-            listener.error(oe.getError().toPrettyString());
         }
     }
 
+    /**
+     * Queues the deletion of the instance of this agent, then returns its pooled disks once it is
+     * gone, as they can't be attached to another instance before that.
+     *
+     * @param cloud Cloud of this agent.
+     */
+    void deleteInstance(ComputeEngineCloud cloud) {
+        TerminationQueue queue = TerminationQueue.get();
+        queue.submit(cloud, zone, name, managedInstanceGroup);
+        if (getDiskMounts().stream().anyMatch(DiskMount::isPooled)) {
+            DiskPool.releaseWhenGone(getDiskMounts(), queue.whenGone(cloud, zone, name));
+        }
+    }
+
+    /**
+     * Returns the instance configuration this agent was provisioned from.
+     *
+     * @return The instance configuration, or empty if it no longer exists or is unknown.
+     */
+    public Optional<InstanceConfiguration> getConfiguration() {
+        if (configName == null) {
+            return Optional.empty();
+        }
+        try {
+            List<InstanceConfiguration> configurations = getCloud().getConfigurations();
+            return configurations == null
+                    ? Optional.empty()
+                    : configurations.stream()
+                            .filter(config -> configName.equals(config.getNamePrefix()))
+                            .findFirst();
+        } catch (CloudNotFoundException cnfe) {
+            return Optional.empty();
+        }
+    }
+
+    /** @return The data disks mounted on this agent. */
+    public List<DiskMount> getDiskMounts() {
+        return diskMounts != null ? diskMounts : Collections.emptyList();
+    }
+
     public void onConnected() {
         this.connected = true;
     }
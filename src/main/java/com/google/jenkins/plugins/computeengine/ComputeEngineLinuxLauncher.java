@@ -24,8 +24,10 @@ import com.trilead.ssh2.Connection;
 import hudson.model.TaskListener;
 import hudson.util.Secret;
 import java.io.IOException;
+import java.util.List;
 import java.util.Optional;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class ComputeEngineLinuxLauncher extends ComputeEngineComputerLauncher {
     private static final Logger LOGGER = Logger.getLogger(ComputeEngineLinuxLauncher.class.getName());
@@ -119,4 +121,44 @@ public class ComputeEngineLinuxLauncher extends ComputeEngineComputerLauncher {
     protected String getPathSeparator() {
         return "/";
     }
+
+    @Override
+    protected Optional<String> getMountDisksCommand(List<DiskMount> mounts, String user) {
+        return Optional.of(mounts.stream()
+                .map(mount -> String.format(
+                        "sudo mkdir -p %2$s && "
+                                + "(sudo blkid %1$s > /dev/null || sudo mkfs.ext4 -q -m 0 -E discard %1$s) && "
+                                + "(mountpoint -q %2$s || sudo mount -o discard,defaults %1$s %2$s) && "
+                                + "sudo chown %3$s: %2$s",
+                        mount.getDevicePath(), mount.getMountPath(), user))
+                .collect(Collectors.joining(" && ")));
+    }
+
+    @Override
+    protected Optional<String> getSingleSessionLaunchString(
+            String javaExecPath, String jenkinsDir, int agentJarLength) {
+        String agentJar = jenkinsDir + getPathSeparator() + AGENT_JAR;
+        return Optional.of(String.format(
+                "%1$s -fullversion && mkdir -p %2$s && head -c %3$d > %4$s && exec %1$s -jar %4$s",
+                javaExecPath, jenkinsDir, agentJarLength, agentJar));
+    }
+
+    @Override
+    protected Optional<String> getCompressedSingleSessionLaunchString(
+            String javaExecPath, String jenkinsDir, int compressedLength, String sha256) {
+        String agentJar = jenkinsDir + getPathSeparator() + AGENT_JAR;
+        return Optional.of(String.format(
+                "%1$s -fullversion && mkdir -p %2$s && "
+                        + "if echo '%5$s  %4$s' | sha256sum -c --status 2>/dev/null; then echo %6$s; else "
+                        + "echo %7$s && head -c %3$d | gzip -dc > %4$s.tmp && "
+                        + "echo '%5$s  %4$s.tmp' | sha256sum -c --status && mv -f %4$s.tmp %4$s; fi && "
+                        + "exec %1$s -jar %4$s",
+                javaExecPath,
+                jenkinsDir,
+                compressedLength,
+                agentJar,
+                sha256,
+                SKIP_AGENT_JAR,
+                SEND_AGENT_JAR));
+    }
 }
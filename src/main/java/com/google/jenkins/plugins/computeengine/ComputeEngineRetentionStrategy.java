@@ -15,18 +15,23 @@
  */
 package com.google.jenkins.plugins.computeengine;
 
-import com.google.common.collect.ImmutableList;
 import hudson.model.Action;
 import hudson.model.Cause;
 import hudson.model.CauseAction;
 import hudson.model.Executor;
 import hudson.model.ExecutorListener;
-import hudson.model.Job;
+import hudson.model.InvisibleAction;
+import hudson.model.ParametersAction;
 import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.WorkUnit;
 import hudson.security.ACL;
 import hudson.security.ACLContext;
 import hudson.slaves.RetentionStrategy;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import jenkins.model.Jenkins;
 import lombok.extern.java.Log;
@@ -41,6 +46,8 @@ public class ComputeEngineRetentionStrategy extends RetentionStrategy<ComputeEng
         implements ExecutorListener {
     private final OnceRetentionStrategy delegate;
     private final boolean oneShot;
+    private final int retentionTimeMinutes;
+    private final int idleBudgetMinutes;
 
     /**
      * Creates the retention strategy.
@@ -50,12 +57,50 @@ public class ComputeEngineRetentionStrategy extends RetentionStrategy<ComputeEng
      * @param oneShot Create one shot instance strategy.
      */
     ComputeEngineRetentionStrategy(int retentionTimeMinutes, boolean oneShot) {
+        this(retentionTimeMinutes, oneShot, 0);
+    }
+
+    /**
+     * Creates the retention strategy.
+     *
+     * @param retentionTimeMinutes Number of minutes of idleness after which to kill the agent; serves
+     *     a backup in case the strategy fails to detect the end of a task.
+     * @param oneShot Create one shot instance strategy.
+     * @param idleBudgetMinutes Number of minutes past the retention time an idle agent may be kept
+     *     for recent demand, see {@link IdleRetention}.
+     */
+    ComputeEngineRetentionStrategy(int retentionTimeMinutes, boolean oneShot, int idleBudgetMinutes) {
         this.oneShot = oneShot;
+        this.retentionTimeMinutes = retentionTimeMinutes;
+        this.idleBudgetMinutes = idleBudgetMinutes;
         delegate = new OnceRetentionStrategy(retentionTimeMinutes);
     }
 
     @Override
     public long check(ComputeEngineComputer c) {
+        ComputeEngineInstance node = c.getNode();
+        if (!oneShot && node != null && c.isOnline() && CapacityPlanner.reclaims(c)) {
+            log.info(String.format("Deleting idle agent %s for builds of a higher priority", c.getName()));
+            try {
+                node.terminate();
+            } catch (IOException | InterruptedException e) {
+                log.log(Level.WARNING, "Failed to delete idle agent " + c.getName(), e);
+            }
+            return 1;
+        }
+        IdleRetention retention = oneShot || idleBudgetMinutes <= 0 ? null : IdleRetention.of(node);
+        if (retention != null) {
+            long now = System.currentTimeMillis();
+            long retentionMillis = TimeUnit.MINUTES.toMillis(retentionTimeMinutes);
+            long budgetMillis = TimeUnit.MINUTES.toMillis(idleBudgetMinutes);
+            retention.sample(budgetMillis, now);
+            if (c.isIdle()
+                    && c.isOnline()
+                    && now - c.getIdleStartMilliseconds() > retentionMillis
+                    && retention.keep(c, retentionMillis, budgetMillis, now)) {
+                return 1;
+            }
+        }
         return delegate.check(c);
     }
 
@@ -66,6 +111,15 @@ public class ComputeEngineRetentionStrategy extends RetentionStrategy<ComputeEng
 
     @Override
     public void taskAccepted(Executor executor, Queue.Task task) {
+        ComputeEngineInstance node = ((ComputeEngineComputer) executor.getOwner()).getNode();
+        if (node != null) {
+            DiskPool.recordUse(node, task);
+            JobAffinityDispatcher.get().recordUse(node, task);
+            IdleRetention retention = IdleRetention.of(node);
+            if (retention != null) {
+                retention.taskAccepted((ComputeEngineComputer) executor.getOwner());
+            }
+        }
         if (oneShot) {
             // When a oneshot instance is used only one task is run, so better not accept more.
             synchronized (this) {
@@ -80,9 +134,8 @@ public class ComputeEngineRetentionStrategy extends RetentionStrategy<ComputeEng
 
     @Override
     public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
-        if (wasPreempted(executor)) {
-            rescheduleTask(task);
-        }
+        recordRun(executor);
+        rescheduleIfPreempted(executor, task);
         if (oneShot) {
             delegate.taskCompleted(executor, task, durationMS);
         }
@@ -90,14 +143,21 @@ public class ComputeEngineRetentionStrategy extends RetentionStrategy<ComputeEng
 
     @Override
     public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
-        if (wasPreempted(executor)) {
-            rescheduleTask(task);
-        }
+        recordRun(executor);
+        rescheduleIfPreempted(executor, task);
         if (oneShot) {
             delegate.taskCompletedWithProblems(executor, task, durationMS, problems);
         }
     }
 
+    /** Records the build of the task that completed, which for Pipeline is not a build of the agent. */
+    private static void recordRun(Executor executor) {
+        Run<?, ?> run = findRun(executor.getCurrentExecutable());
+        if (run != null) {
+            ((ComputeEngineComputer) executor.getOwner()).setLastRun(run);
+        }
+    }
+
     private Queue.Task getBaseTask(Queue.Task task) {
         Queue.Task parent = task.getOwnerTask();
         while (task != parent) {
@@ -107,33 +167,96 @@ public class ComputeEngineRetentionStrategy extends RetentionStrategy<ComputeEng
         return parent;
     }
 
-    private boolean wasPreempted(Executor executor) {
-        ComputeEngineComputer computer = (ComputeEngineComputer) executor.getOwner();
-        final boolean preempted = computer.getPreempted();
-        return preempted;
+    /**
+     * Puts the task running on the executor of a preempted agent back in the queue. Called as soon as
+     * the preemption is noticed, so the task is rescheduled before the aborted build completes. The
+     * parameters and causes of the preempted build are carried over, and a build spanning several
+     * preempted executors is only rescheduled once.
+     *
+     * @param executor Executor of the preempted agent.
+     */
+    void reschedulePreempted(Executor executor) {
+        WorkUnit workUnit = executor.getCurrentWorkUnit();
+        if (workUnit != null) {
+            reschedule(executor, workUnit.work.getOwnerTask());
+        }
+    }
+
+    /**
+     * Puts a task that completed on a preempted agent back in the queue, unless it was rescheduled
+     * when the preemption was noticed. This is the fallback for a task the agent was still running
+     * when it went away before {@link #reschedulePreempted(Executor)} could be called.
+     */
+    private void rescheduleIfPreempted(Executor executor, Queue.Task task) {
+        if (((ComputeEngineComputer) executor.getOwner()).getPreempted()) {
+            reschedule(executor, task);
+        }
+    }
+
+    private void reschedule(Executor executor, Queue.Task task) {
+        Run<?, ?> run = findRun(executor.getCurrentExecutable());
+        if (run != null && !markRescheduled(run)) {
+            log.log(Level.FINE, run + " was already rescheduled after preemption");
+            return;
+        }
+        rescheduleTask(task, run);
+    }
+
+    private static Run<?, ?> findRun(Queue.Executable executable) {
+        while (executable != null && !(executable instanceof Run)) {
+            executable = executable.getParentExecutable();
+        }
+        return (Run<?, ?>) executable;
+    }
+
+    private static boolean markRescheduled(Run<?, ?> run) {
+        synchronized (run) {
+            if (run.getAction(RescheduledAction.class) != null) {
+                return false;
+            }
+            run.addAction(new RescheduledAction());
+            return true;
+        }
     }
 
-    private void rescheduleTask(Queue.Task task) {
+    private void rescheduleTask(Queue.Task task, Run<?, ?> run) {
         Queue.Task baseTask = getBaseTask(task);
         log.log(Level.INFO, baseTask + " was preempted, rescheduling");
-        List<Action> actions = generateActionsForTask(task);
+        List<Action> actions = generateActionsForTask(run);
         try (ACLContext notUsed = ACL.as(task.getDefaultAuthentication())) {
             Jenkins.get().getQueue().schedule2(baseTask, 0, actions);
         }
     }
 
-    private List<Action> generateActionsForTask(Queue.Task task) {
-        Queue.Task baseTask = getBaseTask(task);
-        try {
-            final Job job = (Job) baseTask;
-            final List causes = job.getLastBuild().getCauses();
-            log.log(Level.FINE, "Original causes: " + causes);
-        } catch (Exception e) {
-            log.log(Level.WARNING, "Exception for " + baseTask, e);
+    /**
+     * Returns the actions of the queue item that reschedules a preempted build: its parameters, its
+     * causes with a {@link RebuildCause}, and its preemption count, one more than the build's.
+     *
+     * @param run The preempted build, or null if it is not known.
+     */
+    static List<Action> generateActionsForTask(Run<?, ?> run) {
+        List<Action> actions = new ArrayList<>();
+        List<Cause> causes = new ArrayList<>();
+        int preemptions = 1;
+        if (run != null) {
+            causes.addAll(run.getCauses());
+            ParametersAction parameters = run.getAction(ParametersAction.class);
+            if (parameters != null) {
+                actions.add(new ParametersAction(parameters.getParameters()));
+            }
+            preemptions += PreemptionCountAction.preemptionsOf(run);
+        } else {
+            causes.add(new Cause.UserIdCause());
         }
-        return ImmutableList.of(new CauseAction(new Cause.UserIdCause()), new CauseAction(new RebuildCause()));
+        causes.add(new RebuildCause());
+        actions.add(new CauseAction(causes));
+        actions.add(new PreemptionCountAction(preemptions));
+        return actions;
     }
 
+    /** Marks a preempted build that was already put back in the queue. */
+    public static class RescheduledAction extends InvisibleAction {}
+
     public static class RebuildCause extends Cause {
         @Override
         public String getShortDescription() {
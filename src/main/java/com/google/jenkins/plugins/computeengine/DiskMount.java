@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import java.io.Serializable;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/** A data disk attached to an agent, formatted if needed and mounted before the agent starts. */
+@Getter
+@EqualsAndHashCode
+public class DiskMount implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    private final String devicePath;
+    private final String mountPath;
+
+    /** Pool the disk was leased from, or null if the disk is not pooled. */
+    @Nullable
+    private final String pool;
+
+    /** Name of the pooled disk, or null if the disk is not pooled. */
+    @Nullable
+    private final String diskName;
+
+    public DiskMount(String devicePath, String mountPath) {
+        this(devicePath, mountPath, null, null);
+    }
+
+    public DiskMount(String devicePath, String mountPath, @Nullable String pool, @Nullable String diskName) {
+        this.devicePath = devicePath;
+        this.mountPath = mountPath;
+        this.pool = pool;
+        this.diskName = diskName;
+    }
+
+    public boolean isPooled() {
+        return pool != null && diskName != null;
+    }
+}
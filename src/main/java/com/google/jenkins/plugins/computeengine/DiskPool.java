@@ -0,0 +1,212 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.model.Item;
+import hudson.model.Queue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+
+/**
+ * Tracks which disks of a {@link DiskPoolConfiguration} are leased to agents. Free disks are handed
+ * out warmest first: the disk last used by a waiting job when job affinity is enabled, otherwise
+ * the most recently released disk.
+ *
+ * <p>Leases are kept in memory. After a restart the disks still attached to existing agents are
+ * found from their {@link DiskMount}s. The disks of a deleted agent stay leased until its instance
+ * is gone.
+ */
+final class DiskPool {
+    private static final Map<String, DiskPool> POOLS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final LongSupplier clock;
+    private final Set<String> leased = new HashSet<>();
+    private final Map<String, Long> releasedAt = new HashMap<>();
+    private final Map<String, String> lastDiskOfJob = new HashMap<>();
+
+    DiskPool(String name) {
+        this(name, System::currentTimeMillis);
+    }
+
+    /**
+     * @param name Name of the pool.
+     * @param clock Time in milliseconds disks are released at.
+     */
+    DiskPool(String name, LongSupplier clock) {
+        this.name = name;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the pool of an instance configuration.
+     *
+     * @param cloud Cloud of the instance configuration.
+     * @param namePrefix Name prefix of the instance configuration.
+     * @return The pool.
+     */
+    static DiskPool of(ComputeEngineCloud cloud, String namePrefix) {
+        return of(cloud.getCloudName() + "/" + namePrefix);
+    }
+
+    static DiskPool of(String name) {
+        return POOLS.computeIfAbsent(name, DiskPool::new);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Leases a free disk.
+     *
+     * @param diskNames Names of all disks of the pool.
+     * @param jobs Jobs waiting for an agent, to prefer the disk one of them used last.
+     * @return The leased disk, or empty if all disks are in use.
+     */
+    synchronized Optional<String> lease(List<String> diskNames, Collection<String> jobs) {
+        Set<String> attached = attachedDisks();
+        List<String> free = diskNames.stream()
+                .filter(disk -> !leased.contains(disk) && !attached.contains(disk))
+                .collect(Collectors.toList());
+        if (free.isEmpty()) {
+            return Optional.empty();
+        }
+        String disk = jobs.stream()
+                .map(lastDiskOfJob::get)
+                .filter(free::contains)
+                .findFirst()
+                .orElseGet(() -> free.stream()
+                        .max(Comparator.comparingLong(d -> releasedAt.getOrDefault(d, 0L)))
+                        .get());
+        leased.add(disk);
+        return Optional.of(disk);
+    }
+
+    /**
+     * Cancels the lease of a disk that was not attached.
+     *
+     * @param disk Name of the disk.
+     */
+    synchronized void cancel(String disk) {
+        leased.remove(disk);
+    }
+
+    /**
+     * Returns a disk to the pool.
+     *
+     * @param disk Name of the disk.
+     * @param warm Whether the disk holds data worth reusing first.
+     */
+    synchronized void release(String disk, boolean warm) {
+        leased.remove(disk);
+        releasedAt.put(disk, warm ? clock.getAsLong() : 0L);
+    }
+
+    /**
+     * Records that a job ran on a disk of the pool.
+     *
+     * @param disk Name of the disk.
+     * @param job Full name of the job, see {@link #jobName(Queue.Task)}.
+     */
+    synchronized void recordUse(String disk, String job) {
+        lastDiskOfJob.put(job, disk);
+    }
+
+    /**
+     * Returns the name used to match a task with the disk its job used last.
+     *
+     * @param task The task, for example a job or a Pipeline {@code node} block.
+     * @return Full name of the job owning the task.
+     */
+    static String jobName(Queue.Task task) {
+        Queue.Task owner = task.getOwnerTask();
+        while (owner != task) {
+            task = owner;
+            owner = task.getOwnerTask();
+        }
+        return task instanceof Item ? ((Item) task).getFullName() : task.getFullDisplayName();
+    }
+
+    /**
+     * Records the pooled disks of the agent as used by the task.
+     *
+     * @param node The agent.
+     * @param task The task it accepted.
+     */
+    static void recordUse(ComputeEngineInstance node, Queue.Task task) {
+        for (DiskMount mount : node.getDiskMounts()) {
+            if (mount.isPooled()) {
+                of(mount.getPool()).recordUse(mount.getDiskName(), jobName(task));
+            }
+        }
+    }
+
+    /**
+     * Returns the pooled disks of a deleted agent to their pools.
+     *
+     * @param mounts Disks of the agent.
+     * @param warm Whether the disks were detached cleanly and hold data worth reusing first.
+     */
+    static void release(Collection<DiskMount> mounts, boolean warm) {
+        for (DiskMount mount : mounts) {
+            if (mount.isPooled()) {
+                of(mount.getPool()).release(mount.getDiskName(), warm);
+            }
+        }
+    }
+
+    /**
+     * Returns the pooled disks of a deleted agent to their pools once its instance is gone. Until
+     * then, including while a failed delete waits to be retried, the disks stay leased, as they are
+     * still attached to the instance.
+     *
+     * @param mounts Disks of the agent.
+     * @param gone Completed with whether the disks hold data worth reusing first once the instance
+     *     is gone, see {@link TerminationQueue#whenGone}.
+     */
+    static void releaseWhenGone(Collection<DiskMount> mounts, CompletableFuture<Boolean> gone) {
+        gone.thenAccept(warm -> release(mounts, warm));
+    }
+
+    private Set<String> attachedDisks() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return new HashSet<>();
+        }
+        List<DiskMount> mounts = new ArrayList<>();
+        jenkins.getNodes().stream()
+                .filter(node -> node instanceof ComputeEngineInstance)
+                .forEach(node -> mounts.addAll(((ComputeEngineInstance) node).getDiskMounts()));
+        return mounts.stream()
+                .filter(mount -> name.equals(mount.getPool()))
+                .map(DiskMount::getDiskName)
+                .collect(Collectors.toSet());
+    }
+}
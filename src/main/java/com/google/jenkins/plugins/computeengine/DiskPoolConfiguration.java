@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.Jenkins;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * A pool of named persistent disks shared by the agents of an instance configuration. Each new agent
+ * is attached a free disk of the pool, which is returned to the pool when the agent is deleted, so
+ * caches and workspaces stored on it survive the agent.
+ */
+@Getter
+@EqualsAndHashCode
+public class DiskPoolConfiguration implements Describable<DiskPoolConfiguration> {
+    public static final String DEVICE_NAME = "jenkins-pool";
+    public static final String DEFAULT_DISK_TYPE = "pd-balanced";
+    public static final String DEFAULT_MOUNT_PATH = "/var/lib/jenkins-pool";
+    public static final Integer DEFAULT_POOL_SIZE = 1;
+    public static final Long DEFAULT_DISK_SIZE_GB = 50L;
+
+    private final String poolSizeStr;
+    private final String diskSizeGbStr;
+    private final String diskType;
+    private final String mountPath;
+
+    @Setter(onMethod = @__(@DataBoundSetter))
+    private String sourceSnapshot;
+
+    @Setter(onMethod = @__(@DataBoundSetter))
+    private boolean jobAffinity;
+
+    @DataBoundConstructor
+    public DiskPoolConfiguration(String poolSizeStr, String diskSizeGbStr, String diskType, String mountPath) {
+        this.poolSizeStr = poolSizeStr;
+        this.diskSizeGbStr = diskSizeGbStr;
+        this.diskType = diskType;
+        this.mountPath = mountPath;
+    }
+
+    public int poolSize() {
+        return InstanceConfiguration.intOrDefault(poolSizeStr, DEFAULT_POOL_SIZE);
+    }
+
+    public long diskSizeGb() {
+        return InstanceConfiguration.longOrDefault(diskSizeGbStr, DEFAULT_DISK_SIZE_GB);
+    }
+
+    public String diskType() {
+        return diskType == null || diskType.isEmpty() ? DEFAULT_DISK_TYPE : diskType;
+    }
+
+    public String mountPath() {
+        return mountPath == null || mountPath.isEmpty() ? DEFAULT_MOUNT_PATH : mountPath;
+    }
+
+    /**
+     * Returns the names of all disks of the pool, which are derived from the name prefix of the
+     * instance configuration.
+     *
+     * @param namePrefix Name prefix of the instance configuration.
+     * @return Names of the disks of the pool.
+     */
+    public List<String> diskNames(String namePrefix) {
+        String prefix = namePrefix.endsWith("-") ? namePrefix : namePrefix + "-";
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < poolSize(); i++) {
+            names.add(prefix + "pool-" + i);
+        }
+        return names;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Descriptor<DiskPoolConfiguration> getDescriptor() {
+        return Jenkins.get().getDescriptor(getClass());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d x %dGB %s (%s)", poolSize(), diskSizeGb(), diskType(), mountPath());
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<DiskPoolConfiguration> {
+        public static String defaultPoolSizeStr() {
+            return DEFAULT_POOL_SIZE.toString();
+        }
+
+        public static String defaultDiskSizeGbStr() {
+            return DEFAULT_DISK_SIZE_GB.toString();
+        }
+
+        public static String defaultDiskType() {
+            return DEFAULT_DISK_TYPE;
+        }
+
+        public static String defaultMountPath() {
+            return DEFAULT_MOUNT_PATH;
+        }
+
+        public FormValidation doCheckPoolSizeStr(@QueryParameter String value) {
+            if (InstanceConfiguration.intOrDefault(value, DEFAULT_POOL_SIZE) < 1) {
+                return FormValidation.error(Messages.DiskPoolConfiguration_PoolSizeLessThanOneError());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import org.jenkinsci.Symbol;
+
+/**
+ * Periodically adjusts the number of executors of running agents from the CPU and memory load of
+ * their instance, for the instance configurations that set a maximum number of executors. Agents
+ * that are busy on an instance with spare capacity get more executors, so fewer instances are
+ * needed, and agents of overloaded instances get fewer.
+ */
+@Extension
+@Symbol("executorScalingWork")
+public class ExecutorScalingWork extends AsyncPeriodicWork {
+    private static final long RECURRENCE_PERIOD = Long.getLong(
+            "com.google.jenkins.plugins.computeengine.ExecutorScalingWork.recurrencePeriod", MIN);
+    /** Below this CPU load, an instance whose executors are all busy can take another build. */
+    static final double SCALE_UP_CPU_LOAD = 0.6;
+    /** Above this CPU load, an instance runs too many builds. */
+    static final double SCALE_DOWN_CPU_LOAD = 0.9;
+    /**
+     * Below this share of free memory, an instance runs too many builds. Memory used by the page
+     * cache counts as free, as the kernel reclaims it for builds that need it.
+     */
+    static final double MIN_FREE_MEMORY = 0.1;
+    /** Above this share of free memory, an instance can take another build. */
+    static final double SCALE_UP_FREE_MEMORY = 0.3;
+    /** Weight of the last sample in the load of an instance, which smooths out short spikes. */
+    private static final double SAMPLE_WEIGHT = 0.5;
+
+    private final Map<String, Load> loads = new ConcurrentHashMap<>();
+
+    public ExecutorScalingWork() {
+        super("Google Compute Engine executor scaling");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Set<String> sampled = new HashSet<>();
+        for (Computer c : Jenkins.get().getComputers()) {
+            if (!(c instanceof ComputeEngineComputer) || !c.isOnline()) {
+                continue;
+            }
+            ComputeEngineComputer computer = (ComputeEngineComputer) c;
+            ComputeEngineInstance node = computer.getNode();
+            VirtualChannel channel = computer.getChannel();
+            if (node == null || node.isTerminating() || computer.getPreempted() || channel == null) {
+                continue;
+            }
+            int max = node.getConfiguration().map(InstanceConfiguration::getMaxExecutors).orElse(0);
+            if (max <= 0) {
+                continue;
+            }
+            Load load;
+            try {
+                load = loads.merge(node.getNodeName(), channel.call(new SampleLoad()), Load::smooth);
+            } catch (IOException ioe) {
+                ComputeEngineCloud.log(
+                        logger, Level.FINE, listener, "Failed to sample load of " + node.getNodeName(), ioe);
+                continue;
+            }
+            sampled.add(node.getNodeName());
+            int current = computer.getNumExecutors();
+            int scaled = scaledExecutors(current, computer.countBusy(), max, load);
+            if (scaled != current) {
+                ComputeEngineCloud.log(
+                        logger,
+                        Level.INFO,
+                        listener,
+                        String.format(
+                                "Scaling executors of %s from %d to %d at CPU load %.2f and free memory %.2f",
+                                node.getNodeName(), current, scaled, load.cpu, load.freeMemory));
+                node.setNumExecutors(scaled);
+                Jenkins.get().updateNode(node);
+            }
+        }
+        loads.keySet().retainAll(sampled);
+    }
+
+    /**
+     * Number of executors of an agent for the load of its instance. Executors are added or removed
+     * one at a time, as the load only shows the effect of a change once builds use them.
+     *
+     * @param current Number of executors of the agent.
+     * @param busy Number of busy executors of the agent.
+     * @param max Most executors the agent may have.
+     * @param load Load of the instance of the agent.
+     * @return The new number of executors, between 1 and max.
+     */
+    static int scaledExecutors(int current, int busy, int max, Load load) {
+        int scaled = current;
+        if (load.cpu > SCALE_DOWN_CPU_LOAD || load.freeMemory < MIN_FREE_MEMORY) {
+            scaled = current - 1;
+        } else if (busy >= current && load.cpu < SCALE_UP_CPU_LOAD && load.freeMemory > SCALE_UP_FREE_MEMORY) {
+            scaled = current + 1;
+        }
+        return Math.max(1, Math.min(max, scaled));
+    }
+
+    /** CPU load, from 0 to 1, and share of free memory of an instance. */
+    static final class Load implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final double cpu;
+        final double freeMemory;
+
+        Load(double cpu, double freeMemory) {
+            this.cpu = cpu;
+            this.freeMemory = freeMemory;
+        }
+
+        private static Load smooth(Load previous, Load sample) {
+            return new Load(
+                    previous.cpu + SAMPLE_WEIGHT * (sample.cpu - previous.cpu),
+                    previous.freeMemory + SAMPLE_WEIGHT * (sample.freeMemory - previous.freeMemory));
+        }
+    }
+
+    /**
+     * Returns the share of memory available for new processes from the contents of {@code
+     * /proc/meminfo}. Unlike free memory, available memory includes the page cache the kernel can
+     * reclaim, which on a build agent often fills most of the memory.
+     *
+     * @param meminfo Lines of {@code /proc/meminfo}.
+     * @return The share of available memory, or empty if it is not reported, as on kernels before
+     *     3.14.
+     */
+    static OptionalDouble availableMemory(List<String> meminfo) {
+        long total = 0;
+        long available = -1;
+        for (String line : meminfo) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 2) {
+                continue;
+            }
+            try {
+                if (fields[0].equals("MemTotal:")) {
+                    total = Long.parseLong(fields[1]);
+                } else if (fields[0].equals("MemAvailable:")) {
+                    available = Long.parseLong(fields[1]);
+                }
+            } catch (NumberFormatException e) {
+                return OptionalDouble.empty();
+            }
+        }
+        return total > 0 && available >= 0 ? OptionalDouble.of((double) available / total) : OptionalDouble.empty();
+    }
+
+    /** Samples the load of the instance an agent runs on. */
+    private static final class SampleLoad extends MasterToSlaveCallable<Load, IOException> {
+        private static final long serialVersionUID = 1L;
+        private static final Path MEMINFO = Paths.get("/proc/meminfo");
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Load call() {
+            com.sun.management.OperatingSystemMXBean os =
+                    (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            return new Load(Math.max(0, os.getSystemCpuLoad()), freeMemory(os));
+        }
+
+        /** Available memory from the kernel, falling back to free memory where it is not reported. */
+        @SuppressWarnings("deprecation")
+        private static double freeMemory(com.sun.management.OperatingSystemMXBean os) {
+            try {
+                if (Files.isReadable(MEMINFO)) {
+                    OptionalDouble available = availableMemory(Files.readAllLines(MEMINFO, StandardCharsets.US_ASCII));
+                    if (available.isPresent()) {
+                        return available.getAsDouble();
+                    }
+                }
+            } catch (IOException e) {
+                // Fall back to free memory
+            }
+            long totalMemory = os.getTotalPhysicalMemorySize();
+            return totalMemory > 0 ? (double) os.getFreePhysicalMemorySize() / totalMemory : 1;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.cloud.graphite.platforms.plugin.client.util.ClientUtil.nameFromSelfLink;
+
+import com.google.api.services.compute.model.Quota;
+import com.google.api.services.compute.model.Region;
+import com.google.common.base.Strings;
+import hudson.model.Label;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+
+/**
+ * Routes provisioning between the clouds of a federation, clouds that share a {@link
+ * ComputeEngineCloud#getFederation()} name, each with its own project, regions, credentials and
+ * instance cap. Clouds with headroom, the fewest of their spare instance cap and their regional
+ * quota, come first. Among those, the ones whose agents come online fastest come first, then the
+ * roomiest. Each cloud provisions the part of the workload that the clouds before it can't cover.
+ */
+final class Federation {
+    private static final Logger LOGGER = Logger.getLogger(Federation.class.getName());
+
+    /** How long the instance count and quotas of a cloud are used before they are looked up again. */
+    static final long INVENTORY_MAX_AGE = Long.getLong(
+            "com.google.jenkins.plugins.computeengine.Federation.inventoryMaxAge", 30 * 1000L);
+    /** Weight of the last launch in the launch time of a cloud. */
+    private static final double LAUNCH_WEIGHT = 0.3;
+
+    private static final Map<String, Backend> BACKENDS = new ConcurrentHashMap<>();
+
+    private Federation() {}
+
+    /** Live capacity and launch times of one cloud of a federation. */
+    static final class Backend {
+        /** Instances the cloud may still create, within its instance cap and regional quota. */
+        volatile int headroom = Integer.MAX_VALUE;
+        /** Number of instances of the cloud. */
+        volatile int instances;
+        /** Smoothed time for agents of the cloud to come online, 0 if no agent was launched yet. */
+        volatile long launchMillis;
+
+        volatile long refreshedAt;
+    }
+
+    static Backend backend(ComputeEngineCloud cloud) {
+        return BACKENDS.computeIfAbsent(cloud.getCloudName(), name -> new Backend());
+    }
+
+    /** @return The clouds of a federation. */
+    static List<ComputeEngineCloud> members(String federation) {
+        List<ComputeEngineCloud> members = new ArrayList<>();
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof ComputeEngineCloud
+                    && federation.equals(((ComputeEngineCloud) cloud).getFederation())) {
+                members.add((ComputeEngineCloud) cloud);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Orders the clouds of a federation that can provision a label, those to provision from first.
+     *
+     * @param members Clouds of the federation.
+     * @param label Label to provision agents for.
+     * @return The clouds that can provision the label, preferred first.
+     */
+    static List<ComputeEngineCloud> route(List<ComputeEngineCloud> members, Label label) {
+        List<ComputeEngineCloud> candidates =
+                members.stream().filter(cloud -> cloud.canProvision(label)).collect(Collectors.toList());
+        candidates.forEach(cloud -> refresh(cloud, label));
+        candidates.sort(preference());
+        return candidates;
+    }
+
+    /**
+     * Clouds with headroom first, then those whose agents come online faster, then the roomiest.
+     * Clouds without a launch yet come after those whose launch time is known.
+     */
+    static Comparator<ComputeEngineCloud> preference() {
+        return Comparator.<ComputeEngineCloud>comparingInt(cloud -> backend(cloud).headroom > 0 ? 0 : 1)
+                .thenComparingLong(cloud -> {
+                    long launchMillis = backend(cloud).launchMillis;
+                    return launchMillis > 0 ? launchMillis : Long.MAX_VALUE;
+                })
+                .thenComparing(Comparator.<ComputeEngineCloud>comparingInt(cloud -> backend(cloud).headroom)
+                        .reversed());
+    }
+
+    /**
+     * Returns the part of a workload a cloud of a federation provisions: what the clouds preferred
+     * over it can't cover with their headroom. The workload spills over to the next cloud once the
+     * preferred ones are full.
+     *
+     * @param cloud Cloud to provision from.
+     * @param label Label to provision agents for.
+     * @param excessWorkload Workload to provision, in executors.
+     * @return The workload for the cloud, the whole workload if the cloud is not federated.
+     */
+    static int share(ComputeEngineCloud cloud, Label label, int excessWorkload) {
+        if (Strings.isNullOrEmpty(cloud.getFederation())) {
+            return excessWorkload;
+        }
+        long remaining = excessWorkload;
+        for (ComputeEngineCloud preferred : route(members(cloud.getFederation()), label)) {
+            if (preferred == cloud || remaining <= 0) {
+                break;
+            }
+            remaining -= (long) backend(preferred).headroom * minExecutors(preferred, label);
+        }
+        return (int) Math.max(0, remaining);
+    }
+
+    /** Fewest executors of the agents a cloud provisions for a label. */
+    private static int minExecutors(ComputeEngineCloud cloud, Label label) {
+        try {
+            return cloud.getInstanceConfigurations(label).stream()
+                    .mapToInt(config -> Math.max(1, config.getNumExecutors()))
+                    .min()
+                    .orElse(1);
+        } catch (NoConfigurationException nce) {
+            return 1;
+        }
+    }
+
+    /**
+     * Orders the clouds of each federation among the positions they hold in a list of clouds, those
+     * to provision a label from first.
+     */
+    static void order(List<Cloud> clouds, Label label) {
+        Map<String, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < clouds.size(); i++) {
+            Cloud cloud = clouds.get(i);
+            if (cloud instanceof ComputeEngineCloud) {
+                String federation = ((ComputeEngineCloud) cloud).getFederation();
+                if (!Strings.isNullOrEmpty(federation)) {
+                    positions.computeIfAbsent(federation, key -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+        positions.values().forEach(indices -> {
+            List<ComputeEngineCloud> members = indices.stream()
+                    .map(i -> (ComputeEngineCloud) clouds.get(i))
+                    .collect(Collectors.toList());
+            List<ComputeEngineCloud> routed = route(members, label);
+            // Clouds that can't provision the label come last
+            members.removeAll(routed);
+            routed.addAll(members);
+            for (int i = 0; i < indices.size(); i++) {
+                clouds.set(indices.get(i), routed.get(i));
+            }
+        });
+    }
+
+    /** Records how long an agent of a cloud took to come online. */
+    static void recordLaunch(ComputeEngineCloud cloud, long millis) {
+        Backend backend = backend(cloud);
+        long previous = backend.launchMillis;
+        backend.launchMillis =
+                Math.max(1, previous == 0 ? millis : (long) (previous + LAUNCH_WEIGHT * (millis - previous)));
+    }
+
+    /** Records an agent of a cloud that did not come online, as a launch that took the whole timeout. */
+    static void recordFailedLaunch(ComputeEngineCloud cloud, long timeoutMillis) {
+        recordLaunch(cloud, timeoutMillis);
+    }
+
+    /**
+     * Records the instances a cloud is creating, which use its headroom until it is looked up
+     * again, so that the next provisioning round spills over to the next cloud once it is full.
+     */
+    static void provisioned(ComputeEngineCloud cloud, int count) {
+        Backend backend = backend(cloud);
+        if (backend.headroom != Integer.MAX_VALUE) {
+            backend.headroom = Math.max(0, backend.headroom - count);
+        }
+        backend.instances += count;
+    }
+
+    /** @return Number of instances of the clouds of a federation, as last looked up. */
+    static int instances(String federation) {
+        return members(federation).stream()
+                .mapToInt(cloud -> backend(cloud).instances)
+                .sum();
+    }
+
+    /** Looks up the instance count and quota headroom of a cloud, unless looked up recently. */
+    private static void refresh(ComputeEngineCloud cloud, Label label) {
+        Backend backend = backend(cloud);
+        long now = System.currentTimeMillis();
+        if (now - backend.refreshedAt < INVENTORY_MAX_AGE) {
+            return;
+        }
+        backend.refreshedAt = now;
+        try {
+            int capacity = cloud.availableNodeCapacity();
+            backend.instances = cloud.getInstanceCap() - capacity;
+            backend.headroom = Math.min(capacity, quotaHeadroom(cloud, label));
+        } catch (IOException | NoConfigurationException e) {
+            LOGGER.log(Level.WARNING, "Error looking up the capacity of cloud " + cloud.getCloudName(), e);
+            backend.headroom = 0;
+        }
+    }
+
+    /**
+     * Number of instances of the configurations for a label that the regional quotas of a cloud
+     * still allow, in the region that allows the most.
+     */
+    private static int quotaHeadroom(ComputeEngineCloud cloud, Label label)
+            throws IOException, NoConfigurationException {
+        List<InstanceConfiguration> configs = cloud.getInstanceConfigurations(label);
+        Set<String> regions = configs.stream()
+                .map(config -> nameFromSelfLink(config.getRegion()))
+                .collect(Collectors.toSet());
+        int vcpus = configs.stream()
+                .mapToInt(config -> Math.max(1, InstanceConfiguration.vcpusOf(config.getMachineType())))
+                .max()
+                .orElse(1);
+        int headroom = 0;
+        for (Region region : cloud.getClient().listRegions(cloud.getProjectId())) {
+            if (!regions.contains(region.getName()) || region.getQuotas() == null) {
+                continue;
+            }
+            int regionHeadroom = Integer.MAX_VALUE;
+            for (Quota quota : region.getQuotas()) {
+                if (quota.getLimit() == null || quota.getUsage() == null) {
+                    continue;
+                }
+                int spare = (int) Math.max(0, quota.getLimit() - quota.getUsage());
+                if ("INSTANCES".equals(quota.getMetric())) {
+                    regionHeadroom = Math.min(regionHeadroom, spare);
+                } else if ("CPUS".equals(quota.getMetric())) {
+                    regionHeadroom = Math.min(regionHeadroom, spare / vcpus);
+                }
+            }
+            headroom = Math.max(headroom, regionHeadroom);
+        }
+        return regions.isEmpty() ? Integer.MAX_VALUE : headroom;
+    }
+}
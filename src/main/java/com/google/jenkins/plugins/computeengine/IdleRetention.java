@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.model.Computer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps idle agents of an instance configuration past their retention time while recent demand
+ * suggests they will be reused, and reports how often agents are reused.
+ *
+ * <p>The demand of a configuration is the peak of its busy executors over its idle budget. Idle
+ * agents past their retention time are kept as long as, with the busy executors, they stay within
+ * that peak. Beyond it, the agents connected the longest are released first. After an idle budget
+ * without demand, all of them are released.
+ */
+public final class IdleRetention {
+    private static final Logger LOGGER = Logger.getLogger(IdleRetention.class.getName());
+
+    static final long SAMPLE_INTERVAL = 30 * 1000L;
+
+    private static final Map<String, IdleRetention> CONFIGS = new ConcurrentHashMap<>();
+
+    private final String cloudName;
+    private final String configName;
+    /** Time and number of busy executors of the configuration, oldest first. */
+    private final Deque<long[]> samples = new ArrayDeque<>();
+
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong reusedTasks = new AtomicLong();
+    private final AtomicLong avoidedColdStarts = new AtomicLong();
+
+    private IdleRetention(String cloudName, String configName) {
+        this.cloudName = cloudName;
+        this.configName = configName;
+    }
+
+    /** @return The idle retention of the configuration of an agent, or null if it has none. */
+    static IdleRetention of(ComputeEngineInstance node) {
+        if (node == null || node.getConfigName() == null) {
+            return null;
+        }
+        return CONFIGS.computeIfAbsent(
+                node.getCloudName() + "/" + node.getConfigName(),
+                key -> new IdleRetention(node.getCloudName(), node.getConfigName()));
+    }
+
+    /** @return The idle retention of the configurations of a cloud that ran tasks. */
+    static List<IdleRetention> of(ComputeEngineCloud cloud) {
+        List<IdleRetention> retentions = new ArrayList<>();
+        for (IdleRetention retention : CONFIGS.values()) {
+            if (retention.cloudName.equals(cloud.getCloudName()) && retention.tasks.get() > 0) {
+                retentions.add(retention);
+            }
+        }
+        retentions.sort(Comparator.comparing(IdleRetention::getConfigName));
+        return retentions;
+    }
+
+    /**
+     * Records the busy executors of the configuration, at most once per {@link #SAMPLE_INTERVAL},
+     * and forgets those older than the idle budget.
+     */
+    synchronized void sample(long budgetMillis, long now) {
+        while (!samples.isEmpty() && now - samples.peekFirst()[0] > budgetMillis) {
+            samples.removeFirst();
+        }
+        if (samples.isEmpty() || now - samples.peekLast()[0] >= SAMPLE_INTERVAL) {
+            int busy = computers().stream().mapToInt(Computer::countBusy).sum();
+            samples.addLast(new long[] {now, busy});
+        }
+    }
+
+    /**
+     * Checks if an idle agent past its retention time is kept for the recent demand of its
+     * configuration.
+     *
+     * @param computer Idle agent past its retention time.
+     * @param retentionMillis Retention time of the agents of the configuration.
+     * @param budgetMillis How long past their retention time idle agents may be kept.
+     * @param now Current time.
+     * @return true if the agent is kept, false if it is released.
+     */
+    synchronized boolean keep(ComputeEngineComputer computer, long retentionMillis, long budgetMillis, long now) {
+        if (now - computer.getIdleStartMilliseconds() > retentionMillis + budgetMillis) {
+            return release(computer, "idle budget spent");
+        }
+        long peak = samples.stream().mapToLong(sample -> sample[1]).max().orElse(0);
+        List<ComputeEngineComputer> idle = new ArrayList<>();
+        long spare = peak;
+        for (ComputeEngineComputer c : computers()) {
+            spare -= c.countBusy();
+            if (c.isIdle() && now - c.getIdleStartMilliseconds() > retentionMillis) {
+                idle.add(c);
+            }
+        }
+        if (!withinDemand(computer, idle, spare)) {
+            return release(computer, "no recent demand");
+        }
+        if (!computer.isKept()) {
+            LOGGER.log(Level.INFO, "Keeping idle agent " + computer.getName() + " for recent demand");
+            computer.setKept(true);
+        }
+        return true;
+    }
+
+    /**
+     * Checks if an idle agent is among those that cover the spare demand. Agents connected the most
+     * recently cover it first, so the oldest ones are drained first.
+     *
+     * @param computer Idle agent to check.
+     * @param idle Idle agents past their retention time, including the one to check.
+     * @param spare Executors of the peak demand that are not busy.
+     * @return true if the agent covers part of the spare demand.
+     */
+    static boolean withinDemand(ComputeEngineComputer computer, List<ComputeEngineComputer> idle, long spare) {
+        List<ComputeEngineComputer> newestFirst = new ArrayList<>(idle);
+        newestFirst.sort(Comparator.comparingLong(ComputeEngineComputer::getConnectTime).reversed());
+        for (ComputeEngineComputer c : newestFirst) {
+            if (spare <= 0) {
+                return false;
+            }
+            if (c == computer) {
+                return true;
+            }
+            spare -= c.getNumExecutors();
+        }
+        return false;
+    }
+
+    private boolean release(ComputeEngineComputer computer, String reason) {
+        if (computer.isKept()) {
+            LOGGER.log(Level.INFO, "Releasing idle agent " + computer.getName() + ": " + reason);
+            computer.setKept(false);
+        }
+        return false;
+    }
+
+    /** Records a task accepted by an agent of the configuration. */
+    void taskAccepted(ComputeEngineComputer computer) {
+        tasks.incrementAndGet();
+        if (computer.markUsed()) {
+            reusedTasks.incrementAndGet();
+        }
+        if (computer.isKept()) {
+            computer.setKept(false);
+            avoidedColdStarts.incrementAndGet();
+        }
+    }
+
+    private Collection<ComputeEngineComputer> computers() {
+        List<ComputeEngineComputer> computers = new ArrayList<>();
+        for (Computer c : Jenkins.get().getComputers()) {
+            if (!(c instanceof ComputeEngineComputer) || !c.isOnline()) {
+                continue;
+            }
+            ComputeEngineInstance node = ((ComputeEngineComputer) c).getNode();
+            if (node != null && cloudName.equals(node.getCloudName()) && configName.equals(node.getConfigName())) {
+                computers.add((ComputeEngineComputer) c);
+            }
+        }
+        return computers;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    /** @return Number of tasks accepted by agents of the configuration. */
+    public long getTasks() {
+        return tasks.get();
+    }
+
+    /** @return Percentage of tasks that ran on an agent that ran a task before. */
+    public long getReuseRate() {
+        long total = tasks.get();
+        return total > 0 ? 100 * reusedTasks.get() / total : 0;
+    }
+
+    /** @return Number of tasks that ran on an agent kept past its retention time. */
+    public long getAvoidedColdStarts() {
+        return avoidedColdStarts.get();
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.cloud.graphite.platforms.plugin.client.util.ClientUtil.nameFromSelfLink;
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CLOUD_ID_LABEL_KEY;
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CONFIG_LABEL_KEY;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Image;
+import com.google.api.services.compute.model.ImageList;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.collect.ImmutableMap;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+
+/**
+ * Periodically bakes an image from a warm agent of each instance configuration that asks for it,
+ * and makes new agents of the configuration boot from that image. An agent is warm once it is idle
+ * and its last build succeeded: its caches are populated and Java and agent.jar are in place.
+ *
+ * <p>The configured boot disk image is left as is. Agents booted from a baked image count as
+ * running the configured image, so a bake does not make {@link ImageUpgradeWork} replace them,
+ * while a change of the configured image stops using the images baked from the previous one.
+ *
+ * <p>Baked images are labelled with their cloud, configuration and the configured image they were
+ * baked from, and found again by these labels after a restart. The last bake time is the creation
+ * time of the newest image, and older images are deleted from the project once newer ones exist.
+ *
+ * <p>The file systems of the agent are flushed before its boot disk is snapshotted, so the image
+ * holds what its builds wrote. Baking runs in the background and does not hold up provisioning or
+ * agent termination.
+ */
+@Extension
+@Symbol("imageBakeWork")
+public class ImageBakeWork extends AsyncPeriodicWork {
+    private static final long RECURRENCE_PERIOD = Long.getLong(
+            "com.google.jenkins.plugins.computeengine.ImageBakeWork.recurrencePeriod", 10 * MIN);
+    private static final long SNAPSHOT_TIMEOUT = 600000;
+    private static final long IMAGE_TIMEOUT = 1800000;
+    private static final long OPERATION_POLL_MILLIS = 5000;
+    static final String WARM_IMAGE_INFIX = "-warm-";
+    /** Label of a baked image holding a digest of the configured image it was baked from. */
+    static final String BASE_IMAGE_LABEL_KEY = "jenkins_base_image";
+    /**
+     * Baked images kept for each configuration. Inserts started before a bake may still use the
+     * previous image, so it is kept one more bake.
+     */
+    static final int KEPT_IMAGES = 2;
+
+    /** When a bake was last attempted for each configuration, so a failing bake waits an interval. */
+    private final Map<String, Long> lastAttempts = new ConcurrentHashMap<>();
+
+    public ImageBakeWork() {
+        super("Google Compute Engine warm image bake");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (ComputeEngineCloud cloud : Jenkins.get().clouds.getAll(ComputeEngineCloud.class)) {
+            if (cloud.getConfigurations() == null) {
+                continue;
+            }
+            List<InstanceConfiguration> baking = cloud.getConfigurations().stream()
+                    .filter(config -> config.getBakeImageIntervalMillis() > 0
+                            && StringUtils.isEmpty(config.getTemplate())
+                            && !config.isOneShot())
+                    .collect(Collectors.toList());
+            if (baking.isEmpty()) {
+                continue;
+            }
+            List<Image> images;
+            try {
+                images = findBakedImages(cloud);
+            } catch (IOException ioe) {
+                ComputeEngineCloud.log(
+                        logger,
+                        Level.WARNING,
+                        listener,
+                        "Failed to list baked images of cloud " + cloud.getCloudName(),
+                        ioe);
+                continue;
+            }
+            for (InstanceConfiguration config : baking) {
+                String key = cloud.getCloudName() + "/" + config.getNamePrefix();
+                Optional<Image> newest = imagesOf(images, config).stream()
+                        .filter(image -> "READY".equals(image.getStatus()) && isBakedFrom(image, config))
+                        .findFirst();
+                // Found again after a restart, or dropped once the configured image changed
+                config.setBakedImage(newest.map(Image::getSelfLink).orElse(null));
+                long lastBake = Math.max(
+                        lastAttempts.getOrDefault(key, 0L),
+                        newest.map(ImageBakeWork::createdAt).orElse(0L));
+                long now = System.currentTimeMillis();
+                if (now - lastBake < config.getBakeImageIntervalMillis()) {
+                    continue;
+                }
+                Optional<ComputeEngineComputer> warm = findWarmComputer(config);
+                if (warm.isPresent()) {
+                    lastAttempts.put(key, now);
+                    try {
+                        bake(cloud, config, warm.get(), listener);
+                    } catch (IOException ioe) {
+                        ComputeEngineCloud.log(
+                                logger, Level.WARNING, listener, "Failed to bake image for " + key, ioe);
+                    }
+                }
+            }
+        }
+    }
+
+    private Optional<ComputeEngineComputer> findWarmComputer(InstanceConfiguration config) {
+        for (Computer c : Jenkins.get().getComputers()) {
+            if (!(c instanceof ComputeEngineComputer) || !c.isOnline() || !c.isIdle() || !c.isAcceptingTasks()) {
+                continue;
+            }
+            ComputeEngineComputer computer = (ComputeEngineComputer) c;
+            ComputeEngineInstance node = computer.getNode();
+            if (node == null
+                    || node.isTerminating()
+                    || computer.getPreempted()
+                    || !config.getNamePrefix().equals(node.getConfigName())) {
+                continue;
+            }
+            Run<?, ?> lastRun = computer.getLastRun();
+            if (lastRun != null && !lastRun.isBuilding() && Result.SUCCESS.equals(lastRun.getResult())) {
+                return Optional.of(computer);
+            }
+        }
+        return Optional.empty();
+    }
+
+    void bake(
+            ComputeEngineCloud cloud,
+            InstanceConfiguration config,
+            ComputeEngineComputer computer,
+            TaskListener listener)
+            throws IOException, InterruptedException {
+        ComputeEngineInstance node = computer.getNode();
+        if (node == null) {
+            return;
+        }
+        String project = nameFromSelfLink(cloud.getProjectId());
+        String instanceName = node.getNodeName();
+        ComputeEngineCloud.log(logger, Level.INFO, listener, "Snapshotting warm agent " + instanceName);
+        computer.setBaking(true);
+        try {
+            syncFileSystems(computer);
+            cloud.getClient().createSnapshotSync(project, node.getZone(), instanceName, SNAPSHOT_TIMEOUT);
+        } finally {
+            computer.setBaking(false);
+        }
+
+        try {
+            Image image = new Image()
+                    .setName(imageName(config))
+                    .setDescription("Warm agent image baked from " + instanceName)
+                    .setSourceSnapshot("global/snapshots/" + instanceName)
+                    .setLabels(ImmutableMap.of(
+                            CLOUD_ID_LABEL_KEY, cloud.getInstanceId(),
+                            CONFIG_LABEL_KEY, config.getNamePrefix(),
+                            BASE_IMAGE_LABEL_KEY, baseImageLabel(config)));
+            Compute compute = cloud.getCompute();
+            Operation operation = compute.images().insert(project, image).execute();
+            waitForGlobalOperation(compute, project, operation);
+            config.setBakedImage(compute.images().get(project, image.getName()).execute().getSelfLink());
+            ComputeEngineCloud.log(
+                    logger,
+                    Level.INFO,
+                    listener,
+                    "Configuration " + config.getDescription() + " now boots from image " + image.getName());
+            deleteOldImages(cloud, config, listener);
+        } finally {
+            cloud.getClient().deleteSnapshotAsync(project, instanceName);
+        }
+    }
+
+    /**
+     * Flushes the file system buffers of an agent, so that the snapshot of its boot disk holds what
+     * its builds wrote and not a state from before.
+     *
+     * @param computer The agent, which takes no new tasks meanwhile.
+     * @throws IOException If the agent is offline or the file systems could not be flushed.
+     */
+    void syncFileSystems(ComputeEngineComputer computer) throws IOException, InterruptedException {
+        VirtualChannel channel = computer.getChannel();
+        ComputeEngineInstance node = computer.getNode();
+        if (channel == null || node == null) {
+            throw new IOException("Agent " + computer.getName() + " is offline");
+        }
+        channel.call(new SyncFileSystems(node.getWindowsConfig() != null));
+    }
+
+    private static String imageName(InstanceConfiguration config) {
+        String prefix = StringUtils.removeEnd(config.getNamePrefix(), "-");
+        String suffix = WARM_IMAGE_INFIX + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+        return StringUtils.left(prefix, 63 - suffix.length()) + suffix;
+    }
+
+    /** Deletes the images baked for a configuration, but the {@link #KEPT_IMAGES} newest ones. */
+    private void deleteOldImages(ComputeEngineCloud cloud, InstanceConfiguration config, TaskListener listener) {
+        List<Image> images;
+        try {
+            images = imagesOf(findBakedImages(cloud), config);
+        } catch (IOException ioe) {
+            ComputeEngineCloud.log(
+                    logger,
+                    Level.WARNING,
+                    listener,
+                    "Failed to list old images of " + config.getDescription(),
+                    ioe);
+            return;
+        }
+        String project = nameFromSelfLink(cloud.getProjectId());
+        for (Image image : images.subList(Math.min(KEPT_IMAGES, images.size()), images.size())) {
+            try {
+                cloud.getCompute().images().delete(project, image.getName()).execute();
+            } catch (IOException ioe) {
+                ComputeEngineCloud.log(
+                        logger, Level.WARNING, listener, "Failed to delete old image " + image.getName(), ioe);
+            }
+        }
+    }
+
+    /** @return The images baked for a configuration, newest first. */
+    private static List<Image> imagesOf(List<Image> images, InstanceConfiguration config) {
+        return images.stream()
+                .filter(image -> config.getNamePrefix().equals(image.getLabels().get(CONFIG_LABEL_KEY)))
+                .sorted(Comparator.comparingLong(ImageBakeWork::createdAt).reversed())
+                .collect(Collectors.toList());
+    }
+
+    /** @return true if an image was baked from the image the configuration boots from. */
+    private static boolean isBakedFrom(Image image, InstanceConfiguration config) {
+        return baseImageLabel(config).equals(image.getLabels().get(BASE_IMAGE_LABEL_KEY));
+    }
+
+    /** @return Digest of the configured image, which fits in a label value unlike its self link. */
+    static String baseImageLabel(InstanceConfiguration config) {
+        return Util.getDigestOf(Util.fixNull(config.getBootDiskSourceImageName()));
+    }
+
+    private static long createdAt(Image image) {
+        if (image.getCreationTimestamp() == null) {
+            return 0;
+        }
+        return OffsetDateTime.parse(image.getCreationTimestamp()).toInstant().toEpochMilli();
+    }
+
+    /** @return The images baked from agents of a cloud, of all its configurations. */
+    private static List<Image> findBakedImages(ComputeEngineCloud cloud) throws IOException {
+        Compute compute = cloud.getCompute();
+        String filter = String.format("labels.%s=%s", CLOUD_ID_LABEL_KEY, cloud.getInstanceId());
+        List<Image> images = new ArrayList<>();
+        String pageToken = null;
+        do {
+            ImageList page = compute.images()
+                    .list(nameFromSelfLink(cloud.getProjectId()))
+                    .setFilter(filter)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (page.getItems() != null) {
+                page.getItems().stream()
+                        .filter(image -> image.getLabels() != null
+                                && image.getLabels().containsKey(CONFIG_LABEL_KEY))
+                        .forEach(images::add);
+            }
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return images;
+    }
+
+    private static void waitForGlobalOperation(Compute compute, String project, Operation operation)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + IMAGE_TIMEOUT;
+        while (!"DONE".equals(operation.getStatus())) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Timed out waiting for operation " + operation.getName());
+            }
+            Thread.sleep(OPERATION_POLL_MILLIS);
+            operation = compute.globalOperations().get(project, operation.getName()).execute();
+        }
+        if (operation.getError() != null) {
+            throw new IOException("Operation " + operation.getName() + " failed: " + operation.getError());
+        }
+    }
+
+    /** Flushes the file system buffers of an agent, with {@code sync} or on Windows the volume cache of C:. */
+    private static final class SyncFileSystems extends MasterToSlaveCallable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean windows;
+
+        SyncFileSystems(boolean windows) {
+            this.windows = windows;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            ProcessBuilder sync = windows
+                    ? new ProcessBuilder("powershell", "-NoProfile", "-Command", "Write-VolumeCache -DriveLetter C")
+                    : new ProcessBuilder("sync");
+            try {
+                int exitCode = sync.redirectErrorStream(true).start().waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Flushing file systems failed with exit code " + exitCode);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing file systems", e);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.Symbol;
+
+/**
+ * Replaces the agents running an outdated image once the boot disk image of their instance
+ * configuration changed, for clouds with {@link ComputeEngineCloud#getMaxImageUpgrades()}. A new
+ * agent is provisioned first. Once it is online, the outdated agent stops accepting tasks and is
+ * deleted when its running tasks complete, so the capacity of the cloud does not dip.
+ *
+ * <p>Replacements are provisioned within the instance cap of the cloud and the capacity left for
+ * their configuration, never above it. Without room for a replacement, the outdated agent is
+ * retired first, and the queue provisions a new agent once it is gone.
+ */
+@Extension
+@Symbol("imageUpgradeWork")
+public class ImageUpgradeWork extends AsyncPeriodicWork {
+    private static final long RECURRENCE_PERIOD = Long.getLong(
+            "com.google.jenkins.plugins.computeengine.ImageUpgradeWork.recurrencePeriod", MIN);
+
+    /** Replacement of an outdated agent retired without one, as the cloud had no room for it. */
+    private static final String NO_REPLACEMENT = "";
+
+    /**
+     * Names of the outdated agents being replaced, and of the agents replacing them or {@link
+     * #NO_REPLACEMENT}.
+     */
+    private final Map<String, String> replacements = new ConcurrentHashMap<>();
+
+    public ImageUpgradeWork() {
+        super("Google Compute Engine image upgrade");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        replacements.keySet().removeIf(name -> getComputer(name) == null);
+        for (ComputeEngineCloud cloud : Jenkins.get().clouds.getAll(ComputeEngineCloud.class)) {
+            if (cloud.getMaxImageUpgrades() <= 0 || cloud.isDraining() || cloud.getConfigurations() == null) {
+                continue;
+            }
+            List<ComputeEngineComputer> outdated = getComputers(cloud).stream()
+                    .filter(computer -> isOutdated(computer.getNode()))
+                    .collect(Collectors.toList());
+            for (ComputeEngineComputer computer : outdated) {
+                String replacement = replacements.get(computer.getName());
+                if (replacement != null) {
+                    progress(computer, replacement, listener);
+                }
+            }
+            long upgrading = outdated.stream()
+                    .filter(computer -> replacements.containsKey(computer.getName()))
+                    .count();
+            for (ComputeEngineComputer computer : outdated) {
+                if (upgrading >= cloud.getMaxImageUpgrades()) {
+                    break;
+                }
+                // Agents deleted by progress are left out, as they no longer count as upgrading
+                if (!replacements.containsKey(computer.getName())
+                        && isOutdated(computer.getNode())
+                        && replace(cloud, computer, listener)) {
+                    upgrading++;
+                }
+            }
+        }
+    }
+
+    List<ComputeEngineComputer> getComputers(ComputeEngineCloud cloud) {
+        return cloud.getComputers();
+    }
+
+    Computer getComputer(String name) {
+        return Jenkins.get().getComputer(name);
+    }
+
+    /**
+     * Checks if an agent runs an image other than the one of its instance configuration. Agents of
+     * instance templates, one-shot agents and agents whose image is not known are never outdated.
+     */
+    static boolean isOutdated(ComputeEngineInstance node) {
+        if (node == null || node.isTerminating() || node.isOneShot() || node.getSourceImage() == null) {
+            return false;
+        }
+        return node.getConfiguration()
+                .filter(config -> StringUtils.isEmpty(config.getTemplate()))
+                .map(config -> !node.getSourceImage().equals(config.getBootDiskSourceImageName()))
+                .orElse(false);
+    }
+
+    /**
+     * Provisions the agent replacing an outdated one, or retires the outdated agent first if the
+     * cloud has no room for another agent.
+     */
+    private boolean replace(ComputeEngineCloud cloud, ComputeEngineComputer computer, TaskListener listener) {
+        ComputeEngineInstance node = computer.getNode();
+        InstanceConfiguration config = node != null ? node.getConfiguration().orElse(null) : null;
+        if (config == null) {
+            return false;
+        }
+        try {
+            ComputeEngineInstance replacement = cloud.provisionReplacement(config);
+            if (replacement == null) {
+                replacements.put(computer.getName(), NO_REPLACEMENT);
+                ComputeEngineCloud.log(
+                        logger,
+                        Level.INFO,
+                        listener,
+                        "Retiring agent " + computer.getName() + " running an outdated image, cloud "
+                                + cloud.getCloudName() + " has no room for its replacement");
+                return true;
+            }
+            replacements.put(computer.getName(), replacement.getNodeName());
+            ComputeEngineCloud.log(
+                    logger,
+                    Level.INFO,
+                    listener,
+                    "Replacing agent " + computer.getName() + " running an outdated image by "
+                            + replacement.getNodeName());
+            return true;
+        } catch (IOException ioe) {
+            ComputeEngineCloud.log(
+                    logger, Level.WARNING, listener, "Failed to provision replacement of " + computer.getName(), ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Retires an outdated agent once its replacement is online, and deletes it once its tasks
+     * complete. A replacement that failed to launch is provisioned again.
+     */
+    private void progress(ComputeEngineComputer computer, String replacementName, TaskListener listener)
+            throws InterruptedException {
+        if (!NO_REPLACEMENT.equals(replacementName)) {
+            Computer replacement = getComputer(replacementName);
+            if (replacement == null) {
+                replacements.remove(computer.getName());
+                return;
+            }
+            if (!replacement.isOnline()) {
+                return;
+            }
+        }
+        if (computer.isAcceptingTasks()) {
+            computer.setAcceptingTasks(false);
+        }
+        ComputeEngineInstance node = computer.getNode();
+        if (computer.isIdle() && node != null) {
+            ComputeEngineCloud.log(
+                    logger,
+                    Level.INFO,
+                    listener,
+                    "Deleting agent " + computer.getName() + " running an outdated image");
+            try {
+                node.terminate();
+                replacements.remove(computer.getName());
+            } catch (IOException ioe) {
+                ComputeEngineCloud.log(
+                        logger,
+                        Level.WARNING,
+                        listener,
+                        "Failed to delete outdated agent " + computer.getName(),
+                        ioe);
+            }
+        }
+    }
+}
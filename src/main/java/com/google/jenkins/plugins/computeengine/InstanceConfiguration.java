@@ -19,6 +19,7 @@ package com.google.jenkins.plugins.computeengine;
 import static com.google.cloud.graphite.platforms.plugin.client.util.ClientUtil.nameFromSelfLink;
 import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.checkPermissions;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.compute.model.AcceleratorConfig;
 import com.google.api.services.compute.model.AttachedDisk;
 import com.google.api.services.compute.model.AttachedDiskInitializeParams;
@@ -63,9 +64,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
@@ -96,8 +101,11 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
     public static final Integer DEFAULT_LAUNCH_TIMEOUT_SECONDS = 300;
     public static final Integer DEFAULT_RETENTION_TIME_MINUTES = (DEFAULT_LAUNCH_TIMEOUT_SECONDS / 60) + 1;
     public static final String DEFAULT_RUN_AS_USER = "jenkins";
+    public static final Integer DEFAULT_BAKE_IMAGE_INTERVAL_HOURS = 0;
     public static final String METADATA_LINUX_STARTUP_SCRIPT_KEY = "startup-script";
     public static final String METADATA_WINDOWS_STARTUP_SCRIPT_KEY = "windows-startup-script-ps1";
+    public static final String PROVISIONING_MODEL_STANDARD = "STANDARD";
+    public static final String PROVISIONING_MODEL_SPOT = "SPOT";
     public static final List<String> KNOWN_IMAGE_PROJECTS = Collections.unmodifiableList(new ArrayList<String>() {
         {
             add("centos-cloud");
@@ -119,8 +127,15 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
     private String zone;
     private String machineType;
     private String numExecutorsStr;
+    private String executorsPerVcpuStr;
+    private String maxExecutorsStr;
+    private String priorityStr;
+    private String reservedInstancesStr;
+    private String maxInstancesStr;
     private String startupScript;
     private boolean preemptible;
+    private String provisioningModel;
+    private String instanceTerminationAction;
     private String minCpuPlatform;
     private String labels;
     private String runAsUser;
@@ -128,6 +143,7 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
     private boolean bootDiskAutoDelete;
     private String bootDiskSourceImageName;
     private String bootDiskSourceImageProject;
+    private String bakeImageIntervalHoursStr;
     private NetworkConfiguration networkConfiguration;
     private NetworkInterfaceIpStackMode networkInterfaceIpStackMode;
 
@@ -136,15 +152,21 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
 
     private boolean useInternalAddress;
     private boolean ignoreProxy;
+    private boolean compressAgentJar;
     private String networkTags;
     private String serviceAccountEmail;
     private Node.Mode mode;
     private AcceleratorConfiguration acceleratorConfiguration;
+    private DiskPoolConfiguration diskPoolConfiguration;
+    private List<AdditionalDiskConfiguration> additionalDisks;
     private String retentionTimeMinutesStr;
+    private String idleBudgetMinutesStr;
     private String launchTimeoutSecondsStr;
     private String bootDiskSizeGbStr;
     private boolean oneShot;
     private String template;
+    /** Regional managed instance group that creates the instances, instead of one insert each. */
+    private String managedInstanceGroup;
     // Optional not possible due to serialization requirement
     @Nullable
     private WindowsConfiguration windowsConfiguration;
@@ -158,15 +180,47 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
     private GoogleKeyCredential sshKeyCredential;
     private Map<String, String> googleLabels;
     private Integer numExecutors;
+    private Integer executorsPerVcpu;
+    private Integer maxExecutors;
+    private Integer priority;
+    private Integer reservedInstances;
+    private Integer maxInstances;
     private Integer retentionTimeMinutes;
+    private Integer idleBudgetMinutes;
     private Integer launchTimeoutSeconds;
     private Long bootDiskSizeGb;
+    private Integer bakeImageIntervalHours;
     private transient Set<LabelAtom> labelSet;
 
+    /**
+     * Parts of the instance shared by all agents of this configuration, built on first use and again
+     * once one of the settings they are built from changed. Each instance gets a copy of them.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile Prototype prototype;
+
+    /**
+     * Image last baked from a warm agent of this configuration, which new instances boot from
+     * instead of the configured image. Not saved: {@link ImageBakeWork} finds it again by its labels.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile String bakedImage;
+
+    /** Digest of the settings, computed on first use, see {@link #fingerprint()}. */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile String fingerprint;
+
     @Getter(AccessLevel.PROTECTED)
     @Setter(AccessLevel.PROTECTED)
     protected transient ComputeEngineCloud cloud;
 
+    private static final RandomStringGenerator NAME_GENERATOR = new RandomStringGenerator.Builder()
+            .withinRange(new char[][] {{'a', 'z'}, {'0', '9'}})
+            .build();
+
     private static List<Metadata.Items> mergeMetadataItems(List<Metadata.Items> winner, List<Metadata.Items> loser) {
         if (loser == null) {
             loser = new ArrayList<Metadata.Items>();
@@ -196,6 +250,88 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
         this.numExecutorsStr = numExecutors.toString();
     }
 
+    @DataBoundSetter
+    public void setExecutorsPerVcpuStr(String executorsPerVcpuStr) {
+        this.executorsPerVcpu = intOrDefault(executorsPerVcpuStr, 0);
+        this.executorsPerVcpuStr = this.executorsPerVcpu.toString();
+    }
+
+    @DataBoundSetter
+    public void setMaxExecutorsStr(String maxExecutorsStr) {
+        this.maxExecutors = intOrDefault(maxExecutorsStr, 0);
+        this.maxExecutorsStr = this.maxExecutors.toString();
+    }
+
+    /**
+     * @return Most executors an agent scales to from the load of its instance, 0 if the number of
+     *     executors of agents is not scaled.
+     */
+    public int getMaxExecutors() {
+        return oneShot || maxExecutors == null ? 0 : Math.max(0, maxExecutors);
+    }
+
+    @DataBoundSetter
+    public void setPriorityStr(String priorityStr) {
+        this.priority = intOrDefault(priorityStr, 0);
+        this.priorityStr = this.priority.toString();
+    }
+
+    @DataBoundSetter
+    public void setReservedInstancesStr(String reservedInstancesStr) {
+        this.reservedInstances = intOrDefault(reservedInstancesStr, 0);
+        this.reservedInstancesStr = this.reservedInstances.toString();
+    }
+
+    @DataBoundSetter
+    public void setMaxInstancesStr(String maxInstancesStr) {
+        this.maxInstances = intOrDefault(maxInstancesStr, 0);
+        this.maxInstancesStr = this.maxInstances.toString();
+    }
+
+    /** @return Priority of the agents of this configuration when the cloud is short of capacity. */
+    public int getPriority() {
+        return priority == null ? 0 : priority;
+    }
+
+    /** @return Instances of the cloud cap that only this configuration may use. */
+    public int getReservedInstances() {
+        return reservedInstances == null ? 0 : Math.max(0, reservedInstances);
+    }
+
+    /** @return Most instances of this configuration, 0 if only limited by the instance cap. */
+    public int getMaxInstances() {
+        return maxInstances == null ? 0 : Math.max(0, maxInstances);
+    }
+
+    /**
+     * @return Executors of each agent: the configured number, or the number of vCPUs of the machine
+     *     type times the executors per vCPU when that is set.
+     */
+    public Integer getNumExecutors() {
+        int vcpus = vcpusOf(machineType);
+        if (oneShot || executorsPerVcpu == null || executorsPerVcpu <= 0 || vcpus <= 0) {
+            return numExecutors;
+        }
+        return executorsPerVcpu * vcpus;
+    }
+
+    /**
+     * Number of vCPUs of a custom machine type, such as {@code n2-custom-4-16384}, or of a predefined
+     * machine type whose name ends with it, such as {@code n2-standard-8}.
+     *
+     * @return The number of vCPUs, or 0 if the name does not tell.
+     */
+    static int vcpusOf(String machineType) {
+        String[] parts = nameFromSelfLink(Util.fixNull(machineType)).split("-");
+        int index = parts.length - 1;
+        for (int i = 0; i < parts.length - 1; i++) {
+            if (parts[i].equals("custom")) {
+                index = i + 1;
+            }
+        }
+        return intOrDefault(parts[index], 0);
+    }
+
     @DataBoundSetter
     public void setLabelString(String labelString) {
         this.labels = Util.fixNull(labelString);
@@ -213,6 +349,12 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
         this.retentionTimeMinutesStr = this.retentionTimeMinutes.toString();
     }
 
+    @DataBoundSetter
+    public void setIdleBudgetMinutesStr(String idleBudgetMinutesStr) {
+        this.idleBudgetMinutes = intOrDefault(idleBudgetMinutesStr, 0);
+        this.idleBudgetMinutesStr = this.idleBudgetMinutes.toString();
+    }
+
     @DataBoundSetter
     public void setLaunchTimeoutSecondsStr(String launchTimeoutSecondsStr) {
         this.launchTimeoutSeconds = intOrDefault(launchTimeoutSecondsStr, DEFAULT_LAUNCH_TIMEOUT_SECONDS);
@@ -225,6 +367,32 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
         this.bootDiskSizeGbStr = this.bootDiskSizeGb.toString();
     }
 
+    @DataBoundSetter
+    public void setBakeImageIntervalHoursStr(String bakeImageIntervalHoursStr) {
+        this.bakeImageIntervalHours = intOrDefault(bakeImageIntervalHoursStr, DEFAULT_BAKE_IMAGE_INTERVAL_HOURS);
+        this.bakeImageIntervalHoursStr = this.bakeImageIntervalHours.toString();
+    }
+
+    /** @return How often a warm agent is imaged for new agents to boot from, 0 if never. */
+    public long getBakeImageIntervalMillis() {
+        return bakeImageIntervalHours != null ? TimeUnit.HOURS.toMillis(Math.max(0, bakeImageIntervalHours)) : 0;
+    }
+
+    /** @return The image baked from a warm agent that new instances boot from, or null if none. */
+    String getBakedImage() {
+        return bakedImage;
+    }
+
+    /**
+     * Makes new instances boot from an image baked from a warm agent, or from the configured image
+     * again. Agents booted from the baked image still count as running the configured image.
+     *
+     * @param bakedImage Self link of the baked image, or null for none.
+     */
+    void setBakedImage(String bakedImage) {
+        this.bakedImage = bakedImage;
+    }
+
     @DataBoundSetter
     public void setOneShot(boolean oneShot) {
         this.oneShot = oneShot;
@@ -303,13 +471,82 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
     }
 
     public ComputeEngineInstance provision() throws IOException {
+        Instance instance = instance();
+        List<DiskMount> diskMounts = additionalDiskMounts();
+        attachPoolDisk(instance).ifPresent(diskMounts::add);
+        ProvisioningJournal journal = ProvisioningJournal.get();
+        journal.inserting(new ProvisioningJournal.Entry(
+                cloud.name, namePrefix, instance.getName(), instance.getZone(), sshKeyCredential, diskMounts));
+        // TODO: JENKINS-55285
+        Operation operation;
         try {
-            Instance instance = instance();
-            // TODO: JENKINS-55285
-            Operation operation =
-                    cloud.getClient().insertInstance(cloud.getProjectId(), Optional.ofNullable(template), instance);
-            log.info("Sent insert request for instance configuration [" + description + "]");
-            String targetRemoteFs = this.remoteFs;
+            operation = cloud.getClient()
+                    .insertInstance(cloud.getProjectId(), Optional.ofNullable(template), instance);
+        } catch (IOException ioe) {
+            journal.remove(instance.getName());
+            diskMounts.forEach(mount -> DiskPool.of(mount.getPool()).cancel(mount.getDiskName()));
+            throw ioe;
+        }
+        journal.inserted(instance.getName(), operation.getName());
+        log.info("Sent insert request for instance configuration [" + description + "]");
+        return node(instance, operation, sshKeyCredential, diskMounts);
+    }
+
+    /**
+     * Creates the agent of an instance that was inserted from this configuration but whose agent was
+     * never added, such as when the controller restarted during the insert.
+     *
+     * @param instance The existing instance.
+     * @param operationId Name of the insert operation, or null if it is unknown.
+     * @param sshKeyCredential Key the instance was inserted with.
+     * @param diskMounts Data disks the instance was inserted with.
+     * @return The agent, or null if it could not be created.
+     */
+    ComputeEngineInstance adopt(
+            Instance instance, String operationId, GoogleKeyCredential sshKeyCredential, List<DiskMount> diskMounts) {
+        Instance adopted = instance.clone().setZone(nameFromSelfLink(instance.getZone()));
+        Operation operation = new Operation().setName(operationId).setZone(instance.getZone());
+        return node(adopted, operation, sshKeyCredential, diskMounts);
+    }
+
+    /**
+     * Creates the agent of an existing instance of this configuration that has no agent, such as
+     * after a restore of the controller from a backup. As the key the instance was created with is
+     * unknown, a new SSH key pair is added to the metadata of the instance.
+     *
+     * @param instance The existing instance.
+     * @return The agent, or null if it could not be created.
+     * @throws IOException If the key could not be added to the instance.
+     */
+    ComputeEngineInstance adopt(Instance instance) throws IOException {
+        GoogleKeyCredential key = null;
+        if (windowsConfiguration == null) {
+            if (sshConfiguration != null) {
+                key = configureSSHPrivateKey(sshConfiguration.getCustomPrivateKeyCredentialsId(), runAsUser);
+            } else {
+                GoogleKeyPair keyPair = GoogleKeyPair.generate(runAsUser);
+                addSshKey(instance, keyPair);
+                key = keyPair;
+            }
+        }
+        return adopt(instance, null, key, additionalDiskMounts());
+    }
+
+    private void addSshKey(Instance instance, GoogleKeyPair keyPair) throws IOException {
+        Metadata metadata = instance.getMetadata() != null ? instance.getMetadata() : new Metadata();
+        List<Metadata.Items> items = new ArrayList<>();
+        items.add(new Metadata.Items().setKey(SSH_METADATA_KEY).setValue(keyPair.getPublicKey()));
+        metadata.setItems(mergeMetadataItems(items, metadata.getItems()));
+        cloud.getCompute()
+                .instances()
+                .setMetadata(cloud.getProjectId(), nameFromSelfLink(instance.getZone()), instance.getName(), metadata)
+                .execute();
+    }
+
+    private ComputeEngineInstance node(
+            Instance instance, Operation operation, GoogleKeyCredential sshKeyCredential, List<DiskMount> diskMounts) {
+        try {
+            String targetRemoteFs = additionalDiskRemoteFs().orElse(this.remoteFs);
             ComputeEngineComputerLauncher launcher;
             if (this.windowsConfiguration != null) {
                 launcher = new ComputeEngineWindowsLauncher(cloud.getCloudName(), operation, this.useInternalAddress);
@@ -334,15 +571,23 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
                     .sshConfig(sshConfiguration)
                     .createSnapshot(createSnapshot)
                     .oneShot(oneShot)
+                    .preemptible(isPreemptibleOrSpot())
                     .ignoreProxy(ignoreProxy)
-                    .numExecutors(numExecutors)
+                    .compressAgentJar(compressAgentJar)
+                    .numExecutors(getNumExecutors())
                     .mode(mode)
                     .labelString(labels)
                     .launcher(launcher)
-                    .retentionStrategy(new ComputeEngineRetentionStrategy(retentionTimeMinutes, oneShot))
+                    .retentionStrategy(new ComputeEngineRetentionStrategy(
+                            retentionTimeMinutes, oneShot, idleBudgetMinutes != null ? idleBudgetMinutes : 0))
                     .launchTimeout(getLaunchTimeoutMillis())
                     .javaExecPath(javaExecPath)
                     .sshKeyCredential(sshKeyCredential)
+                    .diskMounts(diskMounts)
+                    .configName(namePrefix)
+                    .managedInstanceGroup(
+                            usesManagedInstanceGroup() ? ManagedInstanceGroup.url(region, managedInstanceGroup) : null)
+                    .sourceImage(configuredImageOf(instance))
                     .build();
         } catch (Descriptor.FormException fe) {
             log.log(Level.WARNING, "Error provisioning instance: " + fe.getMessage(), fe);
@@ -350,6 +595,11 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
         }
     }
 
+    /** @return true if the instances are created by resizing a managed instance group. */
+    public boolean usesManagedInstanceGroup() {
+        return notNullOrEmpty(managedInstanceGroup);
+    }
+
     /** Initializes transient properties */
     protected Object readResolve() {
         labelSet = Label.parse(labels);
@@ -402,28 +652,112 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
         } else {
             configureStartupScript(instance);
             instance.setLabels(googleLabels);
-            instance.setMachineType(stripSelfLinkPrefix(machineType));
-            instance.setTags(tags());
-            instance.setScheduling(scheduling());
-            instance.setDisks(disks());
-            instance.setGuestAccelerators(accelerators());
-            instance.setNetworkInterfaces(networkInterfaces());
-            instance.setServiceAccounts(serviceAccounts());
+            // A deep copy, as the instance may be modified, such as by adding a pool disk to its disks.
+            Instance prototype = prototype().clone();
+            instance.setMachineType(prototype.getMachineType());
+            instance.setTags(prototype.getTags());
+            instance.setScheduling(prototype.getScheduling());
+            instance.setDisks(prototype.getDisks());
+            instance.setGuestAccelerators(prototype.getGuestAccelerators());
+            instance.setNetworkInterfaces(prototype.getNetworkInterfaces());
+            instance.setServiceAccounts(prototype.getServiceAccounts());
 
             // optional
-            if (notNullOrEmpty(minCpuPlatform)) {
-                instance.setMinCpuPlatform(minCpuPlatform);
+            if (prototype.getMinCpuPlatform() != null) {
+                instance.setMinCpuPlatform(prototype.getMinCpuPlatform());
             }
         }
 
         return instance;
     }
 
+    /**
+     * Returns a digest of the persisted settings of this configuration. Two configurations with the
+     * same fingerprint provision the same instances, so a reloaded cloud can keep the configuration it
+     * already has instead of the new, identical one. The labels added by the cloud and the key of the
+     * last provisioned instance are left out, as they are persisted but are not settings.
+     *
+     * <p>The settings are bound once when the configuration is submitted or loaded, and only the
+     * state left out changes afterwards, so the fingerprint is computed once per configuration
+     * rather than on every reload.
+     */
+    String fingerprint() {
+        String current = fingerprint;
+        if (current == null) {
+            current = computeFingerprint();
+            fingerprint = current;
+        }
+        return current;
+    }
+
+    private String computeFingerprint() {
+        InstanceConfiguration settings =
+                (InstanceConfiguration) Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(this));
+        if (settings.googleLabels != null) {
+            Map<String, String> labels = new TreeMap<>(settings.googleLabels);
+            labels.remove(ComputeEngineCloud.CLOUD_ID_LABEL_KEY);
+            labels.remove(ComputeEngineCloud.CONFIG_LABEL_KEY);
+            settings.googleLabels = labels.isEmpty() ? null : labels;
+        }
+        settings.sshKeyCredential = null;
+        return Util.getDigestOf(Jenkins.XSTREAM2.toXML(settings));
+    }
+
+    private Instance prototype() {
+        List<Object> key = prototypeKey();
+        Prototype current = prototype;
+        if (current == null || !current.key.equals(key)) {
+            Instance result = new Instance()
+                    .setMachineType(stripSelfLinkPrefix(machineType))
+                    .setTags(tags())
+                    .setScheduling(scheduling())
+                    .setDisks(disks())
+                    .setGuestAccelerators(accelerators())
+                    .setNetworkInterfaces(networkInterfaces())
+                    .setServiceAccounts(serviceAccounts());
+            if (notNullOrEmpty(minCpuPlatform)) {
+                result.setMinCpuPlatform(minCpuPlatform);
+            }
+            current = new Prototype(key, result);
+            prototype = current;
+        }
+        return current.instance;
+    }
+
+    /** The settings the prototype is built from, as they can change through any setter. */
+    private List<Object> prototypeKey() {
+        return Arrays.asList(
+                machineType,
+                networkTags,
+                preemptible,
+                provisioningModel,
+                instanceTerminationAction,
+                minCpuPlatform,
+                zone,
+                bootDiskAutoDelete,
+                bootDiskSizeGb,
+                bootDiskType,
+                bootDiskSourceImageName,
+                bakedImage,
+                new ArrayList<>(getAdditionalDisks()),
+                acceleratorConfiguration,
+                networkConfiguration,
+                networkInterfaceIpStackMode,
+                serviceAccountEmail);
+    }
+
+    private static final class Prototype {
+        private final List<Object> key;
+        private final Instance instance;
+
+        Prototype(List<Object> key, Instance instance) {
+            this.key = key;
+            this.instance = instance;
+        }
+    }
+
     private String uniqueName() {
-        char[][] pairs = {{'a', 'z'}, {'0', '9'}};
-        RandomStringGenerator generator =
-                new RandomStringGenerator.Builder().withinRange(pairs).build();
-        String suffix = generator.generate(6);
+        String suffix = NAME_GENERATOR.generate(6);
 
         String prefix = namePrefix;
         if (!prefix.endsWith(("-"))) {
@@ -494,10 +828,60 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
 
     private Scheduling scheduling() {
         Scheduling scheduling = new Scheduling();
-        scheduling.setPreemptible(preemptible);
+        if (isSpot()) {
+            // Spot VMs can't live migrate or be restarted by Compute Engine.
+            scheduling.setProvisioningModel(PROVISIONING_MODEL_SPOT);
+            scheduling.setOnHostMaintenance("TERMINATE");
+            scheduling.setAutomaticRestart(false);
+            if (notNullOrEmpty(instanceTerminationAction)) {
+                scheduling.setInstanceTerminationAction(instanceTerminationAction);
+            }
+        } else {
+            scheduling.setPreemptible(preemptible);
+        }
         return scheduling;
     }
 
+    /**
+     * Check if instances are created as Spot VMs.
+     *
+     * @return true if the provisioning model is Spot.
+     */
+    public boolean isSpot() {
+        return PROVISIONING_MODEL_SPOT.equals(provisioningModel);
+    }
+
+    /**
+     * Check if instances may be reclaimed by Compute Engine at any time.
+     *
+     * @return true if instances are created as preemptible or Spot VMs.
+     */
+    public boolean isPreemptibleOrSpot() {
+        return preemptible || isSpot();
+    }
+
+    /**
+     * @return The image the boot disk of an instance is created from, or for an instance booting
+     *     from a baked image, the configured image it was baked from. Null if not known.
+     */
+    private String configuredImageOf(Instance instance) {
+        String image = sourceImageOf(instance);
+        return image != null && image.equals(bakedImage) ? bootDiskSourceImageName : image;
+    }
+
+    /** @return The image the boot disk of an instance is created from, or null if not known. */
+    private static String sourceImageOf(Instance instance) {
+        if (instance.getDisks() == null) {
+            return null;
+        }
+        return instance.getDisks().stream()
+                .filter(disk -> Boolean.TRUE.equals(disk.getBoot()) && disk.getInitializeParams() != null)
+                .map(disk -> disk.getInitializeParams().getSourceImage())
+                .filter(Objects::nonNull)
+                .findFirst()
+                .orElse(null);
+    }
+
     private List<AttachedDisk> disks() {
         AttachedDisk boot = new AttachedDisk();
         boot.setBoot(true);
@@ -505,13 +889,131 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
         boot.setInitializeParams(new AttachedDiskInitializeParams()
                 .setDiskSizeGb(bootDiskSizeGb)
                 .setDiskType(bootDiskType)
-                .setSourceImage(bootDiskSourceImageName));
+                .setSourceImage(bakedImage != null ? bakedImage : bootDiskSourceImageName));
 
         List<AttachedDisk> disks = new ArrayList<>();
         disks.add(boot);
+        disks.addAll(additionalAttachedDisks());
         return disks;
     }
 
+    private List<AttachedDisk> additionalAttachedDisks() {
+        List<AttachedDisk> disks = new ArrayList<>();
+        String zoneName = nameFromSelfLink(zone);
+        int localSsds = 0;
+        int persistentDisks = 0;
+        for (AdditionalDiskConfiguration additionalDisk : getAdditionalDisks()) {
+            for (int i = 0; i < additionalDisk.count(); i++) {
+                int index = additionalDisk.isLocalSsd() ? localSsds++ : persistentDisks++;
+                disks.add(additionalDisk.attachedDisk(zoneName, index));
+            }
+        }
+        return disks;
+    }
+
+    private List<DiskMount> additionalDiskMounts() {
+        List<DiskMount> mounts = new ArrayList<>();
+        if (StringUtils.isNotEmpty(template)) {
+            return mounts;
+        }
+        int localSsds = 0;
+        int persistentDisks = 0;
+        for (AdditionalDiskConfiguration additionalDisk : getAdditionalDisks()) {
+            for (int i = 0; i < additionalDisk.count(); i++) {
+                int index = additionalDisk.isLocalSsd() ? localSsds++ : persistentDisks++;
+                mounts.add(new DiskMount(additionalDisk.devicePath(index), additionalDisk.mountPath(i)));
+            }
+        }
+        return mounts;
+    }
+
+    /** The mount path of the first additional disk used as remote file system root, if any. */
+    private Optional<String> additionalDiskRemoteFs() {
+        if (StringUtils.isNotEmpty(template) || windowsConfiguration != null) {
+            return Optional.empty();
+        }
+        return getAdditionalDisks().stream()
+                .filter(AdditionalDiskConfiguration::isRemoteFsRoot)
+                .map(additionalDisk -> additionalDisk.mountPath(0))
+                .findFirst();
+    }
+
+    public List<AdditionalDiskConfiguration> getAdditionalDisks() {
+        return additionalDisks != null ? additionalDisks : Collections.emptyList();
+    }
+
+    private Optional<DiskMount> attachPoolDisk(Instance instance) throws IOException {
+        if (diskPoolConfiguration == null) {
+            return Optional.empty();
+        }
+        if (StringUtils.isNotEmpty(template)) {
+            log.warning("Disk pools are not used with instance templates, ignoring the pool of [" + description + "]");
+            return Optional.empty();
+        }
+        DiskPool pool = DiskPool.of(cloud, namePrefix);
+        Optional<String> disk = pool.lease(
+                diskPoolConfiguration.diskNames(namePrefix),
+                diskPoolConfiguration.isJobAffinity() ? waitingJobs() : Collections.emptyList());
+        if (!disk.isPresent()) {
+            log.info("All disks of the pool of [" + description + "] are in use, provisioning without one");
+            return Optional.empty();
+        }
+        try {
+            instance.getDisks().add(poolDisk(disk.get()));
+        } catch (IOException ioe) {
+            pool.cancel(disk.get());
+            throw ioe;
+        }
+        log.info("Attaching disk " + disk.get() + " of the pool of [" + description + "]");
+        return Optional.of(new DiskMount(
+                "/dev/disk/by-id/google-" + DiskPoolConfiguration.DEVICE_NAME,
+                diskPoolConfiguration.mountPath(),
+                pool.getName(),
+                disk.get()));
+    }
+
+    private AttachedDisk poolDisk(String diskName) throws IOException {
+        String project = nameFromSelfLink(cloud.getProjectId());
+        String zoneName = nameFromSelfLink(zone);
+        AttachedDisk disk = new AttachedDisk()
+                .setBoot(false)
+                .setAutoDelete(false)
+                .setDeviceName(DiskPoolConfiguration.DEVICE_NAME);
+        if (diskExists(project, zoneName, diskName)) {
+            return disk.setSource(String.format("projects/%s/zones/%s/disks/%s", project, zoneName, diskName));
+        }
+        AttachedDiskInitializeParams params = new AttachedDiskInitializeParams()
+                .setDiskName(diskName)
+                .setDiskSizeGb(diskPoolConfiguration.diskSizeGb())
+                .setDiskType(String.format("zones/%s/diskTypes/%s", zoneName, diskPoolConfiguration.diskType()));
+        if (notNullOrEmpty(diskPoolConfiguration.getSourceSnapshot())) {
+            params.setSourceSnapshot(diskPoolConfiguration.getSourceSnapshot());
+        }
+        return disk.setInitializeParams(params);
+    }
+
+    private boolean diskExists(String project, String zoneName, String diskName) throws IOException {
+        try {
+            cloud.getCompute().disks().get(project, zoneName, diskName).execute();
+            return true;
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /** Jobs of the buildable items an agent of this configuration could run. */
+    private List<String> waitingJobs() {
+        return Jenkins.get().getQueue().getBuildableItems().stream()
+                .filter(item -> item.getAssignedLabel() == null
+                        ? Node.Mode.NORMAL.equals(mode)
+                        : item.getAssignedLabel().matches(getLabelSet()))
+                .map(item -> DiskPool.jobName(item.task))
+                .collect(Collectors.toList());
+    }
+
     private List<AcceleratorConfig> accelerators() {
         if (acceleratorConfiguration != null
                 && notNullOrEmpty(acceleratorConfiguration.getGpuCount())
@@ -809,6 +1311,20 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
             }
         }
 
+        public ListBoxModel doFillProvisioningModelItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Standard", PROVISIONING_MODEL_STANDARD);
+            items.add("Spot", PROVISIONING_MODEL_SPOT);
+            return items;
+        }
+
+        public ListBoxModel doFillInstanceTerminationActionItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Delete", "DELETE");
+            items.add("Stop", "STOP");
+            return items;
+        }
+
         public ListBoxModel doFillBootDiskTypeItems(
                 @AncestorInPath Jenkins context,
                 @QueryParameter("projectId") @RelativePath("..") final String projectId,
@@ -943,6 +1459,16 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckExecutorsPerVcpuStr(
+                @AncestorInPath Jenkins context,
+                @QueryParameter String value,
+                @QueryParameter("machineType") String machineType) {
+            if (intOrDefault(value, 0) > 0 && vcpusOf(machineType) <= 0) {
+                return FormValidation.warning(Messages.InstanceConfiguration_ExecutorsPerVcpuUnknownMachineType());
+            }
+            return FormValidation.ok();
+        }
+
         public List<NetworkInterfaceIpStackMode.Descriptor> getNetworkInterfaceIpStackModeDescriptors() {
             return ExtensionList.lookup(NetworkInterfaceIpStackMode.Descriptor.class);
         }
@@ -957,8 +1483,15 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
             instanceConfiguration.setZone(this.zone);
             instanceConfiguration.setMachineType(this.machineType);
             instanceConfiguration.setNumExecutorsStr(this.numExecutorsStr);
+            instanceConfiguration.setExecutorsPerVcpuStr(this.executorsPerVcpuStr);
+            instanceConfiguration.setMaxExecutorsStr(this.maxExecutorsStr);
+            instanceConfiguration.setPriorityStr(this.priorityStr);
+            instanceConfiguration.setReservedInstancesStr(this.reservedInstancesStr);
+            instanceConfiguration.setMaxInstancesStr(this.maxInstancesStr);
             instanceConfiguration.setStartupScript(this.startupScript);
             instanceConfiguration.setPreemptible(this.preemptible);
+            instanceConfiguration.setProvisioningModel(this.provisioningModel);
+            instanceConfiguration.setInstanceTerminationAction(this.instanceTerminationAction);
             instanceConfiguration.setMinCpuPlatform(this.minCpuPlatform);
             instanceConfiguration.setLabelString(this.labels);
             instanceConfiguration.setRunAsUser(this.runAsUser);
@@ -972,15 +1505,21 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
             instanceConfiguration.setNetworkInterfaceIpStackMode(this.networkInterfaceIpStackMode);
             instanceConfiguration.setUseInternalAddress(this.useInternalAddress);
             instanceConfiguration.setIgnoreProxy(this.ignoreProxy);
+            instanceConfiguration.setCompressAgentJar(this.compressAgentJar);
             instanceConfiguration.setNetworkTags(this.networkTags);
             instanceConfiguration.setServiceAccountEmail(this.serviceAccountEmail);
             instanceConfiguration.setMode(this.mode);
             instanceConfiguration.setAcceleratorConfiguration(this.acceleratorConfiguration);
+            instanceConfiguration.setDiskPoolConfiguration(this.diskPoolConfiguration);
+            instanceConfiguration.setAdditionalDisks(this.additionalDisks);
             instanceConfiguration.setRetentionTimeMinutesStr(this.retentionTimeMinutesStr);
+            instanceConfiguration.setIdleBudgetMinutesStr(this.idleBudgetMinutesStr);
             instanceConfiguration.setLaunchTimeoutSecondsStr(this.launchTimeoutSecondsStr);
             instanceConfiguration.setBootDiskSizeGbStr(this.bootDiskSizeGbStr);
+            instanceConfiguration.setBakeImageIntervalHoursStr(this.bakeImageIntervalHoursStr);
             instanceConfiguration.setOneShot(this.oneShot);
             instanceConfiguration.setTemplate(this.template);
+            instanceConfiguration.setManagedInstanceGroup(this.managedInstanceGroup);
             instanceConfiguration.setCreateSnapshot(this.createSnapshot);
             instanceConfiguration.setRemoteFs(this.remoteFs);
             instanceConfiguration.setJavaExecPath(this.javaExecPath);
@@ -997,10 +1536,34 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
             throw new NotImplementedException();
         }
 
+        private Builder executorsPerVcpu(Integer executorsPerVcpu) {
+            throw new NotImplementedException();
+        }
+
+        private Builder maxExecutors(Integer maxExecutors) {
+            throw new NotImplementedException();
+        }
+
+        private Builder priority(Integer priority) {
+            throw new NotImplementedException();
+        }
+
+        private Builder reservedInstances(Integer reservedInstances) {
+            throw new NotImplementedException();
+        }
+
+        private Builder maxInstances(Integer maxInstances) {
+            throw new NotImplementedException();
+        }
+
         private Builder retentionTimeMinutes(Integer retentionTimeMinutes) {
             throw new NotImplementedException();
         }
 
+        private Builder idleBudgetMinutes(Integer idleBudgetMinutes) {
+            throw new NotImplementedException();
+        }
+
         private Builder launchTimeoutSeconds(Integer launchTimeoutSeconds) {
             throw new NotImplementedException();
         }
@@ -1009,8 +1572,24 @@ public class InstanceConfiguration implements Describable<InstanceConfiguration>
             throw new NotImplementedException();
         }
 
+        private Builder bakeImageIntervalHours(Integer bakeImageIntervalHours) {
+            throw new NotImplementedException();
+        }
+
         private Builder labelSet(Set<LabelAtom> labelSet) {
             throw new NotImplementedException();
         }
+
+        private Builder prototype(Prototype prototype) {
+            throw new NotImplementedException();
+        }
+
+        private Builder bakedImage(String bakedImage) {
+            throw new NotImplementedException();
+        }
+
+        private Builder fingerprint(String fingerprint) {
+            throw new NotImplementedException();
+        }
     }
 }
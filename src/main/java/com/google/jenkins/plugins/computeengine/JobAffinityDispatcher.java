@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.listeners.ItemListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Sends builds back to the agents that ran their job before, whose workspace and caches are still
+ * warm. A build is kept off other agents of a cloud with {@link ComputeEngineCloud#isJobAffinity()}
+ * while an agent that ran its job is online and has a free executor that can take it. When none
+ * has, the build goes to any agent right away. Agents and jobs are forgotten once they are
+ * removed, so that at most {@link #MAX_AGENTS_PER_JOB} agents are remembered for each existing job.
+ */
+@Extension
+public class JobAffinityDispatcher extends QueueTaskDispatcher {
+    /** Number of agents remembered for each job, the ones that ran it last. */
+    static final int MAX_AGENTS_PER_JOB = 8;
+
+    private final Map<String, Set<String>> agentsByJob = new ConcurrentHashMap<>();
+
+    public static JobAffinityDispatcher get() {
+        return ExtensionList.lookupSingleton(JobAffinityDispatcher.class);
+    }
+
+    /**
+     * Records that an agent ran a task of a job.
+     *
+     * @param node The agent.
+     * @param task The task it accepted.
+     */
+    void recordUse(ComputeEngineInstance node, Queue.Task task) {
+        agentsByJob.compute(DiskPool.jobName(task), (job, agents) -> {
+            if (agents == null) {
+                agents = new LinkedHashSet<>();
+            }
+            synchronized (agents) {
+                agents.remove(node.getNodeName());
+                agents.add(node.getNodeName());
+                if (agents.size() > MAX_AGENTS_PER_JOB) {
+                    agents.remove(agents.iterator().next());
+                }
+            }
+            return agents;
+        });
+    }
+
+    /** @return The agents remembered for a job, the one that ran it last at the end. */
+    @VisibleForTesting
+    List<String> agentsOf(String job) {
+        Set<String> agents = agentsByJob.get(job);
+        if (agents == null) {
+            return new ArrayList<>();
+        }
+        synchronized (agents) {
+            return new ArrayList<>(agents);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (!(node instanceof ComputeEngineInstance)) {
+            return null;
+        }
+        try {
+            if (!((ComputeEngineInstance) node).getCloud().isJobAffinity()) {
+                return null;
+            }
+        } catch (CloudNotFoundException cnfe) {
+            return null;
+        }
+        Set<String> agents = agentsByJob.get(DiskPool.jobName(item.task));
+        if (agents == null) {
+            return null;
+        }
+        List<String> candidates;
+        synchronized (agents) {
+            if (agents.contains(node.getNodeName())) {
+                return null;
+            }
+            candidates = new ArrayList<>(agents);
+        }
+        for (String name : candidates) {
+            if (isFreeFor(name, item)) {
+                return CauseOfBlockage.fromMessage(Messages._JobAffinityDispatcher_WaitingForWarmAgent(name));
+            }
+        }
+        return null;
+    }
+
+    /** Checks if an agent that ran the job of an item before can take it now. */
+    private boolean isFreeFor(String name, Queue.BuildableItem item) {
+        Computer computer = getComputer(name);
+        if (!(computer instanceof ComputeEngineComputer)) {
+            forget(name);
+            return false;
+        }
+        Node node = computer.getNode();
+        if (node == null
+                || !computer.isOnline()
+                || !computer.isAcceptingTasks()
+                || computer.countIdle() == 0
+                || ((ComputeEngineComputer) computer).getPreempted()
+                || node.canTake(item) != null) {
+            return false;
+        }
+        for (QueueTaskDispatcher dispatcher : QueueTaskDispatcher.all()) {
+            if (dispatcher != this && dispatcher.canTake(node, item) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Computer getComputer(String name) {
+        return Jenkins.get().getComputer(name);
+    }
+
+    /** Forgets an agent that was removed. */
+    void forget(String name) {
+        for (String job : agentsByJob.keySet()) {
+            agentsByJob.computeIfPresent(job, (key, agents) -> {
+                synchronized (agents) {
+                    agents.remove(name);
+                    return agents.isEmpty() ? null : agents;
+                }
+            });
+        }
+    }
+
+    /** Forgets a job that was deleted, and the jobs of a folder that was deleted. */
+    void forgetJob(String fullName) {
+        agentsByJob.keySet().removeIf(job -> job.equals(fullName) || job.startsWith(fullName + "/"));
+    }
+
+    /** Remembers the agents of a job that was renamed or moved under its new name. */
+    void moveJob(String oldFullName, String newFullName) {
+        Set<String> agents = agentsByJob.remove(oldFullName);
+        if (agents != null) {
+            agentsByJob.put(newFullName, agents);
+        }
+    }
+
+    /** Forgets the agents that are removed. */
+    @Extension
+    public static final class AgentListener extends NodeListener {
+        @Override
+        protected void onDeleted(Node node) {
+            if (node instanceof ComputeEngineInstance) {
+                get().forget(node.getNodeName());
+            }
+        }
+    }
+
+    /** Forgets the jobs that are deleted, and follows the ones that are renamed or moved. */
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            get().forgetJob(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            get().moveJob(oldFullName, newFullName);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.cloud.graphite.platforms.plugin.client.util.ClientUtil.nameFromSelfLink;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.ManagedInstance;
+import com.google.api.services.compute.model.Metadata;
+import com.google.api.services.compute.model.RegionInstanceGroupManagersDeleteInstancesRequest;
+import com.google.api.services.compute.model.RegionInstanceGroupManagersListInstancesResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+
+/**
+ * Regional managed instance group that provisions the agents of an instance configuration. Instead
+ * of one insert request per agent, the group is resized once for all the agents needed, and creates
+ * the instances from its instance template across the zones of its region. The instances appearing
+ * in the group are then adopted as agents, and are deleted through the group so that it does not
+ * create them again.
+ *
+ * <p>The instances of the group are listed at most once per {@link #POLL_INTERVAL} for all waiting
+ * agents. Adopting an instance still takes a request to get it and, for Linux agents, one to add
+ * the SSH key of its agent to its metadata, as for an inserted instance.
+ */
+final class ManagedInstanceGroup {
+    private static final Logger LOGGER = Logger.getLogger(ManagedInstanceGroup.class.getName());
+    /** How often the instances of the group are listed while agents are waiting for one. */
+    static final long POLL_INTERVAL = 5 * 1000L;
+    private static final String CREATED_BY_METADATA_KEY = "created-by";
+
+    private static final Map<String, ManagedInstanceGroup> GROUPS = new ConcurrentHashMap<>();
+
+    private final String region;
+    private final String name;
+    /** Instances picked by an agent that is not added yet. */
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+    private List<ManagedInstance> instances = Collections.emptyList();
+    private long listedAt;
+
+    private ManagedInstanceGroup(String region, String name) {
+        this.region = region;
+        this.name = name;
+    }
+
+    /** Returns the group of an instance configuration of a cloud. */
+    static ManagedInstanceGroup of(ComputeEngineCloud cloud, InstanceConfiguration config) {
+        return of(cloud, url(config.getRegion(), config.getManagedInstanceGroup()));
+    }
+
+    /**
+     * Returns a group of a cloud.
+     *
+     * @param cloud Cloud of the group.
+     * @param url Partial URL of the group, see {@link #url}.
+     */
+    static ManagedInstanceGroup of(ComputeEngineCloud cloud, String url) {
+        return GROUPS.computeIfAbsent(
+                cloud.name + "/" + url, key -> new ManagedInstanceGroup(region(url), nameFromSelfLink(url)));
+    }
+
+    /**
+     * Returns the partial URL of a regional group, as stored by the agents it created.
+     *
+     * @param region Region or region self link of the group.
+     * @param group Name or self link of the group.
+     */
+    static String url(String region, String group) {
+        return "regions/" + nameFromSelfLink(region) + "/instanceGroupManagers/" + nameFromSelfLink(group);
+    }
+
+    /**
+     * Returns the regional group that created an instance, from the {@code created-by} metadata
+     * that groups set on their instances.
+     *
+     * @return The partial URL of the group, or null if the instance was not created by one.
+     */
+    static String groupOf(Instance instance) {
+        if (instance.getMetadata() == null || instance.getMetadata().getItems() == null) {
+            return null;
+        }
+        return instance.getMetadata().getItems().stream()
+                .filter(item -> CREATED_BY_METADATA_KEY.equals(item.getKey()))
+                .map(Metadata.Items::getValue)
+                .filter(value -> value != null
+                        && value.contains("/regions/")
+                        && value.contains("/instanceGroupManagers/"))
+                .map(value -> url(region(value), value))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /** Returns the region of a group URL. */
+    static String region(String url) {
+        return segmentAfter(url, "regions");
+    }
+
+    private static String segmentAfter(String url, String collection) {
+        String[] segments = url.split("/");
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments[i].equals(collection)) {
+                return segments[i + 1];
+            }
+        }
+        throw new IllegalArgumentException("No " + collection + " in " + url);
+    }
+
+    String getUrl() {
+        return url(region, name);
+    }
+
+    /**
+     * Grows the group by the given number of instances, with a single resize request. The target
+     * size is read and raised while holding the lock of the group, which {@link #deleteInstances}
+     * holds too, so that a delete lowering the target size meanwhile is not undone by the resize.
+     *
+     * @param cloud Cloud of the group.
+     * @param count Number of instances to add.
+     * @throws IOException If the group could not be resized.
+     */
+    synchronized void resize(ComputeEngineCloud cloud, int count) throws IOException {
+        Compute.RegionInstanceGroupManagers groups = cloud.getCompute().regionInstanceGroupManagers();
+        int targetSize = groups.get(cloud.getProjectId(), region, name).execute().getTargetSize();
+        groups.resize(cloud.getProjectId(), region, name, targetSize + count).execute();
+        LOGGER.log(
+                Level.INFO, "Resized instance group " + name + " from " + targetSize + " to " + (targetSize + count));
+    }
+
+    /**
+     * Deletes instances of the group with a single request, which also lowers its target size.
+     *
+     * @param cloud Cloud of the group.
+     * @param instances Partial URLs of the instances, {@code zones/<zone>/instances/<name>}.
+     * @throws IOException If the request failed.
+     */
+    synchronized void deleteInstances(ComputeEngineCloud cloud, List<String> instances) throws IOException {
+        cloud.getCompute()
+                .regionInstanceGroupManagers()
+                .deleteInstances(
+                        cloud.getProjectId(),
+                        region,
+                        name,
+                        new RegionInstanceGroupManagersDeleteInstancesRequest().setInstances(instances))
+                .execute();
+    }
+
+    /**
+     * Waits for a running instance of the group that is not an agent yet, nor being deleted, and
+     * creates its agent.
+     * Once the agent is added, {@link #added} must be called.
+     *
+     * @param cloud Cloud of the group.
+     * @param config Instance configuration of the group.
+     * @return The agent of the instance.
+     * @throws TimeoutException If no instance was available within the launch timeout.
+     */
+    ComputeEngineInstance awaitInstance(ComputeEngineCloud cloud, InstanceConfiguration config)
+            throws IOException, InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + config.getLaunchTimeoutMillis();
+        while (System.currentTimeMillis() < deadline) {
+            for (ManagedInstance managed : instances(cloud)) {
+                String instanceName = nameFromSelfLink(managed.getInstance());
+                if (!"RUNNING".equals(managed.getInstanceStatus())
+                        || !"NONE".equals(managed.getCurrentAction())
+                        || Jenkins.get().getNode(instanceName) != null
+                        || TerminationQueue.get()
+                                .isPending(cloud, segmentAfter(managed.getInstance(), "zones"), instanceName)
+                        || !claimed.add(instanceName)) {
+                    continue;
+                }
+                try {
+                    Instance instance = cloud.getClient()
+                            .getInstance(
+                                    cloud.getProjectId(), segmentAfter(managed.getInstance(), "zones"), instanceName);
+                    ComputeEngineInstance node = config.adopt(instance);
+                    if (node != null) {
+                        return node;
+                    }
+                } catch (IOException ioe) {
+                    LOGGER.log(Level.WARNING, "Error adopting instance " + instanceName + " of group " + name, ioe);
+                }
+                claimed.remove(instanceName);
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+        throw new TimeoutException("No instance of group " + name + " became available");
+    }
+
+    /** Releases the claim on an instance, once its agent is added. */
+    void added(String instanceName) {
+        claimed.remove(instanceName);
+    }
+
+    /**
+     * Lists the instances of the group, including those being deleted, to verify deletes sent
+     * through the group. Unlike the cloud's label, the group knows all of its instances.
+     *
+     * @param cloud Cloud of the group.
+     * @return The instances of the group, as {@code <zone>/<name>}.
+     * @throws IOException If the instances could not be listed.
+     */
+    Set<String> listInstanceNames(ComputeEngineCloud cloud) throws IOException {
+        return list(cloud).stream()
+                .map(ManagedInstance::getInstance)
+                .map(instance -> segmentAfter(instance, "zones") + "/" + nameFromSelfLink(instance))
+                .collect(Collectors.toSet());
+    }
+
+    /** Lists the instances of the group, at most once per {@link #POLL_INTERVAL} for all agents. */
+    private synchronized List<ManagedInstance> instances(ComputeEngineCloud cloud) throws IOException {
+        if (System.currentTimeMillis() - listedAt < POLL_INTERVAL) {
+            return instances;
+        }
+        return list(cloud);
+    }
+
+    /** Lists the instances of the group, and keeps them for the agents waiting for one. */
+    private synchronized List<ManagedInstance> list(ComputeEngineCloud cloud) throws IOException {
+        long now = System.currentTimeMillis();
+        List<ManagedInstance> result = new ArrayList<>();
+        String pageToken = null;
+        do {
+            RegionInstanceGroupManagersListInstancesResponse response = cloud.getCompute()
+                    .regionInstanceGroupManagers()
+                    .listManagedInstances(cloud.getProjectId(), region, name)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (response.getManagedInstances() != null) {
+                result.addAll(response.getManagedInstances());
+            }
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null);
+        instances = result;
+        listedAt = now;
+        return result;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+/**
+ * Keeps builds that were preempted too many times off preemptible and Spot agents, so that they are
+ * retried on standard capacity instead. See {@link ComputeEngineCloud#getMaxPreemptedReschedules()}.
+ */
+@Extension
+public class PreemptedTaskDispatcher extends QueueTaskDispatcher {
+
+    /** {@inheritDoc} */
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (!(node instanceof ComputeEngineInstance) || !((ComputeEngineInstance) node).isPreemptible()) {
+            return null;
+        }
+        try {
+            ComputeEngineCloud cloud = ((ComputeEngineInstance) node).getCloud();
+            int preemptions = PreemptionCountAction.preemptionsOf(item);
+            if (cloud.isPinnedToStandard(preemptions)) {
+                return CauseOfBlockage.fromMessage(Messages._PreemptedTaskDispatcher_PinnedToStandard(preemptions));
+            }
+        } catch (CloudNotFoundException cnfe) {
+            // Nothing to pin against without the cloud's settings.
+        }
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import hudson.model.Run;
+import lombok.Getter;
+
+/**
+ * Records how many times a build was preempted and rescheduled. Attached to the rescheduled queue
+ * item, and from there copied to the build it starts.
+ */
+@Getter
+public class PreemptionCountAction extends InvisibleAction {
+    private final int preemptions;
+
+    public PreemptionCountAction(int preemptions) {
+        this.preemptions = preemptions;
+    }
+
+    /**
+     * Returns the number of times the build of this queue item was preempted. For a queue item of a
+     * Pipeline {@code node} block the count of the owning build is used.
+     *
+     * @param item The queue item.
+     * @return The number of preemptions, 0 if it was never preempted.
+     */
+    public static int preemptionsOf(Queue.Item item) {
+        PreemptionCountAction action = item.getAction(PreemptionCountAction.class);
+        if (action == null && item.task.getOwnerExecutable() instanceof Run) {
+            action = ((Run<?, ?>) item.task.getOwnerExecutable()).getAction(PreemptionCountAction.class);
+        }
+        return preemptionsOf(action);
+    }
+
+    /**
+     * Returns the number of times this build or the builds it was rescheduled from were preempted.
+     *
+     * @param run The build.
+     * @return The number of preemptions, 0 if it was never preempted.
+     */
+    public static int preemptionsOf(Run<?, ?> run) {
+        return preemptionsOf(run.getAction(PreemptionCountAction.class));
+    }
+
+    private static int preemptionsOf(PreemptionCountAction action) {
+        return action != null ? action.getPreemptions() : 0;
+    }
+}
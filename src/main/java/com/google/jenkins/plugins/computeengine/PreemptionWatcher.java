@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CLOUD_ID_LABEL_KEY;
+
+import com.google.api.services.compute.model.Instance;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.PeriodicWork;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+import org.jenkinsci.Symbol;
+
+/**
+ * Periodically checks all preemptible agents for preemption. Each cloud's instances are listed with
+ * a single API call per run, so the cost of watching does not grow with the number of preemptible
+ * agents and no agent holds a controller thread while it waits to be preempted. An agent is
+ * preempted once its instance got a preemption notice, is shutting down, or no longer exists as
+ * its termination action deleted it. Agents that went offline stay watched, as a preempted
+ * instance often drops its channel before its status changes.
+ */
+@Extension
+@Symbol("preemptionWatcher")
+public class PreemptionWatcher extends PeriodicWork {
+    private static final long RECURRENCE_PERIOD = Long.getLong(
+            "com.google.jenkins.plugins.computeengine.PreemptionWatcher.recurrencePeriod", 15 * 1000L);
+
+    /** Statuses of a preempted instance, between the preemption notice and its deletion. */
+    private static final Set<String> PREEMPTED_STATUSES = ImmutableSet.of("STOPPING", "TERMINATED");
+
+    protected final Logger logger = Logger.getLogger(getClass().getName());
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doRun() {
+        logger.log(Level.FINEST, "Starting preemption watcher");
+        getWatchedComputers().forEach(this::checkCloud);
+    }
+
+    private void checkCloud(ComputeEngineCloud cloud, List<ComputeEngineComputer> computers) {
+        Map<String, String> statuses = findRemoteStatuses(cloud);
+        if (statuses == null) {
+            return;
+        }
+        for (ComputeEngineComputer computer : computers) {
+            String status = statuses.get(computer.getName());
+            if (status == null && computer.hasConnected()) {
+                logger.log(Level.INFO, "Instance " + computer.getName() + " is gone, handling preemption");
+                computer.onPreempted();
+            } else if (status != null && PREEMPTED_STATUSES.contains(status)) {
+                logger.log(Level.INFO, "Instance " + computer.getName() + " is " + status + ", handling preemption");
+                computer.onPreempted();
+            }
+        }
+    }
+
+    private Map<ComputeEngineCloud, List<ComputeEngineComputer>> getWatchedComputers() {
+        Map<ComputeEngineCloud, List<ComputeEngineComputer>> watched = new HashMap<>();
+        for (Computer c : getComputers()) {
+            if (!(c instanceof ComputeEngineComputer)) {
+                continue;
+            }
+            ComputeEngineComputer computer = (ComputeEngineComputer) c;
+            ComputeEngineInstance node = computer.getNode();
+            if (node == null || node.isTerminating() || computer.getPreempted()) {
+                continue;
+            }
+            if (computer.hasPreemptionNotice()) {
+                logger.log(Level.INFO, "Instance " + computer.getName() + " got a preemption notice");
+                computer.onPreempted();
+                continue;
+            }
+            try {
+                ComputeEngineCloud cloud = node.getCloud();
+                if (computer.getPreemptible()) {
+                    watched.computeIfAbsent(cloud, k -> new ArrayList<>()).add(computer);
+                }
+            } catch (CloudNotFoundException cnfe) {
+                logger.log(Level.FINE, "Not watching " + computer.getName() + " for preemption", cnfe);
+            }
+        }
+        return watched;
+    }
+
+    /** @return The computers of Jenkins, among which preemptible agents are watched. */
+    Computer[] getComputers() {
+        return Jenkins.get().getComputers();
+    }
+
+    /**
+     * @return The status of each instance of the cloud by name, or null if they could not be listed.
+     *     An instance that was not yet created is missing too, so only agents that connected are
+     *     considered preempted when their instance is missing.
+     */
+    private Map<String, String> findRemoteStatuses(ComputeEngineCloud cloud) {
+        Map<String, String> filterLabel = ImmutableMap.of(CLOUD_ID_LABEL_KEY, cloud.getInstanceId());
+        try {
+            return cloud.getClient().listInstancesWithLabel(cloud.getProjectId(), filterLabel).stream()
+                    .collect(Collectors.toMap(Instance::getName, PreemptionWatcher::statusOf, (a, b) -> a));
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error checking preempted instances in cloud " + cloud.getCloudName(), ex);
+            return null;
+        }
+    }
+
+    private static String statusOf(Instance instance) {
+        return instance.getStatus() == null ? "" : instance.getStatus();
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CLOUD_ID_LABEL_KEY;
+
+import com.google.api.services.compute.model.Instance;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.jenkins.plugins.computeengine.ssh.GoogleKeyCredential;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.slaves.Cloud;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+import jenkins.util.AtmostOneTaskExecutor;
+import lombok.Getter;
+
+/**
+ * Durable record of the instances being provisioned, from just before their insert request until
+ * their agent first connects. Agents already survive a restart of the controller with their
+ * launcher, which waits for the same insert operation again. Instances that were inserted but whose
+ * agent was not added yet are adopted on startup instead, rather than being deleted by {@link
+ * CleanLostNodesWork} and provisioned again.
+ *
+ * <p>The journal is written in the background, and changes made while it is being written are saved
+ * together by the next write. Only a new instance waits for its entry to be written, before its
+ * insert request is sent.
+ */
+@Extension
+public class ProvisioningJournal {
+    private static final Logger LOGGER = Logger.getLogger(ProvisioningJournal.class.getName());
+    /** How long an instance without agent is considered in flight. */
+    static final long MAX_INSERT_AGE = Long.getLong(
+            "com.google.jenkins.plugins.computeengine.ProvisioningJournal.maxInsertAge", 30 * 60 * 1000L);
+    /** Startup milestone attained once the journal is loaded, before lost instances are adopted. */
+    static final String RESUMED = "com.google.jenkins.plugins.computeengine.ProvisioningJournal.resumed";
+    private static final Set<String> ADOPTABLE_STATUSES = ImmutableSet.of("PROVISIONING", "STAGING", "RUNNING");
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtmostOneTaskExecutor<Void> saver = new AtmostOneTaskExecutor<>(() -> {
+        write();
+        return null;
+    });
+
+    public static ProvisioningJournal get() {
+        return ExtensionList.lookupSingleton(ProvisioningJournal.class);
+    }
+
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED, attains = RESUMED)
+    public static void resumeAfterRestart() {
+        ProvisioningJournal journal = get();
+        journal.load();
+        journal.resume();
+    }
+
+    @Terminator
+    public static void flushOnShutdown() {
+        get().flush();
+    }
+
+    /** Records an instance whose insert request is about to be sent, once the journal is written. */
+    void inserting(Entry entry) {
+        entries.put(entry.name, entry);
+        await(save());
+    }
+
+    /** Records the insert operation of an instance. */
+    void inserted(String name, String operationId) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            entry.operationId = operationId;
+            entry.phase = Phase.INSERTED;
+            save();
+        }
+    }
+
+    /** Records that the agent of an instance was added, and will be launched after a restart. */
+    void launching(String name) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            entry.phase = Phase.LAUNCHING;
+            save();
+        }
+    }
+
+    /** Forgets an instance, once its agent connected or it is deleted. */
+    void remove(String name) {
+        if (entries.remove(name) != null) {
+            save();
+        }
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Checks if an instance is being provisioned. Instances inserted more than {@link
+     * #MAX_INSERT_AGE} ago whose agent was never added are forgotten, so that they can be cleaned up.
+     *
+     * @param name Name of the instance.
+     * @return true if the instance is in flight and must not be deleted.
+     */
+    public boolean isProvisioning(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.phase != Phase.LAUNCHING && System.currentTimeMillis() - entry.createdAt > MAX_INSERT_AGE) {
+            LOGGER.log(Level.WARNING, "Agent of instance " + name + " was never added, forgetting it");
+            remove(name);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Resumes the provisions that were in flight when the controller stopped. Instances whose agent
+     * was added are launched again by Jenkins. Instances that still exist but have no agent are
+     * adopted, before provisioning starts so that they count as capacity, and the others are
+     * forgotten. The instances of each cloud are found with a single list request.
+     */
+    void resume() {
+        Jenkins jenkins = Jenkins.get();
+        Map<String, List<Entry>> entriesByCloud = new HashMap<>();
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (jenkins.getNode(entry.name) instanceof ComputeEngineInstance) {
+                LOGGER.log(Level.INFO, "Resuming launch of instance " + entry.name);
+                launching(entry.name);
+            } else {
+                entriesByCloud.computeIfAbsent(entry.cloudName, name -> new ArrayList<>()).add(entry);
+            }
+        }
+        entriesByCloud.forEach(this::resume);
+    }
+
+    private void resume(String cloudName, List<Entry> cloudEntries) {
+        Cloud cloud = Jenkins.get().getCloud(cloudName);
+        if (!(cloud instanceof ComputeEngineCloud)) {
+            for (Entry entry : cloudEntries) {
+                LOGGER.log(Level.INFO, "Cloud of instance " + entry.name + " no longer exists, not adopting it");
+                remove(entry.name);
+            }
+            return;
+        }
+        ComputeEngineCloud computeEngineCloud = (ComputeEngineCloud) cloud;
+        Map<String, String> filterLabel = ImmutableMap.of(CLOUD_ID_LABEL_KEY, computeEngineCloud.getInstanceId());
+        Map<String, Instance> instances;
+        try {
+            instances = computeEngineCloud
+                    .getClient()
+                    .listInstancesWithLabel(computeEngineCloud.getProjectId(), filterLabel)
+                    .stream()
+                    .collect(Collectors.toMap(Instance::getName, Function.identity(), (first, second) -> first));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not resume provisioning of instances of cloud " + cloudName, e);
+            cloudEntries.forEach(entry -> remove(entry.name));
+            return;
+        }
+        for (Entry entry : cloudEntries) {
+            try {
+                resume(computeEngineCloud, entry, instances.get(entry.name));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not resume provisioning of instance " + entry.name, e);
+                remove(entry.name);
+            }
+        }
+    }
+
+    private void resume(ComputeEngineCloud cloud, Entry entry, Instance instance) throws IOException {
+        Optional<InstanceConfiguration> configuration = configuration(cloud, entry.configName);
+        if (!configuration.isPresent()) {
+            LOGGER.log(Level.INFO, "Configuration of instance " + entry.name + " no longer exists, not adopting it");
+            remove(entry.name);
+            return;
+        }
+        if (instance == null) {
+            LOGGER.log(Level.INFO, "Instance " + entry.name + " was never created");
+            remove(entry.name);
+            return;
+        }
+        if (!ADOPTABLE_STATUSES.contains(instance.getStatus())) {
+            LOGGER.log(Level.INFO, "Instance " + entry.name + " is " + instance.getStatus() + ", not adopting it");
+            remove(entry.name);
+            return;
+        }
+        ComputeEngineInstance adopted =
+                configuration.get().adopt(instance, entry.operationId, entry.sshKeyCredential, entry.diskMounts);
+        if (adopted == null) {
+            remove(entry.name);
+            return;
+        }
+        Jenkins.get().addNode(adopted);
+        launching(entry.name);
+        LOGGER.log(Level.INFO, "Adopted instance " + entry.name + " inserted before the restart");
+    }
+
+    private static Optional<InstanceConfiguration> configuration(ComputeEngineCloud cloud, String configName) {
+        List<InstanceConfiguration> configurations = cloud.getConfigurations();
+        return configurations == null
+                ? Optional.empty()
+                : configurations.stream()
+                        .filter(config -> config.getNamePrefix().equals(configName))
+                        .findFirst();
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(
+                Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), ProvisioningJournal.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void load() {
+        XmlFile file = getConfigFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            for (Entry entry : (List<Entry>) file.read()) {
+                entries.put(entry.name, entry);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not load " + file, e);
+        }
+    }
+
+    /** Waits until the changes made so far are written. */
+    void flush() {
+        await(save());
+    }
+
+    /**
+     * Schedules a write of the journal. A write already scheduled but not started yet also saves
+     * this change, so that the journal is written at most once at a time however often it changes.
+     */
+    private Future<Void> save() {
+        return saver.submit();
+    }
+
+    private static void await(Future<Void> write) {
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Could not save the provisioning journal", e.getCause());
+        }
+    }
+
+    private void write() {
+        try {
+            getConfigFile().write(new ArrayList<>(entries.values()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the provisioning journal", e);
+        }
+    }
+
+    /** Phase of an instance being provisioned. */
+    public enum Phase {
+        /** The insert request is being sent. */
+        INSERTING,
+        /** The insert request was accepted, but the agent was not added yet. */
+        INSERTED,
+        /** The agent was added and is launching. */
+        LAUNCHING
+    }
+
+    /** An instance being provisioned. */
+    @Getter
+    public static class Entry {
+        private final String cloudName;
+        private final String configName;
+        private final String name;
+        private final String zone;
+        private final GoogleKeyCredential sshKeyCredential;
+        private final List<DiskMount> diskMounts;
+        private final long createdAt;
+        private volatile String operationId;
+        private volatile Phase phase;
+
+        Entry(
+                String cloudName,
+                String configName,
+                String name,
+                String zone,
+                GoogleKeyCredential sshKeyCredential,
+                List<DiskMount> diskMounts) {
+            this.cloudName = cloudName;
+            this.configName = configName;
+            this.name = name;
+            this.zone = zone;
+            this.sshKeyCredential = sshKeyCredential;
+            this.diskMounts = diskMounts;
+            this.createdAt = System.currentTimeMillis();
+            this.phase = Phase.INSERTING;
+        }
+    }
+}
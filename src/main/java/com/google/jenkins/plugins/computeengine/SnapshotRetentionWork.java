@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CLOUD_ID_LABEL_KEY;
+import static com.google.jenkins.plugins.computeengine.SnapshotWorker.SNAPSHOT_LABEL_KEY;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Snapshot;
+import com.google.api.services.compute.model.SnapshotList;
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import jenkins.model.Jenkins;
+import org.jenkinsci.Symbol;
+
+/**
+ * Periodically deletes snapshots of failed agents that are older than the retention period of
+ * their cloud, or beyond the number of snapshots the cloud keeps.
+ */
+@Extension
+@Symbol("snapshotRetentionWork")
+public class SnapshotRetentionWork extends PeriodicWork {
+    protected final Logger logger = Logger.getLogger(getClass().getName());
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRecurrencePeriod() {
+        return HOUR;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doRun() {
+        logger.log(Level.FINEST, "Starting snapshot retention worker");
+        getClouds().stream()
+                .filter(cloud -> cloud.getSnapshotRetentionDays() > 0 || cloud.getMaxSnapshots() > 0)
+                .forEach(this::cleanCloud);
+    }
+
+    private void cleanCloud(ComputeEngineCloud cloud) {
+        List<Snapshot> snapshots;
+        try {
+            snapshots = findSnapshots(cloud);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error listing snapshots of cloud " + cloud.getCloudName(), ex);
+            return;
+        }
+        for (Snapshot snapshot : expired(
+                snapshots, cloud.getSnapshotRetentionDays(), cloud.getMaxSnapshots(), Instant.now())) {
+            logger.log(Level.INFO, "Deleting expired snapshot " + snapshot.getName());
+            try {
+                cloud.getClient().deleteSnapshotAsync(cloud.getProjectId(), snapshot.getName());
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error deleting snapshot " + snapshot.getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Selects the snapshots to delete.
+     *
+     * @param snapshots Snapshots of failed agents of a cloud.
+     * @param retentionDays Days after which snapshots are deleted, 0 for no limit.
+     * @param maxSnapshots Number of most recent snapshots to keep, 0 for no limit.
+     * @param now Current time.
+     * @return The snapshots to delete.
+     */
+    static List<Snapshot> expired(List<Snapshot> snapshots, int retentionDays, int maxSnapshots, Instant now) {
+        List<Snapshot> newestFirst = snapshots.stream()
+                .sorted(Comparator.comparing(SnapshotRetentionWork::createdAt).reversed())
+                .collect(Collectors.toList());
+        Instant cutoff = now.minus(Duration.ofDays(retentionDays));
+        List<Snapshot> expired = new ArrayList<>();
+        for (int i = 0; i < newestFirst.size(); i++) {
+            Snapshot snapshot = newestFirst.get(i);
+            if ((maxSnapshots > 0 && i >= maxSnapshots)
+                    || (retentionDays > 0 && createdAt(snapshot).isBefore(cutoff))) {
+                expired.add(snapshot);
+            }
+        }
+        return expired;
+    }
+
+    private static Instant createdAt(Snapshot snapshot) {
+        if (snapshot.getCreationTimestamp() == null) {
+            return Instant.EPOCH;
+        }
+        return OffsetDateTime.parse(snapshot.getCreationTimestamp()).toInstant();
+    }
+
+    private List<Snapshot> findSnapshots(ComputeEngineCloud cloud) throws IOException {
+        Compute compute = cloud.getCompute();
+        String filter = String.format("labels.%s=%s", CLOUD_ID_LABEL_KEY, cloud.getInstanceId());
+        List<Snapshot> snapshots = new ArrayList<>();
+        String pageToken = null;
+        do {
+            SnapshotList page = compute.snapshots()
+                    .list(cloud.getProjectId())
+                    .setFilter(filter)
+                    .setPageToken(pageToken)
+                    .execute();
+            if (page.getItems() != null) {
+                page.getItems().stream()
+                        .filter(snapshot -> snapshot.getLabels() != null
+                                && snapshot.getLabels().containsKey(SNAPSHOT_LABEL_KEY))
+                        .forEach(snapshots::add);
+            }
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return snapshots;
+    }
+
+    private List<ComputeEngineCloud> getClouds() {
+        return Jenkins.get().clouds.stream()
+                .filter(cloud -> cloud instanceof ComputeEngineCloud)
+                .map(cloud -> (ComputeEngineCloud) cloud)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.cloud.graphite.platforms.plugin.client.util.ClientUtil.nameFromSelfLink;
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CLOUD_ID_LABEL_KEY;
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CONFIG_LABEL_KEY;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.Snapshot;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Snapshots the boot disk of agents of failed one-shot builds in the background, then deletes the
+ * instance as soon as the disk is captured, without waiting for the snapshot upload to finish.
+ * The number of snapshots taken and queued at the same time is bounded; when the queue is full the
+ * instance is deleted without a snapshot.
+ */
+final class SnapshotWorker {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotWorker.class.getName());
+    private static final int THREADS =
+            Integer.getInteger("com.google.jenkins.plugins.computeengine.SnapshotWorker.threads", 2);
+    private static final int QUEUE_SIZE =
+            Integer.getInteger("com.google.jenkins.plugins.computeengine.SnapshotWorker.queueSize", 20);
+    private static final long POLL_MILLIS = 5000;
+    static final String SNAPSHOT_LABEL_KEY = "jenkins_snapshot";
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private SnapshotWorker() {}
+
+    private static ThreadPoolExecutor createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                THREADS,
+                THREADS,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Google Compute Engine snapshot worker"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Queues a snapshot of the agent's boot disk, followed by the deletion of its instance.
+     *
+     * @param node The agent being terminated.
+     * @param cloud Cloud of the agent.
+     * @param timeoutMillis How long to wait for the disk to be captured before deleting anyway.
+     * @return false if the queue is full, the caller must then delete the instance itself.
+     */
+    static boolean submit(ComputeEngineInstance node, ComputeEngineCloud cloud, long timeoutMillis) {
+        try {
+            EXECUTOR.execute(() -> snapshotThenDelete(node, cloud, timeoutMillis));
+            return true;
+        } catch (RejectedExecutionException ree) {
+            LOGGER.log(Level.WARNING, "Snapshot queue is full, not creating snapshot for " + node.getNodeName());
+            return false;
+        }
+    }
+
+    private static void snapshotThenDelete(ComputeEngineInstance node, ComputeEngineCloud cloud, long timeoutMillis) {
+        String name = node.getNodeName();
+        try {
+            captureSnapshot(cloud, node, timeoutMillis);
+            LOGGER.log(Level.INFO, "Captured snapshot " + name + ", deleting instance");
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "Error creating snapshot for " + name, ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            node.deleteInstance(cloud);
+        }
+    }
+
+    /**
+     * Starts a snapshot of the boot disk and waits until the disk is captured, which happens before
+     * the snapshot is uploaded. The disk may be deleted from then on.
+     */
+    private static void captureSnapshot(ComputeEngineCloud cloud, ComputeEngineInstance node, long timeoutMillis)
+            throws IOException, InterruptedException {
+        Compute compute = cloud.getCompute();
+        String project = cloud.getProjectId();
+        String zone = nameFromSelfLink(node.getZone());
+        String name = node.getNodeName();
+
+        Map<String, String> labels = new HashMap<>();
+        labels.put(CLOUD_ID_LABEL_KEY, cloud.getInstanceId());
+        labels.put(SNAPSHOT_LABEL_KEY, "failure");
+        if (node.getConfigName() != null) {
+            labels.put(CONFIG_LABEL_KEY, node.getConfigName());
+        }
+        Snapshot snapshot = new Snapshot().setName(name).setLabels(labels);
+        Operation operation = compute.disks().createSnapshot(project, zone, name, snapshot).execute();
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            if (operation.getError() != null) {
+                throw new IOException("Snapshot " + name + " failed: " + operation.getError());
+            }
+            if ("DONE".equals(operation.getStatus()) || isCaptured(compute, project, name)) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Timed out waiting for snapshot " + name + " to capture the disk");
+            }
+            Thread.sleep(POLL_MILLIS);
+            operation = compute.zoneOperations().get(project, zone, operation.getName()).execute();
+        }
+    }
+
+    private static boolean isCaptured(Compute compute, String project, String name) throws IOException {
+        try {
+            String status = compute.snapshots().get(project, name).execute().getStatus();
+            return "UPLOADING".equals(status) || "READY".equals(status);
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import hudson.Extension;
+import hudson.model.AdministrativeMonitor;
+import java.util.Collection;
+import jenkins.model.Jenkins;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/** Reports instances that could not be deleted, so they can be retried or cleaned up manually. */
+@Extension
+@Symbol("computeEngineTerminationMonitor")
+public class TerminationMonitor extends AdministrativeMonitor {
+
+    @Override
+    public boolean isActivated() {
+        return !TerminationQueue.get().getFailed().isEmpty();
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.TerminationMonitor_DisplayName();
+    }
+
+    public Collection<TerminationQueue.PendingDelete> getFailed() {
+        return TerminationQueue.get().getFailed();
+    }
+
+    @RequirePOST
+    public HttpResponse doAct(@QueryParameter String retry) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (retry != null) {
+            TerminationQueue.get().retryFailed();
+        } else {
+            TerminationQueue.get().clearFailed();
+        }
+        return HttpResponses.forwardToPreviousPage();
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.cloud.graphite.platforms.plugin.client.util.ClientUtil.nameFromSelfLink;
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CLOUD_ID_LABEL_KEY;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Operation;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.PeriodicWork;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.jenkinsci.Symbol;
+
+/**
+ * Deletes instances in the background. Deletes requested within the same run are coalesced into
+ * one batch request per cloud and zone, and their completion is verified with a single instance
+ * list per cloud. Instances created by a managed instance group are deleted through their group,
+ * with one request per group, and verified with the instance list of their group. Failed or stuck
+ * deletes are retried with exponential backoff; deletes that still fail after {@link #MAX_ATTEMPTS}
+ * attempts are reported by {@link TerminationMonitor}.
+ *
+ * <p>The queue is only kept in memory. Deletes still queued when the controller stops are not sent
+ * again after a restart: their instances have no agent anymore, so {@link CleanLostNodesWork}
+ * deletes them as lost instances, and instances of a managed instance group are adopted again by
+ * their group.
+ */
+@Extension
+@Symbol("terminationQueue")
+public class TerminationQueue extends PeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(TerminationQueue.class.getName());
+    private static final long RECURRENCE_PERIOD = Long.getLong(
+            "com.google.jenkins.plugins.computeengine.TerminationQueue.recurrencePeriod", 5 * 1000L);
+    static final int MAX_ATTEMPTS =
+            Integer.getInteger("com.google.jenkins.plugins.computeengine.TerminationQueue.maxAttempts", 5);
+    /** Maximum number of deletes sent in a single batch request. */
+    static final int BATCH_SIZE = 100;
+
+    static final long INITIAL_BACKOFF = 5 * 1000L;
+    static final long MAX_BACKOFF = 5 * 60 * 1000L;
+    /** How long a sent delete may take before it is sent again. */
+    static final long DELETE_TIMEOUT = 10 * 60 * 1000L;
+    /**
+     * Most deletes queued at a time. Beyond it, deletes are sent right away by their caller, without
+     * batching or retries.
+     */
+    static final int MAX_PENDING =
+            Integer.getInteger("com.google.jenkins.plugins.computeengine.TerminationQueue.maxPending", 10000);
+
+    /** Deletes by {@link #key}, as instance names are only unique within a project and zone. */
+    private final Map<String, PendingDelete> pending = new ConcurrentHashMap<>();
+
+    private final Map<String, PendingDelete> failed = new ConcurrentHashMap<>();
+    private final AtomicLong deletedCount = new AtomicLong();
+    private final AtomicLong deleteMillis = new AtomicLong();
+    private final int maxPending;
+
+    public TerminationQueue() {
+        this(MAX_PENDING);
+    }
+
+    TerminationQueue(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    public static TerminationQueue get() {
+        return ExtensionList.lookupSingleton(TerminationQueue.class);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    /**
+     * Queues the deletion of an instance. Queueing an instance that is already pending returns the
+     * existing request.
+     *
+     * @param cloud Cloud of the instance.
+     * @param zone Zone or zone self link of the instance.
+     * @param name Name of the instance.
+     * @return Completed with true once the instance is gone, or false if the delete failed.
+     */
+    public CompletableFuture<Boolean> submit(ComputeEngineCloud cloud, String zone, String name) {
+        return submit(cloud, zone, name, null);
+    }
+
+    /**
+     * Queues the deletion of an instance created by a managed instance group, which is deleted
+     * through the group so that the group does not create it again.
+     *
+     * @param cloud Cloud of the instance.
+     * @param zone Zone or zone self link of the instance.
+     * @param name Name of the instance.
+     * @param group Partial URL of the group of the instance, or null if it has none.
+     * @return Completed with true once the instance is gone, or false if the delete failed.
+     */
+    public CompletableFuture<Boolean> submit(ComputeEngineCloud cloud, String zone, String name, String group) {
+        String key = key(cloud, zone, name);
+        PendingDelete previous = failed.remove(key);
+        CompletableFuture<Boolean> gone = previous != null ? previous.gone : new CompletableFuture<>();
+        PendingDelete existing = pending.get(key);
+        if (existing != null) {
+            return existing.future;
+        }
+        if (pending.size() >= maxPending) {
+            return overflow(new PendingDelete(cloud, nameFromSelfLink(zone), name, group, gone));
+        }
+        return pending.computeIfAbsent(key, k -> new PendingDelete(cloud, nameFromSelfLink(zone), name, group, gone))
+                .future;
+    }
+
+    private static String key(ComputeEngineCloud cloud, String zone, String name) {
+        return cloud.name + "/" + cloud.getProjectId() + "/" + nameFromSelfLink(zone) + "/" + name;
+    }
+
+    /**
+     * Returns when an instance whose delete was queued is gone. Unlike the future returned by {@link
+     * #submit}, it is not completed when the delete fails, but once a retry of the failed delete
+     * succeeds.
+     *
+     * @param cloud Cloud of the instance.
+     * @param zone Zone or zone self link of the instance.
+     * @param name Name of the instance.
+     * @return Completed with true once the instance is gone, or with false once its failed delete
+     *     was forgotten with {@link #clearFailed()}, as it is then unknown whether it is gone.
+     */
+    public CompletableFuture<Boolean> whenGone(ComputeEngineCloud cloud, String zone, String name) {
+        String key = key(cloud, zone, name);
+        PendingDelete delete = pending.get(key);
+        if (delete == null) {
+            delete = failed.get(key);
+        }
+        return delete != null ? delete.gone : CompletableFuture.completedFuture(true);
+    }
+
+    /**
+     * Sends a delete on the caller's thread while the queue is full, so that callers slow down
+     * instead of the queue growing without bounds. The delete is complete once it is accepted. It is
+     * not retried, a failed delete is reported by {@link TerminationMonitor}.
+     */
+    private CompletableFuture<Boolean> overflow(PendingDelete delete) {
+        LOGGER.log(
+                Level.WARNING,
+                "More than " + maxPending + " deletes queued, deleting instance " + delete.name + " right away");
+        long now = System.currentTimeMillis();
+        delete.attempts = MAX_ATTEMPTS;
+        try {
+            if (delete.group != null) {
+                deleteFromGroup(delete.cloud, delete.group, Collections.singletonList(delete), now);
+            } else {
+                deleteBatch(delete.cloud, delete.zone, Collections.singletonList(delete), now);
+            }
+        } catch (IOException ioe) {
+            retry(delete, ioe.getMessage(), now);
+        }
+        if (delete.sentAt > 0) {
+            delete.future.complete(true);
+            delete.gone.complete(true);
+        }
+        return delete.future;
+    }
+
+    /**
+     * @param cloud Cloud of the instance.
+     * @param zone Zone or zone self link of the instance.
+     * @param name Name of the instance.
+     * @return true if the delete of the instance is queued or in progress.
+     */
+    public boolean isPending(ComputeEngineCloud cloud, String zone, String name) {
+        return pending.containsKey(key(cloud, zone, name));
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public Collection<PendingDelete> getFailed() {
+        return Collections.unmodifiableCollection(failed.values());
+    }
+
+    /** @return Number of deletes confirmed since startup. */
+    public long getDeletedCount() {
+        return deletedCount.get();
+    }
+
+    /** @return Average time from queueing a delete until the instance was gone, in milliseconds. */
+    public long getAverageDeleteMillis() {
+        long count = deletedCount.get();
+        return count == 0 ? 0 : deleteMillis.get() / count;
+    }
+
+    /** Queues all failed deletes again. */
+    public void retryFailed() {
+        List<PendingDelete> retries = new ArrayList<>(failed.values());
+        retries.forEach(delete -> submit(delete.cloud, delete.zone, delete.name, delete.group));
+    }
+
+    /** Forgets failed deletes, for instances deleted manually. */
+    public void clearFailed() {
+        List<PendingDelete> cleared = new ArrayList<>(failed.values());
+        failed.clear();
+        cleared.forEach(delete -> delete.gone.complete(false));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doRun() {
+        process(System.currentTimeMillis());
+    }
+
+    void process(long now) {
+        Map<ComputeEngineCloud, List<PendingDelete>> byCloud =
+                pending.values().stream().collect(Collectors.groupingBy(delete -> delete.cloud));
+        byCloud.forEach((cloud, deletes) -> {
+            verify(cloud, deletes, now);
+            send(cloud, deletes, now);
+        });
+    }
+
+    /**
+     * Completes sent deletes whose instance is gone, and retries those taking too long. Instances
+     * of a managed instance group may not have the label of the cloud, so they are looked up in the
+     * instance list of their group instead.
+     */
+    private void verify(ComputeEngineCloud cloud, List<PendingDelete> deletes, long now) {
+        Map<Boolean, List<PendingDelete>> sent = deletes.stream()
+                .filter(delete -> delete.sentAt > 0)
+                .collect(Collectors.partitioningBy(delete -> delete.group != null));
+        if (!sent.get(false).isEmpty()) {
+            try {
+                Map<String, String> filterLabel = ImmutableMap.of(CLOUD_ID_LABEL_KEY, cloud.getInstanceId());
+                Set<String> remaining =
+                        cloud.getClient().listInstancesWithLabel(cloud.getProjectId(), filterLabel).stream()
+                                .map(instance -> nameFromSelfLink(instance.getZone()) + "/" + instance.getName())
+                                .collect(Collectors.toSet());
+                verify(sent.get(false), remaining, now);
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Error verifying deletes in cloud " + cloud.getCloudName(), ioe);
+            }
+        }
+        Map<String, List<PendingDelete>> byGroup =
+                sent.get(true).stream().collect(Collectors.groupingBy(delete -> delete.group));
+        byGroup.forEach((group, groupDeletes) -> {
+            try {
+                verify(groupDeletes, ManagedInstanceGroup.of(cloud, group).listInstanceNames(cloud), now);
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Error verifying deletes in group " + group, ioe);
+            }
+        });
+    }
+
+    /**
+     * @param sent Sent deletes.
+     * @param remaining Instances that still exist, as {@code <zone>/<name>}.
+     */
+    private void verify(List<PendingDelete> sent, Set<String> remaining, long now) {
+        for (PendingDelete delete : sent) {
+            if (!remaining.contains(delete.zone + "/" + delete.name)) {
+                deleted(delete, now);
+            } else if (now - delete.sentAt > DELETE_TIMEOUT) {
+                retry(delete, "Instance still exists after delete", now);
+            }
+        }
+    }
+
+    /** Sends due deletes, one batch request per zone and one request per managed instance group. */
+    private void send(ComputeEngineCloud cloud, List<PendingDelete> deletes, long now) {
+        Map<Boolean, List<PendingDelete>> due = deletes.stream()
+                .filter(delete -> delete.sentAt == 0 && delete.nextAttemptAt <= now)
+                .collect(Collectors.partitioningBy(delete -> delete.group != null));
+        Map<String, List<PendingDelete>> byZone =
+                due.get(false).stream().collect(Collectors.groupingBy(delete -> delete.zone));
+        byZone.forEach((zone, zoneDeletes) -> {
+            for (List<PendingDelete> batch : Lists.partition(zoneDeletes, BATCH_SIZE)) {
+                batch.forEach(delete -> delete.attempts++);
+                try {
+                    deleteBatch(cloud, zone, batch, now);
+                } catch (IOException ioe) {
+                    LOGGER.log(Level.WARNING, "Error sending deletes in zone " + zone, ioe);
+                    batch.forEach(delete -> retry(delete, ioe.getMessage(), now));
+                }
+            }
+        });
+        Map<String, List<PendingDelete>> byGroup =
+                due.get(true).stream().collect(Collectors.groupingBy(delete -> delete.group));
+        byGroup.forEach((group, groupDeletes) -> {
+            for (List<PendingDelete> batch : Lists.partition(groupDeletes, BATCH_SIZE)) {
+                batch.forEach(delete -> delete.attempts++);
+                try {
+                    deleteFromGroup(cloud, group, batch, now);
+                } catch (IOException ioe) {
+                    LOGGER.log(Level.WARNING, "Error sending deletes to group " + group, ioe);
+                    batch.forEach(delete -> retry(delete, ioe.getMessage(), now));
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the deletes of instances in one zone as a single batch request, and records the outcome
+     * of each delete with {@link #sent}, {@link #deleted} or {@link #retry}.
+     */
+    void deleteBatch(ComputeEngineCloud cloud, String zone, List<PendingDelete> batch, long now)
+            throws IOException {
+        LOGGER.log(Level.FINE, "Deleting " + batch.size() + " instances in zone " + zone);
+        Compute compute = cloud.getCompute();
+        BatchRequest request = compute.batch();
+        for (PendingDelete delete : batch) {
+            compute.instances()
+                    .delete(cloud.getProjectId(), zone, delete.name)
+                    .queue(request, new JsonBatchCallback<Operation>() {
+                        @Override
+                        public void onSuccess(Operation operation, HttpHeaders responseHeaders) {
+                            sent(delete, now);
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                            if (error.getCode() == 404) {
+                                deleted(delete, now);
+                            } else {
+                                retry(delete, error.getMessage(), now);
+                            }
+                        }
+                    });
+        }
+        request.execute();
+    }
+
+    /**
+     * Deletes instances of a regional managed instance group with a single request, which also
+     * lowers the target size of the group, and records them as {@link #sent}. The request is
+     * serialized with the resizes of the group, see {@link ManagedInstanceGroup#deleteInstances}.
+     */
+    void deleteFromGroup(ComputeEngineCloud cloud, String group, List<PendingDelete> batch, long now)
+            throws IOException {
+        LOGGER.log(Level.FINE, "Deleting " + batch.size() + " instances of group " + group);
+        List<String> instances = batch.stream()
+                .map(delete -> "zones/" + delete.zone + "/instances/" + delete.name)
+                .collect(Collectors.toList());
+        ManagedInstanceGroup.of(cloud, group).deleteInstances(cloud, instances);
+        batch.forEach(delete -> sent(delete, now));
+    }
+
+    void sent(PendingDelete delete, long now) {
+        delete.sentAt = now;
+    }
+
+    void deleted(PendingDelete delete, long now) {
+        pending.remove(delete.key, delete);
+        deletedCount.incrementAndGet();
+        deleteMillis.addAndGet(now - delete.queuedAt);
+        LOGGER.log(Level.FINE, "Instance " + delete.name + " deleted after " + (now - delete.queuedAt) + "ms");
+        delete.future.complete(true);
+        delete.gone.complete(true);
+    }
+
+    void retry(PendingDelete delete, String error, long now) {
+        delete.sentAt = 0;
+        delete.lastError = error;
+        if (delete.attempts >= MAX_ATTEMPTS) {
+            LOGGER.log(Level.WARNING, "Giving up deleting instance " + delete.name + ": " + error);
+            pending.remove(delete.key, delete);
+            failed.put(delete.key, delete);
+            delete.future.complete(false);
+            return;
+        }
+        long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << (delete.attempts - 1));
+        LOGGER.log(
+                Level.INFO,
+                "Error deleting instance " + delete.name + ", retrying in " + backoff / 1000 + "s: " + error);
+        delete.nextAttemptAt = now + backoff;
+    }
+
+    /** Delete of a single instance, from queueing until the instance is gone or the delete failed. */
+    @Getter
+    public static class PendingDelete {
+        private final ComputeEngineCloud cloud;
+        private final String zone;
+        private final String name;
+        /** Partial URL of the managed instance group of the instance, null if it has none. */
+        private final String group;
+        private final long queuedAt;
+        private volatile int attempts;
+        private volatile long nextAttemptAt;
+        /** When the last delete was accepted, 0 while no delete is in progress. */
+        private volatile long sentAt;
+
+        private volatile String lastError;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        /** Completed once the instance is gone, shared by the retries of a failed delete. */
+        @Getter(AccessLevel.NONE)
+        private final CompletableFuture<Boolean> gone;
+
+        @Getter(AccessLevel.NONE)
+        private final String key;
+
+        PendingDelete(
+                ComputeEngineCloud cloud, String zone, String name, String group, CompletableFuture<Boolean> gone) {
+            this.cloud = cloud;
+            this.zone = zone;
+            this.name = name;
+            this.group = group;
+            this.gone = gone;
+            this.key = key(cloud, zone, name);
+            this.queuedAt = System.currentTimeMillis();
+        }
+    }
+}
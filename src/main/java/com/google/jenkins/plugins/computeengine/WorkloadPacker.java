@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Plans the agents that cover a workload with the fewest instances. Between plans with as many
+ * instances, the one with the fewest vCPUs is chosen, as their cost grows with them.
+ */
+final class WorkloadPacker {
+
+    private WorkloadPacker() {}
+
+    /**
+     * @param configs Configurations that can run the workload.
+     * @param workload Number of executors needed.
+     * @return Configurations of the agents to provision, those with the most executors first.
+     */
+    static List<InstanceConfiguration> pack(List<InstanceConfiguration> configs, int workload) {
+        if (configs.isEmpty() || workload <= 0) {
+            return Collections.emptyList();
+        }
+        // Best plan covering w executors: its number of instances, its vCPUs and its last agent
+        int[] instances = new int[workload + 1];
+        long[] vcpus = new long[workload + 1];
+        InstanceConfiguration[] last = new InstanceConfiguration[workload + 1];
+        for (int w = 1; w <= workload; w++) {
+            instances[w] = Integer.MAX_VALUE;
+            for (InstanceConfiguration config : configs) {
+                int rest = Math.max(0, w - executors(config));
+                int planInstances = instances[rest] + 1;
+                long planVcpus = vcpus[rest] + vcpus(config);
+                if (planInstances < instances[w] || (planInstances == instances[w] && planVcpus < vcpus[w])) {
+                    instances[w] = planInstances;
+                    vcpus[w] = planVcpus;
+                    last[w] = config;
+                }
+            }
+        }
+        List<InstanceConfiguration> plan = new ArrayList<>();
+        for (int w = workload; w > 0; w -= executors(last[w])) {
+            plan.add(last[w]);
+        }
+        plan.sort(Comparator.comparingInt(WorkloadPacker::executors).reversed());
+        return plan;
+    }
+
+    private static int executors(InstanceConfiguration config) {
+        return Math.max(1, config.getNumExecutors());
+    }
+
+    private static int vcpus(InstanceConfiguration config) {
+        int vcpus = InstanceConfiguration.vcpusOf(config.getMachineType());
+        return vcpus > 0 ? vcpus : executors(config);
+    }
+}
@@ -4,7 +4,10 @@ import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.compute.Compute;
 import com.google.cloud.graphite.platforms.plugin.client.ClientFactory;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
@@ -69,6 +72,32 @@ public class ClientUtil {
         return getClientFactory(itemGroup, ImmutableList.of(), credentialsId, Optional.empty());
     }
 
+    /**
+     * Creates a {@link Compute} client for the Compute Engine APIs that are not wrapped by the
+     * gcp-plugin-core {@code ComputeClient}.
+     *
+     * @param itemGroup The Jenkins context to use for retrieving the credentials.
+     * @param credentialsId The ID of the credentials to use for generating the client.
+     * @return A {@link Compute} client.
+     * @throws AbortException If there was an error initializing the client.
+     */
+    public static Compute getCompute(ItemGroup itemGroup, String credentialsId) throws AbortException {
+        Preconditions.checkNotNull(itemGroup);
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(credentialsId));
+
+        try {
+            GoogleRobotCredentials robotCreds = getRobotCredentials(itemGroup, ImmutableList.of(), credentialsId);
+            return new Compute.Builder(
+                            GoogleNetHttpTransport.newTrustedTransport(),
+                            GsonFactory.getDefaultInstance(),
+                            getGoogleCredential(robotCreds))
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new AbortException(Messages.ClientFactory_FailedToInitializeHTTPTransport(ex));
+        }
+    }
+
     private static GoogleRobotCredentials getRobotCredentials(
             ItemGroup itemGroup, List<DomainRequirement> domainRequirements, String credentialsId)
             throws AbortException {
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.instanceConfigurationBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import hudson.model.FreeStyleProject;
+import hudson.model.labels.LabelAtom;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class CapacityPlannerTest {
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private ComputeEngineCloud cloud;
+    private InstanceConfiguration release;
+    private InstanceConfiguration pullRequest;
+
+    @Before
+    public void init() {
+        cloud = new ComputeEngineCloud("planned", "project", "project", "10");
+        cloud.setConfigurations(ImmutableList.of(
+                instanceConfigurationBuilder()
+                        .namePrefix("release")
+                        .labels("release")
+                        .priorityStr("10")
+                        .reservedInstancesStr("2")
+                        .build(),
+                instanceConfigurationBuilder()
+                        .namePrefix("pr")
+                        .labels("pr")
+                        .maxInstancesStr("3")
+                        .build()));
+        release = cloud.getConfigurations().get(0);
+        pullRequest = cloud.getConfigurations().get(1);
+    }
+
+    @Test
+    public void keepsReservedInstances() {
+        CapacityPlanner planner = new CapacityPlanner(cloud, 4);
+        assertTrue(planner.allows(pullRequest));
+        planner.provisioned(pullRequest);
+        planner.provisioned(pullRequest);
+
+        // The last two instances are reserved for releases
+        assertFalse(planner.allows(pullRequest));
+        assertTrue(planner.allows(release));
+        assertEquals(ImmutableList.of(release), planner.allowed(ImmutableList.of(pullRequest, release)));
+    }
+
+    @Test
+    public void limitsBursts() {
+        CapacityPlanner planner = new CapacityPlanner(cloud, 10);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(planner.allows(pullRequest));
+            planner.provisioned(pullRequest);
+        }
+        assertFalse(planner.allows(pullRequest));
+    }
+
+    @Test
+    public void holdsCapacityForWaitingBuildsOfHigherPriority() throws Exception {
+        FreeStyleProject project = r.createFreeStyleProject();
+        project.setAssignedLabel(new LabelAtom("release"));
+        project.scheduleBuild2(0);
+        r.jenkins.getQueue().maintain();
+
+        CapacityPlanner planner = new CapacityPlanner(cloud, 3);
+        assertEquals(1, planner.higherPriorityWaiting(pullRequest));
+        assertEquals(0, planner.higherPriorityWaiting(release));
+        // One instance is left after the unused reservation, and the waiting release build needs it
+        assertFalse(planner.allows(pullRequest));
+        assertFalse(new CapacityPlanner(cloud, 0).reclaims(release));
+    }
+}
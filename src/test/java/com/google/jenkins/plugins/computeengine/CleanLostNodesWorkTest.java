@@ -15,20 +15,35 @@
 package com.google.jenkins.plugins.computeengine;
 
 import static com.google.common.collect.ImmutableList.of;
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.instanceConfigurationBuilder;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.anyMap;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.google.api.services.compute.Compute;
 import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.Metadata;
 import com.google.cloud.graphite.platforms.plugin.client.ComputeClient;
+import com.google.jenkins.plugins.computeengine.benchmark.FakeComputeClient;
+import com.google.jenkins.plugins.computeengine.ssh.GoogleKeyPair;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
@@ -99,7 +114,105 @@ public class CleanLostNodesWorkTest {
 
         getWorker().doRun();
         verify(client).listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap());
-        verify(client).terminateInstanceAsync(eq(TEST_PROJECT_ID), eq(zone), eq(instanceName));
+        assertTrue(TerminationQueue.get().isPending(cloud, zone, instanceName));
+    }
+
+    @Test
+    public void shouldNotCleanInstanceBeingProvisioned() throws Exception {
+        final String instanceName = "inst-3";
+        final String zone = "test-zone";
+        Instance remoteInstance =
+                new Instance().setName(instanceName).setZone(zone).setStatus("RUNNING");
+        when(client.listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap())).thenReturn(of(remoteInstance));
+        ProvisioningJournal.get()
+                .inserting(new ProvisioningJournal.Entry("gce-test", "test", instanceName, zone, null, emptyList()));
+
+        r.jenkins.clouds.add(cloud);
+
+        getWorker().doRun();
+        verify(client).listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap());
+        assertFalse(TerminationQueue.get().isPending(cloud, zone, instanceName));
+    }
+
+    @Test
+    public void shouldAdoptLostInstance() throws Exception {
+        FakeComputeClient compute = FakeComputeClient.builder().build();
+        ComputeEngineCloud adoptingCloud = new ComputeEngineCloud("adopting", TEST_PROJECT_ID, TEST_PROJECT_ID, "10");
+        adoptingCloud.setClient(compute.getClient());
+        adoptingCloud.setAdoptLostInstances(true);
+        adoptingCloud.setConfigurations(of(instanceConfigurationBuilder()
+                .windowsConfiguration(WindowsConfiguration.builder()
+                        .passwordCredentialsId("")
+                        .privateKeyCredentialsId("")
+                        .build())
+                .build()));
+        r.jenkins.clouds.add(adoptingCloud);
+
+        Map<String, String> labels = adoptingCloud.getConfigurations().get(0).getGoogleLabels();
+        compute.getClient()
+                .insertInstance(
+                        TEST_PROJECT_ID,
+                        Optional.empty(),
+                        new Instance().setName("inst-4").setZone("test-zone").setLabels(labels));
+        // Lost instances of removed configurations can't be adopted
+        Map<String, String> unknownLabels = new HashMap<>(labels);
+        unknownLabels.put(ComputeEngineCloud.CONFIG_LABEL_KEY, "removed");
+        compute.getClient()
+                .insertInstance(
+                        TEST_PROJECT_ID,
+                        Optional.empty(),
+                        new Instance().setName("inst-5").setZone("test-zone").setLabels(unknownLabels));
+
+        getWorker().doRun();
+        assertTrue(r.jenkins.getNode("inst-4") instanceof ComputeEngineInstance);
+        assertFalse(TerminationQueue.get().isPending(adoptingCloud, "test-zone", "inst-4"));
+        assertNull(r.jenkins.getNode("inst-5"));
+        assertTrue(TerminationQueue.get().isPending(adoptingCloud, "test-zone", "inst-5"));
+    }
+
+    @Test
+    public void shouldAdoptLostLinuxInstance() throws Exception {
+        FakeComputeClient compute = FakeComputeClient.builder().build();
+        Compute api = Mockito.mock(Compute.class);
+        Compute.Instances instances = Mockito.mock(Compute.Instances.class);
+        Compute.Instances.SetMetadata setMetadata = Mockito.mock(Compute.Instances.SetMetadata.class);
+        ArgumentCaptor<Metadata> metadata = ArgumentCaptor.forClass(Metadata.class);
+        when(api.instances()).thenReturn(instances);
+        when(instances.setMetadata(eq(TEST_PROJECT_ID), eq("test-zone"), eq("inst-6"), metadata.capture()))
+                .thenReturn(setMetadata);
+        ComputeEngineCloud adoptingCloud = new ComputeEngineCloud("adopting", TEST_PROJECT_ID, TEST_PROJECT_ID, "10");
+        adoptingCloud.setClient(compute.getClient());
+        adoptingCloud.setCompute(api);
+        adoptingCloud.setAdoptLostInstances(true);
+        adoptingCloud.setConfigurations(of(instanceConfigurationBuilder().build()));
+        r.jenkins.clouds.add(adoptingCloud);
+
+        Map<String, String> labels = adoptingCloud.getConfigurations().get(0).getGoogleLabels();
+        compute.getClient()
+                .insertInstance(
+                        TEST_PROJECT_ID,
+                        Optional.empty(),
+                        new Instance()
+                                .setName("inst-6")
+                                .setZone("test-zone")
+                                .setLabels(labels)
+                                .setMetadata(new Metadata()
+                                        .setItems(of(new Metadata.Items()
+                                                .setKey(InstanceConfiguration.METADATA_LINUX_STARTUP_SCRIPT_KEY)
+                                                .setValue("echo hello")))));
+
+        getWorker().doRun();
+        ComputeEngineInstance node = (ComputeEngineInstance) r.jenkins.getNode("inst-6");
+        assertNotNull(node);
+        assertFalse(TerminationQueue.get().isPending(adoptingCloud, "test-zone", "inst-6"));
+        verify(setMetadata).execute();
+
+        // The new key is added to the metadata of the instance, which keeps its other items
+        GoogleKeyPair key = (GoogleKeyPair) node.getSSHKeyCredential().get();
+        Map<String, String> items = metadata.getValue().getItems().stream()
+                .collect(Collectors.toMap(Metadata.Items::getKey, Metadata.Items::getValue));
+        assertEquals(key.getPublicKey(), items.get(InstanceConfiguration.SSH_METADATA_KEY));
+        assertEquals("echo hello", items.get(InstanceConfiguration.METADATA_LINUX_STARTUP_SCRIPT_KEY));
     }
 
     @Test
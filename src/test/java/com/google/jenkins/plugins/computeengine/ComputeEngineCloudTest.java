@@ -20,6 +20,8 @@ import static org.hamcrest.Matchers.isEmptyOrNullString;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 
 import com.cloudbees.plugins.credentials.Credentials;
@@ -29,19 +31,23 @@ import com.cloudbees.plugins.credentials.SecretBytes;
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.cloudbees.plugins.credentials.domains.Domain;
 import com.google.common.collect.Lists;
+import com.google.jenkins.plugins.computeengine.benchmark.FakeComputeClient;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotPrivateKeyCredentials;
 import com.google.jenkins.plugins.credentials.oauth.JsonServiceAccountConfig;
 import hudson.model.Label;
 import hudson.model.labels.LabelAtom;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MemoryAssert;
 
 public class ComputeEngineCloudTest {
     private static final String ACCOUNT_ID = "test-account-id";
@@ -52,6 +58,8 @@ public class ComputeEngineCloudTest {
     private static final String CLOUD_NAME = "test-cloud";
     private static final String PROJECT_ID = ACCOUNT_ID;
     private static final String INSTANCE_CAP_STR = "1";
+    private static final int SCALE_CONFIGURATIONS = 1000;
+    private static final long RELOAD_TIMEOUT_MILLIS = 10_000;
 
     @Rule
     public JenkinsRule r = new JenkinsRule();
@@ -101,6 +109,18 @@ public class ComputeEngineCloudTest {
                 "Instance ID was not generated in constructor", cloud.getInstanceId(), not(isEmptyOrNullString()));
     }
 
+    @Test
+    public void pinnedToStandardAfterMaxPreemptions() {
+        ComputeEngineCloud cloud = new ComputeEngineCloud(CLOUD_NAME, PROJECT_ID, PROJECT_ID, INSTANCE_CAP_STR);
+        Assert.assertFalse("Pinning should be disabled by default", cloud.isPinnedToStandard(5));
+
+        cloud.setMaxPreemptedReschedules(2);
+        Assert.assertFalse(cloud.isPinnedToStandard(0));
+        Assert.assertFalse(cloud.isPinnedToStandard(1));
+        Assert.assertTrue(cloud.isPinnedToStandard(2));
+        Assert.assertTrue(cloud.isPinnedToStandard(3));
+    }
+
     @Test
     public void getConfigurationsByLabelSimple() throws Exception {
         // Add a few InstanceConfigurations
@@ -139,6 +159,116 @@ public class ComputeEngineCloudTest {
         assertEquals(ics, cloud.getInstanceConfigurations(label));
     }
 
+    @Test
+    public void drainingCloudDoesNotProvision() throws Exception {
+        ComputeEngineCloud cloud = new ComputeEngineCloud(CLOUD_NAME, PROJECT_ID, PROJECT_ID, INSTANCE_CAP_STR);
+        cloud.setConfigurations(Lists.newArrayList(instanceConfigurationBuilder().build()));
+        r.jenkins.clouds.add(cloud);
+        Label label = new LabelAtom(A_LABEL);
+
+        cloud.doDrain();
+        Assert.assertTrue(cloud.isDraining());
+        Assert.assertFalse("Should not provision while draining", cloud.canProvision(label));
+        Assert.assertTrue(cloud.provision(label, 1).isEmpty());
+        assertEquals(0, cloud.getBusyAgents());
+
+        cloud.doResume();
+        Assert.assertFalse(cloud.isDraining());
+        Assert.assertTrue(cloud.canProvision(label));
+    }
+
+    @Test
+    public void reloadManyConfigurations() throws Exception {
+        ComputeEngineCloud cloud = cloudWithConfigurations("image");
+        r.jenkins.clouds.add(cloud);
+        String fingerprint = cloud.getConfigurations().get(1).fingerprint();
+
+        // A reload only keeps the configuration that changed
+        long start = System.nanoTime();
+        ComputeEngineCloud reloaded = cloudWithConfigurations("new-image");
+        long reloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("Reload took " + reloadMillis + "ms", reloadMillis < RELOAD_TIMEOUT_MILLIS);
+        assertEquals(SCALE_CONFIGURATIONS, reloaded.getConfigurations().size());
+        assertNotSame(cloud.getConfigurations().get(0), reloaded.getConfigurations().get(0));
+        assertEquals("new-image", reloaded.getConfigurations().get(0).getBootDiskSourceImageName());
+        for (int i = 1; i < SCALE_CONFIGURATIONS; i++) {
+            assertSame(cloud.getConfigurations().get(i), reloaded.getConfigurations().get(i));
+            assertSame(reloaded, reloaded.getConfigurations().get(i).getCloud());
+        }
+        // The fingerprint of a kept configuration is not computed again
+        assertSame(fingerprint, reloaded.getConfigurations().get(1).fingerprint());
+
+        // The replaced cloud is not retained by the configurations it passed on
+        r.jenkins.clouds.replace(cloud, reloaded);
+        WeakReference<ComputeEngineCloud> replaced = new WeakReference<>(cloud);
+        cloud = null;
+        MemoryAssert.assertGC(replaced, true);
+
+        // Configurations matching a label are found once
+        Label shared = new LabelAtom(A_LABEL);
+        List<InstanceConfiguration> matching = reloaded.getInstanceConfigurations(shared);
+        assertEquals(SCALE_CONFIGURATIONS, matching.size());
+        assertSame(matching, reloaded.getInstanceConfigurations(shared));
+
+        Label last = new LabelAtom("label-" + (SCALE_CONFIGURATIONS - 1));
+        Assert.assertTrue(reloaded.canProvision(last));
+        FakeComputeClient compute = FakeComputeClient.builder().build();
+        reloaded.setClient(compute.getClient());
+        ComputeEngineInstance node = reloaded.getInstanceConfigurations(last).get(0).provision();
+        assertNotNull(node);
+        assertEquals("config-" + (SCALE_CONFIGURATIONS - 1), node.getConfigName());
+        assertEquals(1, compute.getInstanceCount());
+    }
+
+    @Test
+    public void reloadConfigurationsSavedToDisk() throws Exception {
+        ComputeEngineCloud cloud = cloudWithTwoConfigurations();
+        r.jenkins.clouds.add(cloud);
+        // Provisioning persists the key of the instance in its configuration
+        cloud.setClient(FakeComputeClient.builder().build().getClient());
+        assertNotNull(cloud.getConfigurations().get(0).provision());
+        r.jenkins.save();
+        r.jenkins.reload();
+
+        ComputeEngineCloud saved = r.jenkins.clouds.get(ComputeEngineCloud.class);
+        assertNotSame(cloud, saved);
+        assertEquals(
+                INSTANCE_ID,
+                saved.getConfigurations().get(1).getGoogleLabels().get(ComputeEngineCloud.CLOUD_ID_LABEL_KEY));
+
+        // Applying the same configurations again keeps the ones loaded from disk
+        ComputeEngineCloud reapplied = cloudWithTwoConfigurations();
+        assertEquals(2, reapplied.getConfigurations().size());
+        assertSame(saved.getConfigurations().get(0), reapplied.getConfigurations().get(0));
+        assertSame(saved.getConfigurations().get(1), reapplied.getConfigurations().get(1));
+    }
+
+    private static ComputeEngineCloud cloudWithTwoConfigurations() {
+        ComputeEngineCloud cloud = new ComputeEngineCloud(CLOUD_NAME, PROJECT_ID, PROJECT_ID, INSTANCE_CAP_STR);
+        cloud.setInstanceId(INSTANCE_ID);
+        cloud.setConfigurations(Lists.newArrayList(
+                instanceConfigurationBuilder().namePrefix("config-0").build(),
+                instanceConfigurationBuilder().namePrefix("config-1").build()));
+        return cloud;
+    }
+
+    /** Defines the test cloud with many configurations, the first one using the given image. */
+    private static ComputeEngineCloud cloudWithConfigurations(String firstImage) {
+        List<InstanceConfiguration> ics = new ArrayList<>();
+        for (int i = 0; i < SCALE_CONFIGURATIONS; i++) {
+            ics.add(instanceConfigurationBuilder()
+                    .namePrefix("config-" + i)
+                    .description("Configuration " + i)
+                    .labels(A_LABEL + " label-" + i)
+                    .bootDiskSourceImageName(i == 0 ? firstImage : "image")
+                    .build());
+        }
+        ComputeEngineCloud cloud = new ComputeEngineCloud(CLOUD_NAME, PROJECT_ID, PROJECT_ID, INSTANCE_CAP_STR);
+        cloud.setInstanceId(INSTANCE_ID);
+        cloud.setConfigurations(ics);
+        return cloud;
+    }
+
     @Test
     public void descriptorFillCredentials() throws Exception {
         // Create a credential
@@ -16,9 +16,60 @@
 
 package com.google.jenkins.plugins.computeengine;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.compute.model.Operation;
+import java.util.Collections;
+import java.util.Optional;
 import java.util.logging.Logger;
+import org.junit.Test;
 
 // @RunWith(MockitoJUnitRunner.class)
 public class ComputeEngineLinuxLauncherTest {
     private static final Logger LOGGER = Logger.getLogger(ComputeEngineLinuxLauncherTest.class.getName());
+
+    @Test
+    public void singleSessionLaunchStringStreamsAgentJar() {
+        ComputeEngineLinuxLauncher launcher = new ComputeEngineLinuxLauncher(
+                "test-cloud", new Operation().setName("test-op").setZone("test-zone"), false);
+
+        Optional<String> launchString = launcher.getSingleSessionLaunchString("java", "/tmp", 1234);
+
+        assertTrue(launchString.isPresent());
+        assertEquals(
+                "java -fullversion && mkdir -p /tmp && head -c 1234 > /tmp/agent.jar && exec java -jar /tmp/agent.jar",
+                launchString.get());
+    }
+
+    @Test
+    public void compressedSingleSessionLaunchStringVerifiesAgentJar() {
+        ComputeEngineLinuxLauncher launcher = new ComputeEngineLinuxLauncher(
+                "test-cloud", new Operation().setName("test-op").setZone("test-zone"), false);
+
+        Optional<String> launchString =
+                launcher.getCompressedSingleSessionLaunchString("java", "/tmp", 1000, "abc123");
+
+        assertTrue(launchString.isPresent());
+        assertTrue(launchString.get().contains("echo 'abc123  /tmp/agent.jar' | sha256sum -c --status"));
+        assertTrue(launchString.get().contains("head -c 1000 | gzip -dc > /tmp/agent.jar.tmp"));
+        assertTrue(launchString.get().endsWith("exec java -jar /tmp/agent.jar"));
+    }
+
+    @Test
+    public void mountDisksCommandFormatsOnlyNewDisks() {
+        ComputeEngineLinuxLauncher launcher = new ComputeEngineLinuxLauncher(
+                "test-cloud", new Operation().setName("test-op").setZone("test-zone"), false);
+
+        Optional<String> mountCommand = launcher.getMountDisksCommand(
+                Collections.singletonList(new DiskMount("/dev/disk/by-id/google-pool", "/cache", "pool", "disk-0")),
+                "jenkins");
+
+        assertTrue(mountCommand.isPresent());
+        assertTrue(mountCommand
+                .get()
+                .contains("(sudo blkid /dev/disk/by-id/google-pool > /dev/null || sudo mkfs.ext4"));
+        assertTrue(mountCommand.get().contains("sudo mount -o discard,defaults /dev/disk/by-id/google-pool /cache"));
+        assertTrue(mountCommand.get().endsWith("sudo chown jenkins: /cache"));
+    }
 }
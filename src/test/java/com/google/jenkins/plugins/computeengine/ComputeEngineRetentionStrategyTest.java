@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.google.jenkins.plugins.computeengine.ComputeEngineRetentionStrategy.RebuildCause;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+public class ComputeEngineRetentionStrategyTest {
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private FreeStyleProject parameterizedProject() throws Exception {
+        FreeStyleProject project = r.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("BRANCH", "main")));
+        return project;
+    }
+
+    private static <T extends Action> T find(List<Action> actions, Class<T> type) {
+        return actions.stream().filter(type::isInstance).map(type::cast).findFirst().orElse(null);
+    }
+
+    @Test
+    public void carriesOverParametersCausesAndPreemptions() throws Exception {
+        FreeStyleProject project = parameterizedProject();
+        FreeStyleBuild build = r.assertBuildStatusSuccess(project.scheduleBuild2(
+                0,
+                new Cause.RemoteCause("host", "note"),
+                new ParametersAction(new StringParameterValue("BRANCH", "release"))));
+        build.addAction(new PreemptionCountAction(2));
+
+        List<Action> actions = ComputeEngineRetentionStrategy.generateActionsForTask(build);
+
+        ParametersAction parameters = find(actions, ParametersAction.class);
+        assertNotNull(parameters);
+        assertEquals("release", parameters.getParameter("BRANCH").getValue());
+        CauseAction causes = find(actions, CauseAction.class);
+        assertNotNull(causes);
+        assertNotNull(causes.findCause(Cause.RemoteCause.class));
+        assertNotNull(causes.findCause(RebuildCause.class));
+        assertEquals(3, find(actions, PreemptionCountAction.class).getPreemptions());
+    }
+
+    @Test
+    public void countsFirstPreemptionOfUnknownBuild() {
+        List<Action> actions = ComputeEngineRetentionStrategy.generateActionsForTask(null);
+
+        CauseAction causes = find(actions, CauseAction.class);
+        assertNotNull(causes.findCause(Cause.UserIdCause.class));
+        assertNotNull(causes.findCause(RebuildCause.class));
+        assertEquals(1, find(actions, PreemptionCountAction.class).getPreemptions());
+    }
+
+    @Test
+    public void reschedulesPreemptedBuildOnce() throws Exception {
+        FreeStyleProject project = parameterizedProject();
+        project.getBuildersList().add(new SleepBuilder(60 * 1000));
+        FreeStyleBuild build = project.scheduleBuild2(0).waitForStart();
+        ComputeEngineRetentionStrategy strategy = new ComputeEngineRetentionStrategy(1, false);
+
+        // Each preempted executor of the build reschedules it
+        strategy.reschedulePreempted(build.getExecutor());
+        strategy.reschedulePreempted(build.getExecutor());
+
+        Queue.Item[] items = r.jenkins.getQueue().getItems();
+        assertEquals(1, items.length);
+        assertEquals(1, PreemptionCountAction.preemptionsOf(items[0]));
+        CauseAction causes = items[0].getAction(CauseAction.class);
+        // A second reschedule would have folded its causes into the queued item
+        int rebuildCauses = causes.getCauseCounts().entrySet().stream()
+                .filter(cause -> cause.getKey() instanceof RebuildCause)
+                .mapToInt(Map.Entry::getValue)
+                .sum();
+        assertEquals(1, rebuildCauses);
+        assertNotNull(build.getAction(ComputeEngineRetentionStrategy.RescheduledAction.class));
+
+        r.jenkins.getQueue().clear();
+        build.getExecutor().interrupt();
+        r.waitForCompletion(build);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class DiskPoolTest {
+    private static final List<String> DISKS = ImmutableList.of("test-pool-0", "test-pool-1", "test-pool-2");
+
+    @Test
+    public void leasesEachDiskOnce() {
+        DiskPool pool = new DiskPool("leasesEachDiskOnce");
+
+        assertEquals("test-pool-0", pool.lease(DISKS, Collections.emptyList()).get());
+        assertEquals("test-pool-1", pool.lease(DISKS, Collections.emptyList()).get());
+        assertEquals("test-pool-2", pool.lease(DISKS, Collections.emptyList()).get());
+        assertFalse(pool.lease(DISKS, Collections.emptyList()).isPresent());
+
+        pool.release("test-pool-1", true);
+        assertEquals("test-pool-1", pool.lease(DISKS, Collections.emptyList()).get());
+    }
+
+    @Test
+    public void leasesMostRecentlyReleasedDiskFirst() {
+        AtomicLong clock = new AtomicLong();
+        DiskPool pool = new DiskPool("leasesMostRecentlyReleasedDiskFirst", clock::get);
+        DISKS.forEach(disk -> pool.lease(DISKS, Collections.emptyList()));
+
+        clock.set(1000);
+        pool.release("test-pool-2", true);
+        clock.set(2000);
+        pool.release("test-pool-1", true);
+        pool.release("test-pool-0", false);
+
+        assertEquals("test-pool-1", pool.lease(DISKS, Collections.emptyList()).get());
+        assertEquals("test-pool-2", pool.lease(DISKS, Collections.emptyList()).get());
+        assertEquals("test-pool-0", pool.lease(DISKS, Collections.emptyList()).get());
+    }
+
+    @Test
+    public void leasesDiskOfWaitingJobFirst() {
+        DiskPool pool = new DiskPool("leasesDiskOfWaitingJobFirst");
+        DISKS.forEach(disk -> pool.lease(DISKS, Collections.emptyList()));
+        pool.recordUse("test-pool-0", "folder/job");
+
+        pool.release("test-pool-0", true);
+        pool.release("test-pool-2", true);
+
+        assertEquals(
+                "test-pool-0",
+                pool.lease(DISKS, ImmutableList.of("other", "folder/job")).get());
+    }
+}
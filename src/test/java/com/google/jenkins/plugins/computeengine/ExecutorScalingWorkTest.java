@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.ExecutorScalingWork.availableMemory;
+import static com.google.jenkins.plugins.computeengine.ExecutorScalingWork.scaledExecutors;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.computeengine.ExecutorScalingWork.Load;
+import java.util.List;
+import org.junit.Test;
+
+public class ExecutorScalingWorkTest {
+    private static final Load IDLE = new Load(0.2, 0.8);
+    private static final Load BUSY_CPU = new Load(0.95, 0.5);
+    private static final Load LOW_MEMORY = new Load(0.3, 0.05);
+    private static final Load STEADY = new Load(0.75, 0.5);
+
+    @Test
+    public void addsExecutorWhenAllBusyWithSpareCapacity() {
+        assertEquals(3, scaledExecutors(2, 2, 4, IDLE));
+        assertEquals(2, scaledExecutors(2, 1, 4, IDLE));
+        assertEquals(4, scaledExecutors(4, 4, 4, IDLE));
+        assertEquals(2, scaledExecutors(2, 2, 4, STEADY));
+    }
+
+    @Test
+    public void removesExecutorWhenOverloaded() {
+        assertEquals(3, scaledExecutors(4, 4, 4, BUSY_CPU));
+        assertEquals(3, scaledExecutors(4, 4, 4, LOW_MEMORY));
+        assertEquals(1, scaledExecutors(1, 1, 4, BUSY_CPU));
+    }
+
+    @Test
+    public void countsPageCacheAsFreeMemory() {
+        // An agent after a few builds: little free memory, most of it used by the page cache
+        List<String> meminfo = ImmutableList.of(
+                "MemTotal:       16000000 kB",
+                "MemFree:          800000 kB",
+                "MemAvailable:   12000000 kB",
+                "Buffers:          400000 kB",
+                "Cached:         10800000 kB");
+
+        double available = availableMemory(meminfo).getAsDouble();
+
+        assertEquals(0.75, available, 0.001);
+        assertEquals(3, scaledExecutors(2, 2, 4, new Load(0.2, available)));
+    }
+
+    @Test
+    public void fallsBackWithoutAvailableMemory() {
+        assertFalse(availableMemory(ImmutableList.of("MemTotal: 16000000 kB", "MemFree: 800000 kB"))
+                .isPresent());
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        assertEquals(4, scaledExecutors(6, 2, 4, STEADY));
+        assertEquals(1, scaledExecutors(0, 0, 4, STEADY));
+    }
+}
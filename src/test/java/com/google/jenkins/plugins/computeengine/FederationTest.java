@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.A_LABEL;
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.instanceConfigurationBuilder;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.Cloud;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class FederationTest {
+    private static final String FEDERATION = "federation";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private ComputeEngineCloud member(String name, int headroom, long launchMillis) {
+        ComputeEngineCloud cloud = new ComputeEngineCloud(name, name, name, "10");
+        cloud.setFederation(FEDERATION);
+        cloud.setConfigurations(ImmutableList.of(instanceConfigurationBuilder().build()));
+        r.jenkins.clouds.add(cloud);
+        // Recently looked up, so the stats are not replaced by a lookup
+        Federation.Backend backend = Federation.backend(cloud);
+        backend.headroom = headroom;
+        backend.launchMillis = launchMillis;
+        backend.instances = 10 - headroom;
+        backend.refreshedAt = System.currentTimeMillis();
+        return cloud;
+    }
+
+    @Test
+    public void routesToFastestCloudWithHeadroom() {
+        ComputeEngineCloud full = member("full", 0, 1000);
+        ComputeEngineCloud slow = member("slow", 5, 60000);
+        ComputeEngineCloud fast = member("fast", 2, 30000);
+        Label label = new LabelAtom(A_LABEL);
+
+        assertEquals(ImmutableList.of(fast, slow, full), Federation.route(Federation.members(FEDERATION), label));
+        // Each cloud provisions what the clouds before it can't cover
+        assertEquals(5, Federation.share(fast, label, 5));
+        assertEquals(3, Federation.share(slow, label, 5));
+        assertEquals(0, Federation.share(full, label, 5));
+        assertEquals(23, Federation.instances(FEDERATION));
+
+        // Other clouds keep their position
+        ComputeEngineCloud other = new ComputeEngineCloud("other", "other", "other", "10");
+        List<Cloud> clouds = new ArrayList<>(ImmutableList.of(slow, other, full, fast));
+        Federation.order(clouds, label);
+        assertEquals(ImmutableList.of(fast, other, slow, full), clouds);
+    }
+
+    @Test
+    public void spillsOverOnceCloudIsFull() {
+        ComputeEngineCloud fast = member("fast", 2, 30000);
+        ComputeEngineCloud slow = member("slow", 5, 60000);
+        Label label = new LabelAtom(A_LABEL);
+
+        Federation.provisioned(fast, 2);
+        assertEquals(0, Federation.backend(fast).headroom);
+        assertEquals(10, Federation.backend(fast).instances);
+        assertEquals(ImmutableList.of(slow, fast), Federation.route(Federation.members(FEDERATION), label));
+        assertEquals(3, Federation.share(slow, label, 3));
+    }
+
+    @Test
+    public void unknownLaunchTimeIsNotFastest() {
+        ComputeEngineCloud unknown = member("unknown", 5, 0);
+        ComputeEngineCloud known = member("known", 2, 60000);
+        Label label = new LabelAtom(A_LABEL);
+
+        assertEquals(ImmutableList.of(known, unknown), Federation.route(Federation.members(FEDERATION), label));
+    }
+
+    @Test
+    public void failedLaunchesCountAsSlow() {
+        ComputeEngineCloud failing = member("failing", 5, 0);
+        ComputeEngineCloud slow = member("slow", 5, 60000);
+        Label label = new LabelAtom(A_LABEL);
+
+        Federation.recordFailedLaunch(failing, 300000);
+        assertEquals(300000, Federation.backend(failing).launchMillis);
+        assertEquals(ImmutableList.of(slow, failing), Federation.route(Federation.members(FEDERATION), label));
+    }
+
+    @Test
+    public void smoothesLaunchTimes() {
+        ComputeEngineCloud cloud = member("cloud", 1, 0);
+        Federation.recordLaunch(cloud, 10000);
+        assertEquals(10000, Federation.backend(cloud).launchMillis);
+        Federation.recordLaunch(cloud, 20000);
+        assertEquals(13000, Federation.backend(cloud).launchMillis);
+    }
+}
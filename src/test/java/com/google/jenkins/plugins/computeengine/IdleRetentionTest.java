@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.IdleRetention.withinDemand;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class IdleRetentionTest {
+    @Mock
+    public ComputeEngineComputer oldest;
+
+    @Mock
+    public ComputeEngineComputer older;
+
+    @Mock
+    public ComputeEngineComputer newest;
+
+    @Mock
+    public ComputeEngineInstance node;
+
+    @Test
+    public void keepsNewestIdleAgentsWithinDemand() {
+        when(oldest.getConnectTime()).thenReturn(1000L);
+        when(older.getConnectTime()).thenReturn(2000L);
+        when(newest.getConnectTime()).thenReturn(3000L);
+        when(newest.getNumExecutors()).thenReturn(2);
+        List<ComputeEngineComputer> idle = ImmutableList.of(oldest, older, newest);
+
+        assertTrue(withinDemand(newest, idle, 3));
+        assertTrue(withinDemand(older, idle, 3));
+        assertFalse(withinDemand(older, idle, 2));
+        assertFalse(withinDemand(oldest, idle, 3));
+        assertFalse(withinDemand(newest, idle, 0));
+    }
+
+    @Test
+    public void reportsReuse() {
+        when(node.getCloudName()).thenReturn("reuse-cloud");
+        when(node.getConfigName()).thenReturn("reuse-config");
+        when(oldest.markUsed()).thenReturn(false);
+        when(older.markUsed()).thenReturn(true);
+        when(older.isKept()).thenReturn(true);
+        IdleRetention retention = IdleRetention.of(node);
+
+        retention.taskAccepted(oldest);
+        retention.taskAccepted(older);
+
+        assertEquals(2, retention.getTasks());
+        assertEquals(50, retention.getReuseRate());
+        assertEquals(1, retention.getAvoidedColdStarts());
+        verify(older).setKept(false);
+    }
+}
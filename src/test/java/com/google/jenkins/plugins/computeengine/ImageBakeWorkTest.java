@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.PROJECT_ID;
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.instanceConfigurationBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Image;
+import com.google.api.services.compute.model.ImageList;
+import com.google.api.services.compute.model.Operation;
+import com.google.cloud.graphite.platforms.plugin.client.ComputeClient;
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.computeengine.benchmark.FakeComputeClient;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ImageBakeWorkTest {
+    private static final String IMAGE_LINK =
+            "https://www.googleapis.com/compute/v1/projects/" + PROJECT_ID + "/global/images/";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private ComputeEngineCloud cloud;
+    private InstanceConfiguration config;
+    private ComputeEngineComputer computer;
+    private ComputeClient client;
+    private Compute.Images images;
+    private final List<Image> baked = new ArrayList<>();
+    private boolean synced;
+    private final ImageBakeWork work = new ImageBakeWork() {
+        @Override
+        void syncFileSystems(ComputeEngineComputer c) {
+            synced = true;
+        }
+    };
+
+    @Before
+    public void init() throws Exception {
+        cloud = new ComputeEngineCloud("baking", PROJECT_ID, PROJECT_ID, "10");
+        cloud.setClient(FakeComputeClient.builder().build().getClient());
+        cloud.setConfigurations(ImmutableList.of(
+                instanceConfigurationBuilder().bakeImageIntervalHoursStr("1").build()));
+        r.jenkins.clouds.add(cloud);
+        config = cloud.getConfigurations().get(0);
+        ComputeEngineInstance node = config.provision();
+        r.jenkins.addNode(node);
+        computer = (ComputeEngineComputer) node.toComputer();
+
+        client = mock(ComputeClient.class);
+        cloud.setClient(client);
+        Compute compute = mock(Compute.class);
+        images = mock(Compute.Images.class);
+        when(compute.images()).thenReturn(images);
+        cloud.setCompute(compute);
+    }
+
+    /** Simulates the image API, where each inserted image is done right away. */
+    private void simulateImages() throws IOException {
+        when(images.insert(eq(PROJECT_ID), any(Image.class))).thenAnswer(invocation -> {
+            Image image = invocation.getArgument(1);
+            // Names of images baked within the same second would be the same
+            image.setName(image.getName() + "-" + baked.size());
+            baked.add(image.clone()
+                    .setSelfLink(IMAGE_LINK + image.getName())
+                    .setStatus("READY")
+                    .setCreationTimestamp(OffsetDateTime.now().plusSeconds(baked.size()).toString()));
+            Compute.Images.Insert insert = mock(Compute.Images.Insert.class);
+            when(insert.execute()).thenReturn(new Operation().setStatus("DONE"));
+            return insert;
+        });
+        when(images.list(PROJECT_ID)).thenAnswer(invocation -> {
+            Compute.Images.List list = mock(Compute.Images.List.class, RETURNS_SELF);
+            when(list.execute()).thenReturn(new ImageList().setItems(new ArrayList<>(baked)));
+            return list;
+        });
+        when(images.get(eq(PROJECT_ID), anyString())).thenAnswer(invocation -> {
+            Compute.Images.Get get = mock(Compute.Images.Get.class);
+            when(get.execute()).thenReturn(new Image().setSelfLink(IMAGE_LINK + invocation.getArgument(1)));
+            return get;
+        });
+        when(images.delete(eq(PROJECT_ID), anyString())).thenReturn(mock(Compute.Images.Delete.class));
+    }
+
+    @Test
+    public void bakingDoesNotUndoStoppingTasksMeanwhile() throws Exception {
+        doAnswer(invocation -> {
+                    assertFalse("No new tasks while snapshotting", computer.isAcceptingTasks());
+                    assertTrue("File systems are flushed before the snapshot", synced);
+                    // The agent is retired while its snapshot is taken
+                    computer.setAcceptingTasks(false);
+                    return null;
+                })
+                .when(client)
+                .createSnapshotSync(anyString(), anyString(), anyString(), anyLong());
+        when(images.insert(eq(PROJECT_ID), any(Image.class))).thenThrow(new IOException("Quota exceeded"));
+
+        try {
+            work.bake(cloud, config, computer, TaskListener.NULL);
+        } catch (IOException expected) {
+            // The image insert failed after the snapshot
+        }
+
+        assertFalse(computer.isAcceptingTasks());
+        verify(client).deleteSnapshotAsync(PROJECT_ID, computer.getName());
+    }
+
+    @Test
+    public void bootsFromBakedImageWithoutChangingConfiguration() throws Exception {
+        simulateImages();
+        String configured = config.getBootDiskSourceImageName();
+
+        work.bake(cloud, config, computer, TaskListener.NULL);
+
+        assertTrue(computer.isAcceptingTasks());
+        assertTrue(config.getBakedImage().startsWith(IMAGE_LINK + config.getNamePrefix()));
+        assertEquals(configured, config.getBootDiskSourceImageName());
+        // Agents booted from the baked image do not count as outdated
+        cloud.setClient(FakeComputeClient.builder().build().getClient());
+        ComputeEngineInstance node = config.provision();
+        assertEquals(configured, node.getSourceImage());
+        assertFalse(ImageUpgradeWork.isOutdated(node));
+    }
+
+    @Test
+    public void keepsPreviousImageOneBake() throws Exception {
+        simulateImages();
+
+        work.bake(cloud, config, computer, TaskListener.NULL);
+        work.bake(cloud, config, computer, TaskListener.NULL);
+        verify(images, never()).delete(anyString(), anyString());
+
+        work.bake(cloud, config, computer, TaskListener.NULL);
+        verify(images).delete(PROJECT_ID, baked.get(0).getName());
+        verify(images, never()).delete(PROJECT_ID, baked.get(1).getName());
+    }
+
+    @Test
+    public void findsBakedImageAgainAfterRestart() throws Exception {
+        simulateImages();
+        work.bake(cloud, config, computer, TaskListener.NULL);
+        String bakedImage = config.getBakedImage();
+        config.setBakedImage(null);
+
+        work.execute(TaskListener.NULL);
+        assertEquals(bakedImage, config.getBakedImage());
+
+        // Images baked from a previous configured image are not used
+        config.setBootDiskSourceImageName(IMAGE_LINK + "other-image");
+        work.execute(TaskListener.NULL);
+        assertNull(config.getBakedImage());
+    }
+}
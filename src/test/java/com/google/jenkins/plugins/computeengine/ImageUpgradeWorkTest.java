@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.ImageUpgradeWork.isOutdated;
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.instanceConfigurationBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.computeengine.benchmark.FakeComputeClient;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ImageUpgradeWorkTest {
+    private static final String PROJECT_ID = "test-project";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void agentIsOutdatedOnceImageChanges() throws Exception {
+        ComputeEngineCloud cloud = new ComputeEngineCloud("upgrading", PROJECT_ID, PROJECT_ID, "10");
+        cloud.setClient(FakeComputeClient.builder().build().getClient());
+        cloud.setMaxImageUpgrades(1);
+        cloud.setConfigurations(ImmutableList.of(
+                instanceConfigurationBuilder().bootDiskSourceImageName("image-1").build()));
+        r.jenkins.clouds.add(cloud);
+        InstanceConfiguration config = cloud.getConfigurations().get(0);
+
+        ComputeEngineInstance node = config.provision();
+        assertEquals("image-1", node.getSourceImage());
+        assertFalse(isOutdated(node));
+
+        config.setBootDiskSourceImageName("image-2");
+        assertTrue(isOutdated(node));
+        assertFalse(isOutdated(config.provision()));
+    }
+
+    @Test
+    public void replacesOutdatedAgentsWithinLimit() throws Exception {
+        ComputeEngineCloud cloud = new ComputeEngineCloud("upgrading", PROJECT_ID, PROJECT_ID, "10");
+        cloud.setClient(FakeComputeClient.builder().build().getClient());
+        cloud.setMaxImageUpgrades(1);
+        cloud.setConfigurations(ImmutableList.of(
+                instanceConfigurationBuilder().bootDiskSourceImageName("image-1").build()));
+        r.jenkins.clouds.add(cloud);
+        InstanceConfiguration config = cloud.getConfigurations().get(0);
+        ComputeEngineComputer first = outdatedAgent("old-1", config);
+        ComputeEngineComputer second = outdatedAgent("old-2", config);
+        Map<String, Computer> computers = new HashMap<>();
+        computers.put("old-1", first);
+        computers.put("old-2", second);
+        ImageUpgradeWork work = new ImageUpgradeWork() {
+            @Override
+            List<ComputeEngineComputer> getComputers(ComputeEngineCloud c) {
+                return ImmutableList.of(first, second).stream()
+                        .filter(computer -> !computer.getNode().isTerminating())
+                        .collect(Collectors.toList());
+            }
+
+            @Override
+            Computer getComputer(String name) {
+                return computers.containsKey(name) ? computers.get(name) : super.getComputer(name);
+            }
+        };
+        config.setBootDiskSourceImageName("image-2");
+
+        // A single replacement at a time, which must be online before the outdated agent is retired
+        work.execute(TaskListener.NULL);
+        work.execute(TaskListener.NULL);
+        assertEquals(1, r.jenkins.getNodes().size());
+        verify(first, never()).setAcceptingTasks(false);
+
+        // The outdated agent stops taking tasks, and is only deleted once its builds complete
+        Computer replacement = mock(Computer.class);
+        when(replacement.isOnline()).thenReturn(true);
+        computers.put(r.jenkins.getNodes().get(0).getNodeName(), replacement);
+        when(first.isIdle()).thenReturn(false);
+        work.execute(TaskListener.NULL);
+        verify(first).setAcceptingTasks(false);
+        verify(first.getNode(), never()).terminate();
+        assertEquals(1, r.jenkins.getNodes().size());
+
+        // Deleting it frees the slot for the next outdated agent, and does not replace it again
+        when(first.isIdle()).thenReturn(true);
+        work.execute(TaskListener.NULL);
+        verify(first.getNode()).terminate();
+        assertEquals(2, r.jenkins.getNodes().size());
+        verify(second, never()).setAcceptingTasks(false);
+    }
+
+    @Test
+    public void retiresOutdatedAgentFirstAtInstanceCap() throws Exception {
+        ComputeEngineCloud cloud = new ComputeEngineCloud("upgrading", PROJECT_ID, PROJECT_ID, "2");
+        cloud.setClient(FakeComputeClient.builder().build().getClient());
+        cloud.setMaxImageUpgrades(1);
+        cloud.setConfigurations(ImmutableList.of(
+                instanceConfigurationBuilder().bootDiskSourceImageName("image-1").build()));
+        r.jenkins.clouds.add(cloud);
+        InstanceConfiguration config = cloud.getConfigurations().get(0);
+        // The instances of the outdated agents fill the cloud
+        config.provision();
+        config.provision();
+        ComputeEngineComputer first = outdatedAgent("old-1", config);
+        ComputeEngineComputer second = outdatedAgent("old-2", config);
+        when(first.isIdle()).thenReturn(false);
+        ImageUpgradeWork work = new ImageUpgradeWork() {
+            @Override
+            List<ComputeEngineComputer> getComputers(ComputeEngineCloud c) {
+                return ImmutableList.of(first, second).stream()
+                        .filter(computer -> !computer.getNode().isTerminating())
+                        .collect(Collectors.toList());
+            }
+
+            @Override
+            Computer getComputer(String name) {
+                return name.equals("old-1") ? first : name.equals("old-2") ? second : super.getComputer(name);
+            }
+        };
+        config.setBootDiskSourceImageName("image-2");
+
+        // No replacement above the cap: the outdated agent stops taking tasks instead
+        work.execute(TaskListener.NULL);
+        work.execute(TaskListener.NULL);
+        assertTrue(r.jenkins.getNodes().isEmpty());
+        verify(first).setAcceptingTasks(false);
+        verify(first.getNode(), never()).terminate();
+        verify(second, never()).setAcceptingTasks(false);
+
+        when(first.isIdle()).thenReturn(true);
+        work.execute(TaskListener.NULL);
+        verify(first.getNode()).terminate();
+        assertTrue(r.jenkins.getNodes().isEmpty());
+    }
+
+    /** An agent of a configuration that ran an older image, until it is terminated. */
+    private static ComputeEngineComputer outdatedAgent(String name, InstanceConfiguration config) throws Exception {
+        ComputeEngineInstance node = mock(ComputeEngineInstance.class);
+        AtomicBoolean terminating = new AtomicBoolean();
+        when(node.getSourceImage()).thenReturn("image-1");
+        when(node.getConfiguration()).thenReturn(Optional.of(config));
+        when(node.isTerminating()).thenAnswer(invocation -> terminating.get());
+        doAnswer(invocation -> {
+                    terminating.set(true);
+                    return null;
+                })
+                .when(node)
+                .terminate();
+        ComputeEngineComputer computer = mock(ComputeEngineComputer.class);
+        when(computer.getName()).thenReturn(name);
+        when(computer.getNode()).thenReturn(node);
+        when(computer.isAcceptingTasks()).thenReturn(true);
+        when(computer.isIdle()).thenReturn(true);
+        return computer;
+    }
+}
@@ -18,11 +18,14 @@ package com.google.jenkins.plugins.computeengine;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
 
 import com.google.api.services.compute.model.AcceleratorType;
+import com.google.api.services.compute.model.AttachedDisk;
 import com.google.api.services.compute.model.DiskType;
 import com.google.api.services.compute.model.Image;
 import com.google.api.services.compute.model.Instance;
@@ -32,6 +35,7 @@ import com.google.api.services.compute.model.MachineType;
 import com.google.api.services.compute.model.Metadata;
 import com.google.api.services.compute.model.Network;
 import com.google.api.services.compute.model.Region;
+import com.google.api.services.compute.model.Scheduling;
 import com.google.api.services.compute.model.Subnetwork;
 import com.google.api.services.compute.model.Zone;
 import com.google.cloud.graphite.platforms.plugin.client.ComputeClient;
@@ -39,6 +43,7 @@ import com.google.common.collect.ImmutableList;
 import hudson.model.Node;
 import hudson.util.FormValidation;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -300,6 +305,121 @@ public class InstanceConfigurationTest {
         assertEquals(sshKeys.length, 1);
     }
 
+    @Test
+    public void testSpotScheduling() throws Exception {
+        Scheduling scheduling = instanceConfigurationBuilder()
+                .provisioningModel(InstanceConfiguration.PROVISIONING_MODEL_SPOT)
+                .instanceTerminationAction("STOP")
+                .build()
+                .instance()
+                .getScheduling();
+        assertEquals(InstanceConfiguration.PROVISIONING_MODEL_SPOT, scheduling.getProvisioningModel());
+        assertEquals("STOP", scheduling.getInstanceTerminationAction());
+        assertEquals("TERMINATE", scheduling.getOnHostMaintenance());
+        assertFalse(scheduling.getAutomaticRestart());
+        assertNull(scheduling.getPreemptible());
+
+        scheduling = instanceConfigurationBuilder().build().instance().getScheduling();
+        assertNull(scheduling.getProvisioningModel());
+        assertTrue(scheduling.getPreemptible());
+    }
+
+    @Test
+    public void testInstancesCopyInvariantParts() throws Exception {
+        InstanceConfiguration instanceConfiguration =
+                instanceConfigurationBuilder().build();
+        Instance first = instanceConfiguration.instance();
+        Instance second = instanceConfiguration.instance();
+
+        assertNotEquals(first.getName(), second.getName());
+        assertEquals(first.getNetworkInterfaces(), second.getNetworkInterfaces());
+        assertNotSame(first.getNetworkInterfaces().get(0), second.getNetworkInterfaces().get(0));
+        assertNotSame(first.getScheduling(), second.getScheduling());
+        assertNotSame(first.getDisks().get(0), second.getDisks().get(0));
+        assertNotEquals(
+                first.getMetadata().getItems().stream()
+                        .filter(item -> item.getKey().equals(InstanceConfiguration.SSH_METADATA_KEY))
+                        .findFirst(),
+                second.getMetadata().getItems().stream()
+                        .filter(item -> item.getKey().equals(InstanceConfiguration.SSH_METADATA_KEY))
+                        .findFirst());
+
+        first.getScheduling().setPreemptible(!first.getScheduling().getPreemptible());
+        first.getDisks().get(0).getInitializeParams().setSourceImage("modified-image");
+        Instance third = instanceConfiguration.instance();
+        assertEquals(second.getScheduling(), third.getScheduling());
+        assertEquals(second.getDisks(), third.getDisks());
+
+        instanceConfiguration.setBootDiskSourceImageName("baked-image");
+        assertEquals(
+                "baked-image",
+                instanceConfiguration.instance().getDisks().get(0).getInitializeParams().getSourceImage());
+    }
+
+    @Test
+    public void testInstancesFollowSettingChanges() throws Exception {
+        InstanceConfiguration instanceConfiguration =
+                instanceConfigurationBuilder().build();
+        instanceConfiguration.instance();
+
+        instanceConfiguration.setMachineType("n2-standard-8");
+        instanceConfiguration.setNetworkTags("tag-a tag-b");
+        instanceConfiguration.setPreemptible(false);
+        instanceConfiguration.setMinCpuPlatform("Intel Ice Lake");
+        Instance instance = instanceConfiguration.instance();
+
+        assertEquals("n2-standard-8", instance.getMachineType());
+        assertEquals(ImmutableList.of("tag-a", "tag-b"), instance.getTags().getItems());
+        assertFalse(instance.getScheduling().getPreemptible());
+        assertEquals("Intel Ice Lake", instance.getMinCpuPlatform());
+    }
+
+    @Test
+    public void testAdditionalDisks() throws Exception {
+        AdditionalDiskConfiguration localSsds = new AdditionalDiskConfiguration(
+                AdditionalDiskConfiguration.LOCAL_SSD, "2", null, "/mnt/disks/ssd");
+        localSsds.setInterfaceType(AdditionalDiskConfiguration.INTERFACE_NVME);
+        AdditionalDiskConfiguration pdSsd = new AdditionalDiskConfiguration("pd-ssd", "1", "200", "/mnt/disks/pd");
+        List<AttachedDisk> disks = instanceConfigurationBuilder()
+                .additionalDisks(Arrays.asList(localSsds, pdSsd))
+                .build()
+                .instance()
+                .getDisks();
+
+        assertEquals(4, disks.size());
+        assertEquals("SCRATCH", disks.get(1).getType());
+        assertEquals("NVME", disks.get(1).getInterface());
+        assertEquals(
+                "zones/" + ZONE + "/diskTypes/local-ssd",
+                disks.get(1).getInitializeParams().getDiskType());
+        assertNull(disks.get(1).getInitializeParams().getDiskSizeGb());
+        assertEquals("PERSISTENT", disks.get(3).getType());
+        assertEquals("jenkins-disk-0", disks.get(3).getDeviceName());
+        assertEquals(Long.valueOf(200), disks.get(3).getInitializeParams().getDiskSizeGb());
+
+        assertEquals("/dev/disk/by-id/google-local-nvme-ssd-1", localSsds.devicePath(1));
+        assertEquals("/mnt/disks/ssd/1", localSsds.mountPath(1));
+        assertEquals("/dev/disk/by-id/google-jenkins-disk-0", pdSsd.devicePath(0));
+        assertEquals("/mnt/disks/pd", pdSsd.mountPath(0));
+    }
+
+    @Test
+    public void testExecutorsPerVcpu() {
+        assertEquals(8, InstanceConfiguration.vcpusOf("n2-standard-8"));
+        assertEquals(4, InstanceConfiguration.vcpusOf("zones/" + ZONE + "/machineTypes/n2-custom-4-16384-ext"));
+        assertEquals(0, InstanceConfiguration.vcpusOf("e2-medium"));
+
+        InstanceConfiguration instanceConfiguration = instanceConfigurationBuilder()
+                .machineType("n2-standard-8")
+                .numExecutorsStr("3")
+                .executorsPerVcpuStr("2")
+                .build();
+        assertEquals(16, (int) instanceConfiguration.getNumExecutors());
+
+        instanceConfiguration.setMachineType("e2-medium");
+        assertEquals(3, (int) instanceConfiguration.getNumExecutors());
+    }
+
     public static InstanceConfiguration.Builder instanceConfigurationBuilder() {
         return InstanceConfiguration.builder()
                 .namePrefix(NAME_PREFIX)
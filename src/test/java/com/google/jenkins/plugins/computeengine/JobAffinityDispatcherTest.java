@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import hudson.ExtensionList;
+import hudson.model.Computer;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class JobAffinityDispatcherTest {
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Mock
+    public ComputeEngineCloud cloud;
+
+    private final Map<String, Computer> computers = new HashMap<>();
+    private final JobAffinityDispatcher dispatcher = new JobAffinityDispatcher() {
+        @Override
+        Computer getComputer(String name) {
+            return computers.get(name);
+        }
+    };
+
+    private FreeStyleProject job;
+    private Queue.BuildableItem item;
+    private ComputeEngineInstance warm;
+    private ComputeEngineComputer warmComputer;
+    private ComputeEngineInstance other;
+
+    @Before
+    public void init() throws Exception {
+        job = r.createFreeStyleProject("job");
+        item = new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), job, new ArrayList<>()));
+        warm = node("warm");
+        warmComputer = computer(warm);
+        other = node("other");
+    }
+
+    private ComputeEngineInstance node(String name) throws Exception {
+        ComputeEngineInstance node = mock(ComputeEngineInstance.class);
+        lenient().when(node.getNodeName()).thenReturn(name);
+        lenient().when(node.getCloud()).thenReturn(cloud);
+        return node;
+    }
+
+    /** An online agent with a free executor. */
+    private ComputeEngineComputer computer(ComputeEngineInstance node) {
+        ComputeEngineComputer computer = mock(ComputeEngineComputer.class);
+        lenient().when(computer.getNode()).thenReturn(node);
+        lenient().when(computer.isOnline()).thenReturn(true);
+        lenient().when(computer.isAcceptingTasks()).thenReturn(true);
+        lenient().when(computer.countIdle()).thenReturn(1);
+        computers.put(node.getNodeName(), computer);
+        return computer;
+    }
+
+    @Test
+    public void blocksWhileWarmAgentIsFree() {
+        when(cloud.isJobAffinity()).thenReturn(true);
+        dispatcher.recordUse(warm, job);
+
+        CauseOfBlockage blockage = dispatcher.canTake(other, item);
+        assertNotNull(blockage);
+        assertTrue(blockage.getShortDescription().contains("warm"));
+        assertNull(dispatcher.canTake(warm, item));
+    }
+
+    @Test
+    public void fallsBackWhenWarmAgentCannotTakeIt() {
+        when(cloud.isJobAffinity()).thenReturn(true);
+        dispatcher.recordUse(warm, job);
+
+        when(warmComputer.countIdle()).thenReturn(0);
+        assertNull("Busy", dispatcher.canTake(other, item));
+        when(warmComputer.countIdle()).thenReturn(1);
+
+        when(warmComputer.isOnline()).thenReturn(false);
+        assertNull("Offline", dispatcher.canTake(other, item));
+        when(warmComputer.isOnline()).thenReturn(true);
+
+        when(warmComputer.isAcceptingTasks()).thenReturn(false);
+        assertNull("Not accepting tasks", dispatcher.canTake(other, item));
+        when(warmComputer.isAcceptingTasks()).thenReturn(true);
+
+        assertNotNull(dispatcher.canTake(other, item));
+    }
+
+    @Test
+    public void ignoresCloudsWithoutJobAffinity() {
+        when(cloud.isJobAffinity()).thenReturn(false);
+        dispatcher.recordUse(warm, job);
+
+        assertNull(dispatcher.canTake(other, item));
+    }
+
+    @Test
+    public void forgetsRemovedAgents() {
+        when(cloud.isJobAffinity()).thenReturn(true);
+        dispatcher.recordUse(warm, job);
+        computers.remove("warm");
+
+        assertNull(dispatcher.canTake(other, item));
+        assertTrue(dispatcher.agentsOf("job").isEmpty());
+
+        JobAffinityDispatcher.get().recordUse(warm, job);
+        ExtensionList.lookupSingleton(JobAffinityDispatcher.AgentListener.class).onDeleted(warm);
+        assertTrue(JobAffinityDispatcher.get().agentsOf("job").isEmpty());
+    }
+
+    @Test
+    public void forgetsDeletedJobsAndFollowsRenamedOnes() throws Exception {
+        JobAffinityDispatcher.get().recordUse(warm, job);
+        job.renameTo("renamed");
+        assertTrue(JobAffinityDispatcher.get().agentsOf("job").isEmpty());
+        assertEquals(ImmutableList.of("warm"), JobAffinityDispatcher.get().agentsOf("renamed"));
+
+        job.delete();
+        assertTrue(JobAffinityDispatcher.get().agentsOf("renamed").isEmpty());
+    }
+
+    @Test
+    public void remembersLastAgentsOfJob() throws Exception {
+        for (int i = 0; i <= JobAffinityDispatcher.MAX_AGENTS_PER_JOB; i++) {
+            dispatcher.recordUse(node("agent-" + i), job);
+        }
+        dispatcher.recordUse(node("agent-1"), job);
+
+        assertEquals(JobAffinityDispatcher.MAX_AGENTS_PER_JOB, dispatcher.agentsOf("job").size());
+        assertEquals("agent-2", dispatcher.agentsOf("job").get(0));
+        assertEquals("agent-1", dispatcher.agentsOf("job").get(JobAffinityDispatcher.MAX_AGENTS_PER_JOB - 1));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.instanceConfigurationBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceGroupManager;
+import com.google.api.services.compute.model.ManagedInstance;
+import com.google.api.services.compute.model.Metadata;
+import com.google.api.services.compute.model.RegionInstanceGroupManagersDeleteInstancesRequest;
+import com.google.api.services.compute.model.RegionInstanceGroupManagersListInstancesResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.computeengine.benchmark.FakeComputeClient;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ManagedInstanceGroupTest {
+    private static final String REGION_LINK = "https://www.googleapis.com/compute/v1/projects/p/regions/us-west1";
+    private static final String PROJECT_ID = "test-project";
+    private static final String GROUP = "agents";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void urlFromNamesOrSelfLinks() {
+        assertEquals(
+                "regions/us-west1/instanceGroupManagers/agents", ManagedInstanceGroup.url("us-west1", "agents"));
+        assertEquals(
+                "regions/us-west1/instanceGroupManagers/agents",
+                ManagedInstanceGroup.url(REGION_LINK, REGION_LINK + "/instanceGroupManagers/agents"));
+        assertEquals("us-west1", ManagedInstanceGroup.region(ManagedInstanceGroup.url("us-west1", "agents")));
+    }
+
+    @Test
+    public void groupOfInstance() {
+        Instance created = new Instance()
+                .setMetadata(new Metadata()
+                        .setItems(ImmutableList.of(new Metadata.Items()
+                                .setKey("created-by")
+                                .setValue("projects/123/regions/us-west1/instanceGroupManagers/agents"))));
+        assertEquals("regions/us-west1/instanceGroupManagers/agents", ManagedInstanceGroup.groupOf(created));
+
+        Instance zonal = new Instance()
+                .setMetadata(new Metadata()
+                        .setItems(ImmutableList.of(new Metadata.Items()
+                                .setKey("created-by")
+                                .setValue("projects/123/zones/us-west1-a/instanceGroupManagers/agents"))));
+        assertNull(ManagedInstanceGroup.groupOf(zonal));
+        assertNull(ManagedInstanceGroup.groupOf(new Instance()));
+    }
+
+    @Test
+    public void resizeAndAdoptInstances() throws Exception {
+        FakeComputeClient compute = FakeComputeClient.builder().build();
+        ComputeEngineCloud cloud = new ComputeEngineCloud("group-cloud", PROJECT_ID, PROJECT_ID, "10");
+        cloud.setClient(compute.getClient());
+        List<String> created = new ArrayList<>();
+        cloud.setCompute(fakeGroup(compute, created));
+        cloud.setConfigurations(ImmutableList.of(
+                instanceConfigurationBuilder().managedInstanceGroup(GROUP).build()));
+        r.jenkins.clouds.add(cloud);
+        InstanceConfiguration config = cloud.getConfigurations().get(0);
+        ManagedInstanceGroup group = ManagedInstanceGroup.of(cloud, config);
+
+        group.resize(cloud, 3);
+        assertEquals(3, created.size());
+        // Instances being deleted are not adopted, as the group would not create them again
+        TerminationQueue.get()
+                .submit(cloud, InstanceConfigurationTest.ZONE, created.get(0), group.getUrl());
+
+        List<String> adopted = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            ComputeEngineInstance node = group.awaitInstance(cloud, config);
+            r.jenkins.addNode(node);
+            group.added(node.getNodeName());
+            adopted.add(node.getNodeName());
+        }
+        assertEquals(created.subList(1, 3), adopted.stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void deletesWaitForResizeOfTheGroup() throws Exception {
+        ComputeEngineCloud cloud = new ComputeEngineCloud("serialized-cloud", PROJECT_ID, PROJECT_ID, "10");
+        Compute api = mock(Compute.class);
+        Compute.RegionInstanceGroupManagers groups = mock(Compute.RegionInstanceGroupManagers.class);
+        when(api.regionInstanceGroupManagers()).thenReturn(groups);
+        cloud.setCompute(api);
+        AtomicInteger targetSize = new AtomicInteger(3);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        Compute.RegionInstanceGroupManagers.Get get = mock(Compute.RegionInstanceGroupManagers.Get.class);
+        when(groups.get(PROJECT_ID, "us-west1", GROUP)).thenReturn(get);
+        when(get.execute()).thenAnswer(invocation -> {
+            reading.countDown();
+            read.await();
+            return new InstanceGroupManager().setTargetSize(targetSize.get());
+        });
+        when(groups.resize(eq(PROJECT_ID), eq("us-west1"), eq(GROUP), anyInt())).thenAnswer(invocation -> {
+            targetSize.set(invocation.getArgument(3));
+            return mock(Compute.RegionInstanceGroupManagers.Resize.class);
+        });
+        when(groups.deleteInstances(eq(PROJECT_ID), eq("us-west1"), eq(GROUP), any()))
+                .thenAnswer(invocation -> {
+                    RegionInstanceGroupManagersDeleteInstancesRequest request = invocation.getArgument(3);
+                    targetSize.addAndGet(-request.getInstances().size());
+                    return mock(Compute.RegionInstanceGroupManagers.DeleteInstances.class);
+                });
+        ManagedInstanceGroup group = ManagedInstanceGroup.of(cloud, ManagedInstanceGroup.url("us-west1", GROUP));
+
+        Thread resize = new Thread(() -> {
+            try {
+                group.resize(cloud, 2);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        resize.start();
+        reading.await();
+        Thread delete = new Thread(() -> {
+            try {
+                group.deleteInstances(cloud, ImmutableList.of("zones/us-west1-a/instances/agents-1"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        delete.start();
+        // The delete waits while the resize has read the target size but not raised it yet
+        while (delete.getState() != Thread.State.BLOCKED) {
+            Thread.sleep(10);
+        }
+        read.countDown();
+        resize.join();
+        delete.join();
+
+        assertEquals(4, targetSize.get());
+    }
+
+    /**
+     * Simulates a regional group whose resize inserts the new instances into a fake Compute Engine,
+     * and lists them as managed instances.
+     */
+    private static Compute fakeGroup(FakeComputeClient compute, List<String> created) throws IOException {
+        Compute api = mock(Compute.class);
+        Compute.RegionInstanceGroupManagers groups = mock(Compute.RegionInstanceGroupManagers.class);
+        when(api.regionInstanceGroupManagers()).thenReturn(groups);
+        AtomicInteger targetSize = new AtomicInteger();
+
+        Compute.RegionInstanceGroupManagers.Get get = mock(Compute.RegionInstanceGroupManagers.Get.class);
+        when(groups.get(PROJECT_ID, InstanceConfigurationTest.REGION, GROUP)).thenReturn(get);
+        when(get.execute()).thenAnswer(invocation -> new InstanceGroupManager().setTargetSize(targetSize.get()));
+
+        Compute.RegionInstanceGroupManagers.Resize resize = mock(Compute.RegionInstanceGroupManagers.Resize.class);
+        Metadata createdBy = new Metadata()
+                .setItems(ImmutableList.of(new Metadata.Items()
+                        .setKey("created-by")
+                        .setValue("projects/123/"
+                                + ManagedInstanceGroup.url(InstanceConfigurationTest.REGION, GROUP))));
+        when(groups.resize(eq(PROJECT_ID), eq(InstanceConfigurationTest.REGION), eq(GROUP), anyInt()))
+                .thenAnswer(invocation -> {
+                    int size = invocation.getArgument(3);
+                    while (targetSize.get() < size) {
+                        String name = "agents-" + targetSize.incrementAndGet();
+                        compute.getClient()
+                                .insertInstance(
+                                        PROJECT_ID,
+                                        Optional.empty(),
+                                        new Instance()
+                                                .setName(name)
+                                                .setZone(InstanceConfigurationTest.ZONE)
+                                                .setMetadata(createdBy.clone()));
+                        created.add(name);
+                    }
+                    return resize;
+                });
+
+        Compute.RegionInstanceGroupManagers.ListManagedInstances list =
+                mock(Compute.RegionInstanceGroupManagers.ListManagedInstances.class);
+        when(groups.listManagedInstances(PROJECT_ID, InstanceConfigurationTest.REGION, GROUP))
+                .thenReturn(list);
+        when(list.setPageToken(any())).thenReturn(list);
+        when(list.execute()).thenAnswer(invocation -> {
+            List<ManagedInstance> managed = new ArrayList<>();
+            for (String name : created) {
+                Instance instance =
+                        compute.getClient().getInstance(PROJECT_ID, InstanceConfigurationTest.ZONE, name);
+                managed.add(new ManagedInstance()
+                        .setInstance(instance.getSelfLink())
+                        .setInstanceStatus(instance.getStatus())
+                        .setCurrentAction("NONE"));
+            }
+            return new RegionInstanceGroupManagersListInstancesResponse().setManagedInstances(managed);
+        });
+
+        // Adopting a Linux instance adds a new SSH key to it
+        Compute.Instances instances = mock(Compute.Instances.class);
+        when(api.instances()).thenReturn(instances);
+        when(instances.setMetadata(eq(PROJECT_ID), eq(InstanceConfigurationTest.ZONE), anyString(), any()))
+                .thenReturn(mock(Compute.Instances.SetMetadata.class));
+        return api;
+    }
+}
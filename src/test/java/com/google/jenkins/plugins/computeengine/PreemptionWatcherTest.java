@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.common.collect.ImmutableList.of;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.anyMap;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.api.services.compute.model.Instance;
+import com.google.cloud.graphite.platforms.plugin.client.ComputeClient;
+import hudson.model.Computer;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PreemptionWatcherTest {
+    private static final String TEST_PROJECT_ID = "test_project_id";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Mock
+    public ComputeEngineCloud cloud;
+
+    @Mock
+    public ComputeClient client;
+
+    private ComputeEngineComputer agent(String name, boolean preemptible) throws Exception {
+        ComputeEngineComputer computer = mock(ComputeEngineComputer.class);
+        ComputeEngineInstance node = mock(ComputeEngineInstance.class);
+        lenient().when(computer.getNode()).thenReturn(node);
+        lenient().when(computer.getPreemptible()).thenReturn(preemptible);
+        lenient().when(computer.getName()).thenReturn(name);
+        lenient().when(node.getCloud()).thenReturn(cloud);
+        return computer;
+    }
+
+    private static PreemptionWatcher watching(Computer... computers) {
+        return new PreemptionWatcher() {
+            @Override
+            Computer[] getComputers() {
+                return computers;
+            }
+        };
+    }
+
+    @Test
+    public void handlesStoppingAndTerminatedInstances() throws Exception {
+        when(cloud.getClient()).thenReturn(client);
+        when(cloud.getProjectId()).thenReturn(TEST_PROJECT_ID);
+        when(cloud.getInstanceId()).thenReturn("234234355");
+        when(client.listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap()))
+                .thenReturn(of(
+                        new Instance().setName("stopping").setStatus("STOPPING"),
+                        new Instance().setName("terminated").setStatus("TERMINATED"),
+                        new Instance().setName("running").setStatus("RUNNING")));
+        ComputeEngineComputer stopping = agent("stopping", true);
+        ComputeEngineComputer terminated = agent("terminated", true);
+        ComputeEngineComputer running = agent("running", true);
+
+        watching(stopping, terminated, running).doRun();
+
+        verify(stopping).onPreempted();
+        verify(terminated).onPreempted();
+        verify(running, never()).onPreempted();
+        // A single call lists the instances of all agents of the cloud
+        verify(client).listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap());
+    }
+
+    @Test
+    public void handlesOfflineAgentsWhoseInstanceIsStoppingOrGone() throws Exception {
+        when(cloud.getClient()).thenReturn(client);
+        when(cloud.getProjectId()).thenReturn(TEST_PROJECT_ID);
+        when(cloud.getInstanceId()).thenReturn("234234355");
+        when(client.listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap()))
+                .thenReturn(of(new Instance().setName("stopping").setStatus("STOPPING")));
+        // Agents are offline, as a preempted instance drops its channel
+        ComputeEngineComputer stopping = agent("stopping", true);
+        ComputeEngineComputer gone = agent("gone", true);
+        when(gone.hasConnected()).thenReturn(true);
+        ComputeEngineComputer launching = agent("launching", true);
+
+        watching(stopping, gone, launching).doRun();
+
+        verify(stopping).onPreempted();
+        verify(gone).onPreempted();
+        // The instance of an agent that never connected may not be created yet
+        verify(launching, never()).onPreempted();
+    }
+
+    @Test
+    public void ignoresMissingInstancesWhenListingFails() throws Exception {
+        when(cloud.getClient()).thenReturn(client);
+        when(cloud.getProjectId()).thenReturn(TEST_PROJECT_ID);
+        when(cloud.getInstanceId()).thenReturn("234234355");
+        when(client.listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap())).thenThrow(new IOException("test"));
+        ComputeEngineComputer agent = agent("agent", true);
+        lenient().when(agent.hasConnected()).thenReturn(true);
+
+        watching(agent).doRun();
+
+        verify(agent, never()).onPreempted();
+    }
+
+    @Test
+    public void handlesPreemptionNoticeWithoutListingInstances() throws Exception {
+        ComputeEngineComputer noticed = agent("noticed", true);
+        when(noticed.hasPreemptionNotice()).thenReturn(true);
+
+        watching(noticed).doRun();
+
+        verify(noticed).onPreempted();
+        verify(client, never()).listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap());
+    }
+
+    @Test
+    public void ignoresAgentsThatAreNotPreemptible() throws Exception {
+        ComputeEngineComputer standard = agent("standard", false);
+
+        watching(standard).doRun();
+
+        verify(standard, never()).onPreempted();
+        verify(client, never()).listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap());
+    }
+}
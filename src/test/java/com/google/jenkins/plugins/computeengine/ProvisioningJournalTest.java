@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.ComputeEngineCloud.CLOUD_ID_LABEL_KEY;
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.NAME_PREFIX;
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.PROJECT_ID;
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.ZONE;
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.instanceConfigurationBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.compute.model.Instance;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.jenkins.plugins.computeengine.benchmark.FakeComputeClient;
+import hudson.model.Node;
+import java.util.Collections;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ProvisioningJournalTest {
+    private static final String INSTANCE_NAME = NAME_PREFIX + "-abcdef";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private FakeComputeClient compute;
+    private ComputeEngineCloud cloud;
+
+    @Before
+    public void setUp() {
+        compute = FakeComputeClient.builder().build();
+        cloud = new ComputeEngineCloud("test", PROJECT_ID, PROJECT_ID, "10");
+        cloud.setClient(compute.getClient());
+        cloud.setConfigurations(ImmutableList.of(instanceConfigurationBuilder().build()));
+        r.jenkins.clouds.add(cloud);
+    }
+
+    private ProvisioningJournal.Entry entry() {
+        return new ProvisioningJournal.Entry(
+                cloud.name, NAME_PREFIX, INSTANCE_NAME, ZONE, null, Collections.emptyList());
+    }
+
+    @Test
+    public void entriesAreReloaded() {
+        ProvisioningJournal journal = ProvisioningJournal.get();
+        journal.inserting(entry());
+        journal.inserted(INSTANCE_NAME, "operation-1");
+        journal.flush();
+
+        ProvisioningJournal reloaded = new ProvisioningJournal();
+        reloaded.load();
+        ProvisioningJournal.Entry entry = reloaded.getEntries().iterator().next();
+        assertEquals(INSTANCE_NAME, entry.getName());
+        assertEquals(ZONE, entry.getZone());
+        assertEquals("operation-1", entry.getOperationId());
+        assertEquals(ProvisioningJournal.Phase.INSERTED, entry.getPhase());
+
+        journal.remove(INSTANCE_NAME);
+        journal.flush();
+        reloaded = new ProvisioningJournal();
+        reloaded.load();
+        assertTrue(reloaded.getEntries().isEmpty());
+    }
+
+    @Test
+    public void insertedInstanceIsAdopted() throws Exception {
+        compute.getClient()
+                .insertInstance(
+                        PROJECT_ID,
+                        Optional.empty(),
+                        new Instance()
+                                .setName(INSTANCE_NAME)
+                                .setZone(ZONE)
+                                .setLabels(ImmutableMap.of(CLOUD_ID_LABEL_KEY, cloud.getInstanceId())));
+        ProvisioningJournal journal = ProvisioningJournal.get();
+        journal.inserting(entry());
+
+        // The insert operation is unknown when the controller stopped while sending it
+        journal.resume();
+
+        Node node = r.jenkins.getNode(INSTANCE_NAME);
+        assertTrue(node instanceof ComputeEngineInstance);
+        assertEquals(NAME_PREFIX, ((ComputeEngineInstance) node).getConfigName());
+        assertEquals(ZONE, ((ComputeEngineInstance) node).getZone());
+        assertEquals(ProvisioningJournal.Phase.LAUNCHING, journal.getEntries().iterator().next().getPhase());
+        assertTrue(journal.isProvisioning(INSTANCE_NAME));
+        assertEquals(1, compute.getInstanceCount());
+        assertEquals(Integer.valueOf(1), compute.getCalls().get("listInstancesWithLabel"));
+        assertNull(compute.getCalls().get("getInstance"));
+    }
+
+    @Test
+    public void instanceNeverCreatedIsForgotten() {
+        ProvisioningJournal journal = ProvisioningJournal.get();
+        journal.inserting(entry());
+
+        journal.resume();
+
+        assertNull(r.jenkins.getNode(INSTANCE_NAME));
+        assertFalse(journal.isProvisioning(INSTANCE_NAME));
+        assertTrue(journal.getEntries().isEmpty());
+    }
+}
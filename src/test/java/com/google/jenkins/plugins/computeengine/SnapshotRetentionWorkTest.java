@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.compute.model.Snapshot;
+import com.google.common.collect.ImmutableList;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+public class SnapshotRetentionWorkTest {
+    private static final Instant NOW = Instant.parse("2024-01-10T00:00:00Z");
+    private static final List<Snapshot> SNAPSHOTS = ImmutableList.of(
+            snapshot("day-9", "2024-01-09T00:00:00.000-00:00"),
+            snapshot("day-1", "2024-01-01T00:00:00.000-00:00"),
+            snapshot("day-5", "2024-01-05T00:00:00.000-00:00"));
+
+    @Test
+    public void keepsEverythingWithoutLimits() {
+        assertTrue(SnapshotRetentionWork.expired(SNAPSHOTS, 0, 0, NOW).isEmpty());
+    }
+
+    @Test
+    public void deletesSnapshotsOlderThanRetention() {
+        assertEquals(ImmutableList.of("day-1"), names(SnapshotRetentionWork.expired(SNAPSHOTS, 7, 0, NOW)));
+    }
+
+    @Test
+    public void deletesOldestSnapshotsBeyondMaximum() {
+        assertEquals(
+                ImmutableList.of("day-5", "day-1"), names(SnapshotRetentionWork.expired(SNAPSHOTS, 0, 1, NOW)));
+    }
+
+    private static Snapshot snapshot(String name, String creationTimestamp) {
+        return new Snapshot().setName(name).setCreationTimestamp(creationTimestamp);
+    }
+
+    private static List<String> names(List<Snapshot> snapshots) {
+        return snapshots.stream().map(Snapshot::getName).collect(Collectors.toList());
+    }
+}
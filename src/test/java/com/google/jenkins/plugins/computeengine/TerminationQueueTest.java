@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.ManagedInstance;
+import com.google.api.services.compute.model.RegionInstanceGroupManagersListInstancesResponse;
+import com.google.cloud.graphite.platforms.plugin.client.ComputeClient;
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.computeengine.TerminationQueue.PendingDelete;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TerminationQueueTest {
+    private static final String TEST_PROJECT_ID = "test_project_id";
+
+    @Mock
+    public ComputeEngineCloud cloud;
+
+    @Mock
+    public ComputeClient client;
+
+    private final List<List<String>> batches = new ArrayList<>();
+    private final List<List<String>> groupBatches = new ArrayList<>();
+    private boolean failSends;
+
+    private final TerminationQueue queue = queue(TerminationQueue.MAX_PENDING);
+
+    private TerminationQueue queue(int maxPending) {
+        return new TerminationQueue(maxPending) {
+            @Override
+            void deleteBatch(ComputeEngineCloud cloud, String zone, List<PendingDelete> batch, long now)
+                    throws IOException {
+                batches.add(batch.stream().map(PendingDelete::getName).collect(Collectors.toList()));
+                if (failSends) {
+                    throw new IOException("Service unavailable");
+                }
+                batch.forEach(delete -> sent(delete, now));
+            }
+
+            @Override
+            void deleteFromGroup(ComputeEngineCloud cloud, String group, List<PendingDelete> batch, long now) {
+                groupBatches.add(batch.stream().map(PendingDelete::getName).collect(Collectors.toList()));
+                batch.forEach(delete -> sent(delete, now));
+            }
+        };
+    }
+
+    @Test
+    public void sendsDeletesRightAwayWhenFull() throws Exception {
+        TerminationQueue full = queue(1);
+        CompletableFuture<Boolean> queued = full.submit(cloud, "zone-a", "inst-1");
+        CompletableFuture<Boolean> overflow = full.submit(cloud, "zone-a", "inst-2");
+
+        assertEquals(ImmutableList.of(ImmutableList.of("inst-2")), batches);
+        assertTrue(overflow.get());
+        assertFalse(queued.isDone());
+        assertEquals(1, full.getPendingCount());
+
+        failSends = true;
+        assertFalse(full.submit(cloud, "zone-a", "inst-3").get());
+        assertEquals(1, full.getFailed().size());
+    }
+
+    @Test
+    public void coalescesDeletesPerZone() {
+        queue.submit(cloud, "zone-a", "inst-1");
+        queue.submit(cloud, "zone-a", "inst-2");
+        queue.submit(cloud, "https://www.googleapis.com/compute/v1/projects/p/zones/zone-b", "inst-3");
+        queue.submit(cloud, "zone-a", "inst-1");
+
+        queue.process(System.currentTimeMillis());
+
+        assertEquals(2, batches.size());
+        assertTrue(batches.contains(ImmutableList.of("inst-3")));
+        assertEquals(3, queue.getPendingCount());
+    }
+
+    @Test
+    public void keepsInstancesOfTheSameNameApart() {
+        ComputeEngineCloud other = mock(ComputeEngineCloud.class);
+        when(other.getProjectId()).thenReturn("other_project_id");
+        queue.submit(cloud, "zone-a", "inst-1");
+        queue.submit(cloud, "zone-b", "inst-1");
+        queue.submit(other, "zone-a", "inst-1");
+
+        assertEquals(3, queue.getPendingCount());
+        assertTrue(queue.isPending(other, "zone-a", "inst-1"));
+        assertFalse(queue.isPending(cloud, "zone-c", "inst-1"));
+    }
+
+    @Test
+    public void deletesGroupInstancesThroughTheirGroup() {
+        String group = ManagedInstanceGroup.url("us-west1", "agents");
+        queue.submit(cloud, "us-west1-a", "agents-a1b2", group);
+        queue.submit(cloud, "us-west1-b", "agents-c3d4", group);
+        queue.submit(cloud, "us-west1-a", "inst-1");
+
+        queue.process(System.currentTimeMillis());
+
+        assertEquals(ImmutableList.of(ImmutableList.of("inst-1")), batches);
+        assertEquals(1, groupBatches.size());
+        assertEquals(2, groupBatches.get(0).size());
+    }
+
+    @Test
+    public void completesOnceInstanceIsGone() throws Exception {
+        when(cloud.getClient()).thenReturn(client);
+        when(cloud.getProjectId()).thenReturn(TEST_PROJECT_ID);
+        when(cloud.getInstanceId()).thenReturn("234234355");
+        when(client.listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap()))
+                .thenReturn(ImmutableList.of(new Instance().setName("inst-1").setZone("zone-a")))
+                .thenReturn(ImmutableList.of());
+        CompletableFuture<Boolean> deleted = queue.submit(cloud, "zone-a", "inst-1");
+        long now = System.currentTimeMillis();
+
+        queue.process(now);
+        queue.process(now + 1000);
+        assertFalse(deleted.isDone());
+
+        queue.process(now + 2000);
+        assertTrue(deleted.get());
+        assertFalse(queue.isPending(cloud, "zone-a", "inst-1"));
+        assertEquals(1, queue.getDeletedCount());
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void verifiesGroupDeletesWithTheGroup() throws Exception {
+        Compute api = mock(Compute.class);
+        Compute.RegionInstanceGroupManagers groups = mock(Compute.RegionInstanceGroupManagers.class);
+        Compute.RegionInstanceGroupManagers.ListManagedInstances list =
+                mock(Compute.RegionInstanceGroupManagers.ListManagedInstances.class);
+        when(cloud.getCompute()).thenReturn(api);
+        when(cloud.getProjectId()).thenReturn(TEST_PROJECT_ID);
+        when(api.regionInstanceGroupManagers()).thenReturn(groups);
+        when(groups.listManagedInstances(TEST_PROJECT_ID, "us-west1", "verified-agents"))
+                .thenReturn(list);
+        when(list.setPageToken(any())).thenReturn(list);
+        // The instance has no cloud label, only its group knows it
+        when(list.execute())
+                .thenReturn(new RegionInstanceGroupManagersListInstancesResponse()
+                        .setManagedInstances(ImmutableList.of(new ManagedInstance()
+                                .setInstance("https://www.googleapis.com/compute/v1/projects/p/zones/us-west1-a"
+                                        + "/instances/agents-a1b2")
+                                .setCurrentAction("DELETING"))))
+                .thenReturn(new RegionInstanceGroupManagersListInstancesResponse());
+        CompletableFuture<Boolean> deleted = queue.submit(
+                cloud, "us-west1-a", "agents-a1b2", ManagedInstanceGroup.url("us-west1", "verified-agents"));
+        long now = System.currentTimeMillis();
+
+        queue.process(now);
+        queue.process(now + 1000);
+        assertFalse(deleted.isDone());
+
+        queue.process(now + 2000);
+        assertTrue(deleted.get());
+        verifyNoMoreInteractions(client);
+    }
+
+    @Test
+    public void reportsDeleteAfterMaxAttempts() throws Exception {
+        failSends = true;
+        CompletableFuture<Boolean> deleted = queue.submit(cloud, "zone-a", "inst-1");
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < TerminationQueue.MAX_ATTEMPTS + 1; i++) {
+            queue.process(now);
+            now += TerminationQueue.MAX_BACKOFF;
+        }
+
+        assertFalse(deleted.get());
+        assertEquals(TerminationQueue.MAX_ATTEMPTS, batches.size());
+        assertEquals("Service unavailable", queue.getFailed().iterator().next().getLastError());
+
+        queue.retryFailed();
+        assertTrue(queue.isPending(cloud, "zone-a", "inst-1"));
+        assertTrue(queue.getFailed().isEmpty());
+    }
+
+    @Test
+    public void keepsPoolDiskLeasedUntilFailedDeleteIsRetried() throws Exception {
+        when(cloud.getClient()).thenReturn(client);
+        when(cloud.getProjectId()).thenReturn(TEST_PROJECT_ID);
+        when(cloud.getInstanceId()).thenReturn("234234355");
+        when(client.listInstancesWithLabel(eq(TEST_PROJECT_ID), anyMap())).thenReturn(ImmutableList.of());
+        List<String> disks = ImmutableList.of("pool-disk-0");
+        DiskPool pool = DiskPool.of("keepsPoolDiskLeasedUntilFailedDeleteIsRetried");
+        pool.lease(disks, Collections.emptyList());
+        failSends = true;
+        CompletableFuture<Boolean> deleted = queue.submit(cloud, "zone-a", "inst-1");
+        DiskPool.releaseWhenGone(
+                ImmutableList.of(new DiskMount("/dev/sdb", "/data", pool.getName(), "pool-disk-0")),
+                queue.whenGone(cloud, "zone-a", "inst-1"));
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < TerminationQueue.MAX_ATTEMPTS; i++) {
+            queue.process(now);
+            now += TerminationQueue.MAX_BACKOFF;
+        }
+        assertFalse(deleted.get());
+        // The disk may still be attached to the instance
+        assertFalse(pool.lease(disks, Collections.emptyList()).isPresent());
+
+        failSends = false;
+        queue.retryFailed();
+        queue.process(now);
+        queue.process(now + 1000);
+        assertEquals("pool-disk-0", pool.lease(disks, Collections.emptyList()).get());
+    }
+}
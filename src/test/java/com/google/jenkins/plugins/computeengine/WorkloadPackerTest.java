@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine;
+
+import static com.google.jenkins.plugins.computeengine.InstanceConfigurationTest.instanceConfigurationBuilder;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class WorkloadPackerTest {
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private InstanceConfiguration small;
+    private InstanceConfiguration medium;
+    private InstanceConfiguration large;
+
+    @Before
+    public void init() {
+        small = config("small", "n2-standard-2", "1");
+        medium = config("medium", "n2-standard-8", "4");
+        large = config("large", "n2-standard-32", "16");
+    }
+
+    @Test
+    public void packsBurstIntoFewestInstances() {
+        List<InstanceConfiguration> configs = ImmutableList.of(small, medium, large);
+
+        assertEquals(
+                ImmutableList.of("large", "large", "large", "large"), prefixes(WorkloadPacker.pack(configs, 64)));
+        assertEquals(ImmutableList.of("large", "medium"), prefixes(WorkloadPacker.pack(configs, 20)));
+        assertEquals(ImmutableList.of("small"), prefixes(WorkloadPacker.pack(configs, 1)));
+    }
+
+    @Test
+    public void prefersFewerVcpusBetweenPlansWithAsManyInstances() {
+        List<InstanceConfiguration> configs = ImmutableList.of(large, medium);
+
+        assertEquals(ImmutableList.of("medium"), prefixes(WorkloadPacker.pack(configs, 3)));
+        assertEquals(Collections.emptyList(), WorkloadPacker.pack(configs, 0));
+    }
+
+    private static InstanceConfiguration config(String namePrefix, String machineType, String numExecutors) {
+        return instanceConfigurationBuilder()
+                .namePrefix(namePrefix)
+                .machineType(machineType)
+                .numExecutorsStr(numExecutors)
+                .build();
+    }
+
+    private static List<String> prefixes(List<InstanceConfiguration> plan) {
+        return plan.stream().map(InstanceConfiguration::getNamePrefix).collect(Collectors.toList());
+    }
+}
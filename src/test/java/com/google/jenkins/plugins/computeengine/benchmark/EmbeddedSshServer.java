@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine.benchmark;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.scp.server.ScpCommandFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+
+/**
+ * SSH server on the loopback interface that stands in for the sshd of simulated agents. Any public
+ * key is accepted, commands run locally through {@code /bin/sh -c} and SCP is supported, so the
+ * launchers can copy and start agent.jar as on a real instance.
+ */
+public class EmbeddedSshServer implements AutoCloseable {
+    private final SshServer server;
+
+    private EmbeddedSshServer(SshServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Finds a free port for the server. It must be known before the launchers are loaded, see
+     * {@code com.google.jenkins.plugins.computeengine.ComputeEngineComputerLauncher.sshPort}.
+     */
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    public static EmbeddedSshServer start(int port) throws IOException {
+        SimpleGeneratorHostKeyProvider hostKeys = new SimpleGeneratorHostKeyProvider();
+        hostKeys.setAlgorithm(KeyUtils.RSA_ALGORITHM);
+
+        SshServer server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(port);
+        server.setKeyPairProvider(hostKeys);
+        server.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+        server.setCommandFactory(new ScpCommandFactory.Builder()
+                .withDelegate((channel, command) ->
+                        new ProcessShellFactory(command, "/bin/sh", "-c", command).createShell(channel))
+                .build());
+        server.start();
+        return new EmbeddedSshServer(server);
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(true);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine.benchmark;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.api.client.googleapis.testing.json.GoogleJsonResponseExceptionFactoryTesting;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.compute.model.AccessConfig;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceTemplate;
+import com.google.api.services.compute.model.NetworkInterface;
+import com.google.api.services.compute.model.Operation;
+import com.google.cloud.graphite.platforms.plugin.client.ComputeClient;
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.computeengine.NetworkInterfaceIpStackMode;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import lombok.Builder;
+import lombok.Getter;
+import org.mockito.invocation.InvocationOnMock;
+
+/**
+ * In-memory stand-in for {@link ComputeClient} that simulates the Compute Engine behaviour the
+ * plugin depends on: operation latency, boot time, zonal stockouts and API rate limits. Instances
+ * report {@code 127.0.0.1} as their address, so launchers connect to an {@link EmbeddedSshServer}.
+ * Every call is counted per method.
+ */
+public class FakeComputeClient {
+    /** How long an insert or delete operation takes to complete. */
+    private final long operationMillis;
+    /** How long an instance stays in STAGING after its insert operation completed. */
+    private final long bootMillis;
+    /** Share of inserts that fail with ZONE_RESOURCE_POOL_EXHAUSTED, between 0 and 1. */
+    private final double stockoutRate;
+    /** Calls per second above which calls fail with HTTP 429, 0 for no limit. */
+    private final int rateLimitPerSecond;
+
+    private final Random random = new Random(42);
+    private final AtomicLong operations = new AtomicLong();
+    private final Map<String, FakeInstance> instances = new ConcurrentHashMap<>();
+    private final Map<String, FakeOperation> pendingOperations = new ConcurrentHashMap<>();
+    private final Map<String, InstanceTemplate> templates = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger callsThisSecond = new AtomicInteger();
+    private volatile long currentSecond;
+
+    @Getter
+    private final ComputeClient client;
+
+    @Builder
+    private FakeComputeClient(long operationMillis, long bootMillis, double stockoutRate, int rateLimitPerSecond) {
+        this.operationMillis = operationMillis;
+        this.bootMillis = bootMillis;
+        this.stockoutRate = stockoutRate;
+        this.rateLimitPerSecond = rateLimitPerSecond;
+        this.client = mock(ComputeClient.class, this::answer);
+    }
+
+    /** @return Number of calls per client method since the last {@link #reset()}. */
+    public Map<String, Integer> getCalls() {
+        return calls.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().get()));
+    }
+
+    /** @return Number of client calls since the last {@link #reset()}. */
+    public int getTotalCalls() {
+        return calls.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    /** @return Number of instances that exist, whatever their status. */
+    public int getInstanceCount() {
+        return instances.size();
+    }
+
+    /** Makes an instance template available to instance configurations that use it. */
+    public void addTemplate(String name, InstanceTemplate template) {
+        templates.put(name, template.setName(name));
+    }
+
+    /** Deletes all instances and forgets counted calls. */
+    public void reset() {
+        instances.clear();
+        pendingOperations.clear();
+        calls.clear();
+    }
+
+    private Object answer(InvocationOnMock invocation) throws Throwable {
+        String method = invocation.getMethod().getName();
+        calls.computeIfAbsent(method, m -> new AtomicInteger()).incrementAndGet();
+        if (Arrays.asList(invocation.getMethod().getExceptionTypes()).contains(IOException.class)) {
+            checkRateLimit();
+        }
+        Object[] args = invocation.getArguments();
+        switch (method) {
+            case "insertInstance":
+                return insertInstance((Instance) args[2]);
+            case "waitForOperationCompletion":
+                return waitForOperationCompletion((String) args[1], (Long) args[3]);
+            case "getInstance":
+                return getInstance((String) args[2]);
+            case "listInstancesWithLabel":
+                @SuppressWarnings("unchecked")
+                Map<String, String> labels = (Map<String, String>) args[1];
+                return listInstancesWithLabel(labels);
+            case "terminateInstanceAsync":
+                return terminateInstance((String) args[2]);
+            case "getTemplate":
+                return getTemplate((String) args[1]);
+            case "getGuestAttributesSync":
+                return ImmutableList.of();
+            default:
+                throw new UnsupportedOperationException("FakeComputeClient does not simulate " + method);
+        }
+    }
+
+    private void checkRateLimit() throws IOException {
+        if (rateLimitPerSecond <= 0) {
+            return;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        if (second != currentSecond) {
+            currentSecond = second;
+            callsThisSecond.set(0);
+        }
+        if (callsThisSecond.incrementAndGet() > rateLimitPerSecond) {
+            throw GoogleJsonResponseExceptionFactoryTesting.newMock(
+                    GsonFactory.getDefaultInstance(), 429, "Rate Limit Exceeded");
+        }
+    }
+
+    private Operation insertInstance(Instance instance) {
+        boolean stockout;
+        synchronized (random) {
+            stockout = random.nextDouble() < stockoutRate;
+        }
+        long now = System.currentTimeMillis();
+        FakeOperation operation = new FakeOperation(
+                "operation-" + operations.incrementAndGet(), instance.getZone(), now + operationMillis, stockout);
+        pendingOperations.put(operation.name, operation);
+        if (!stockout) {
+            instances.put(instance.getName(), new FakeInstance(instance, now));
+        }
+        return operation.toOperation(false);
+    }
+
+    private Operation waitForOperationCompletion(String operationId, long timeout) throws InterruptedException {
+        FakeOperation operation = pendingOperations.get(operationId);
+        if (operation == null) {
+            return new Operation().setName(operationId).setStatus("DONE");
+        }
+        long wait = operation.doneAt - System.currentTimeMillis();
+        if (wait > timeout) {
+            Thread.sleep(timeout);
+            return operation.toOperation(false);
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        pendingOperations.remove(operationId);
+        return operation.toOperation(true);
+    }
+
+    private Instance getInstance(String name) throws IOException {
+        FakeInstance instance = instances.get(name);
+        if (instance == null) {
+            throw GoogleJsonResponseExceptionFactoryTesting.newMock(
+                    GsonFactory.getDefaultInstance(), 404, "The resource '" + name + "' was not found");
+        }
+        return instance.toInstance();
+    }
+
+    private InstanceTemplate getTemplate(String name) throws IOException {
+        InstanceTemplate template = templates.get(name);
+        if (template == null) {
+            throw GoogleJsonResponseExceptionFactoryTesting.newMock(
+                    GsonFactory.getDefaultInstance(), 404, "The resource '" + name + "' was not found");
+        }
+        return template;
+    }
+
+    private ImmutableList<Instance> listInstancesWithLabel(Map<String, String> labels) {
+        return instances.values().stream()
+                .filter(instance -> instance.labels.entrySet().containsAll(labels.entrySet()))
+                .map(FakeInstance::toInstance)
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    private Operation terminateInstance(String name) {
+        instances.remove(name);
+        return new Operation().setName("operation-" + operations.incrementAndGet()).setStatus("DONE");
+    }
+
+    private class FakeInstance {
+        private final Instance instance;
+        private final Map<String, String> labels;
+        private final long insertedAt;
+
+        FakeInstance(Instance instance, long insertedAt) {
+            this.instance = instance;
+            this.labels = instance.getLabels() == null ? Collections.emptyMap() : instance.getLabels();
+            this.insertedAt = insertedAt;
+        }
+
+        Instance toInstance() {
+            long age = System.currentTimeMillis() - insertedAt;
+            String status = "RUNNING";
+            if (age < operationMillis) {
+                status = "PROVISIONING";
+            } else if (age < operationMillis + bootMillis) {
+                status = "STAGING";
+            }
+            AccessConfig accessConfig =
+                    new AccessConfig().setType(NetworkInterfaceIpStackMode.NAT_TYPE).setNatIP("127.0.0.1");
+            return instance.clone()
+                    .setStatus(status)
+                    .setSelfLink("https://www.googleapis.com/compute/v1/projects/benchmark/zones/"
+                            + instance.getZone() + "/instances/" + instance.getName())
+                    .setNetworkInterfaces(ImmutableList.of(new NetworkInterface()
+                            .setNetworkIP("127.0.0.1")
+                            .setAccessConfigs(ImmutableList.of(accessConfig))));
+        }
+    }
+
+    private static class FakeOperation {
+        private final String name;
+        private final String zone;
+        private final long doneAt;
+        private final boolean stockout;
+
+        FakeOperation(String name, String zone, long doneAt, boolean stockout) {
+            this.name = name;
+            this.zone = zone;
+            this.doneAt = doneAt;
+            this.stockout = stockout;
+        }
+
+        Operation toOperation(boolean done) {
+            Operation operation =
+                    new Operation().setName(name).setZone(zone).setStatus(done ? "DONE" : "RUNNING");
+            if (done && stockout) {
+                operation.setError(new Operation.Error()
+                        .setErrors(ImmutableList.of(new Operation.Error.Errors()
+                                .setCode("ZONE_RESOURCE_POOL_EXHAUSTED")
+                                .setMessage("The zone does not have enough resources available"))));
+            }
+            return operation;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine.benchmark;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.impl.BasicSSHUserPrivateKey;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceProperties;
+import com.google.api.services.compute.model.InstanceTemplate;
+import com.google.api.services.compute.model.Metadata;
+import com.google.jenkins.plugins.computeengine.ComputeEngineCloud;
+import com.google.jenkins.plugins.computeengine.InstanceConfiguration;
+import com.google.jenkins.plugins.computeengine.InstanceConfigurationTest;
+import com.google.jenkins.plugins.computeengine.SshConfiguration;
+import com.google.jenkins.plugins.computeengine.WindowsConfiguration;
+import com.google.jenkins.plugins.computeengine.ssh.GoogleKeyPair;
+import hudson.util.Secret;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the insert request of a single agent with {@link InstanceConfiguration#instance()}:
+ * name generation, SSH key generation, metadata merging with instance templates, labels, network
+ * tags, disks, accelerators and network interfaces.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InstanceBenchmark {
+    private static final String TEMPLATE_NAME = "benchmark-template";
+    private static final String PRIVATE_KEY_ID = "benchmark-key";
+
+    @State(Scope.Benchmark)
+    public static class ConfigurationState extends JmhBenchmarkState {
+        /** How the agent's SSH key is obtained: generated per agent, from credentials, or none on Windows. */
+        @Param({"generated", "custom", "windows"})
+        public String sshKey;
+
+        /** Whether the instance is built from the configuration or merged with an instance template. */
+        @Param({"false", "true"})
+        public boolean template;
+
+        /** Number of labels of the configuration, and of metadata items and labels of the template. */
+        @Param({"10", "1000"})
+        public int items;
+
+        InstanceConfiguration configuration;
+
+        @Override
+        public void setup() throws Exception {
+            FakeComputeClient compute = FakeComputeClient.builder().build();
+            ComputeEngineCloud cloud = new ComputeEngineCloud(
+                    "benchmark", InstanceConfigurationTest.PROJECT_ID, "benchmark", "1000");
+            cloud.setClient(compute.getClient());
+
+            InstanceConfiguration.Builder builder =
+                    InstanceConfigurationTest.instanceConfigurationBuilder().cloud(cloud);
+            if (template) {
+                compute.addTemplate(TEMPLATE_NAME, template(items));
+                builder.template(TEMPLATE_NAME);
+            }
+            if ("custom".equals(sshKey)) {
+                addPrivateKeyCredentials();
+                builder.sshConfiguration(SshConfiguration.builder()
+                        .customPrivateKeyCredentialsId(PRIVATE_KEY_ID)
+                        .build());
+            } else if ("windows".equals(sshKey)) {
+                builder.windowsConfiguration(
+                        WindowsConfiguration.builder().passwordCredentialsId("").privateKeyCredentialsId("").build());
+            }
+            configuration = builder.build();
+            configuration.appendLabels(labels("config", items));
+        }
+
+        private static Map<String, String> labels(String prefix, int count) {
+            Map<String, String> labels = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                labels.put(prefix + "-" + i, "value-" + i);
+            }
+            return labels;
+        }
+
+        private static InstanceTemplate template(int count) {
+            List<Metadata.Items> items = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                items.add(new Metadata.Items().setKey("template-" + i).setValue("value-" + i));
+            }
+            items.add(new Metadata.Items().setKey("ssh-keys").setValue("template:ssh-rsa AAAA template"));
+            return new InstanceTemplate()
+                    .setProperties(new InstanceProperties()
+                            .setMetadata(new Metadata().setItems(items))
+                            .setLabels(labels("template", count)));
+        }
+
+        private static void addPrivateKeyCredentials() throws Exception {
+            String privateKey = Secret.toString(GoogleKeyPair.generate("jenkins").getPrivateKey());
+            BasicSSHUserPrivateKey credentials = new BasicSSHUserPrivateKey(
+                    CredentialsScope.SYSTEM,
+                    PRIVATE_KEY_ID,
+                    "jenkins",
+                    new BasicSSHUserPrivateKey.DirectEntryPrivateKeySource(privateKey),
+                    "",
+                    "benchmark key");
+            for (CredentialsStore store : CredentialsProvider.lookupStores(Jenkins.get())) {
+                if (store instanceof SystemCredentialsProvider.StoreImpl) {
+                    store.addCredentials(Domain.global(), credentials);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Instance instance(ConfigurationState state) throws Exception {
+        return state.configuration.instance();
+    }
+
+    /** Key generation alone, the largest share of {@link #instance} with generated keys. */
+    @Benchmark
+    public GoogleKeyPair generateKeyPair() {
+        return GoogleKeyPair.generate("jenkins");
+    }
+}
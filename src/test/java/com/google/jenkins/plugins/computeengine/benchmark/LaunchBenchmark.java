@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.computeengine.ComputeEngineCloud;
+import com.google.jenkins.plugins.computeengine.ComputeEngineComputer;
+import com.google.jenkins.plugins.computeengine.ComputeEngineComputerLauncher;
+import com.google.jenkins.plugins.computeengine.ComputeEngineInstance;
+import com.google.jenkins.plugins.computeengine.InstanceConfiguration;
+import com.google.jenkins.plugins.computeengine.InstanceConfigurationTest;
+import hudson.model.Computer;
+import hudson.model.Node;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares launching agents through a single SSH session with the separate sessions for the Java
+ * check, the agent.jar upload and the agent. The instances are running before each launch and their
+ * sshd is {@link EmbeddedSshServer}, so the numbers only cover the launchers.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+public class LaunchBenchmark {
+    private static final long ONLINE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int SSH_PORT;
+
+    static {
+        try {
+            SSH_PORT = EmbeddedSshServer.freePort();
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty(
+                "com.google.jenkins.plugins.computeengine.ComputeEngineComputerLauncher.sshPort",
+                String.valueOf(SSH_PORT));
+    }
+
+    @State(Scope.Benchmark)
+    public static class LauncherState extends JmhBenchmarkState {
+        @Param({"true", "false"})
+        public boolean singleSession;
+
+        @Param({"false", "true"})
+        public boolean compressAgentJar;
+
+        @Param({"1", "10"})
+        public int agents;
+
+        private EmbeddedSshServer ssh;
+        private FakeComputeClient compute;
+        private InstanceConfiguration config;
+        private final List<ComputeEngineInstance> nodes = new ArrayList<>();
+
+        @Override
+        public void setup() throws Exception {
+            ComputeEngineComputerLauncher.setSingleSessionLaunch(singleSession);
+            ssh = EmbeddedSshServer.start(SSH_PORT);
+            compute = FakeComputeClient.builder().build();
+
+            config = InstanceConfigurationTest.instanceConfigurationBuilder()
+                    .numExecutorsStr("1")
+                    .preemptible(false)
+                    .acceleratorConfiguration(null)
+                    .compressAgentJar(compressAgentJar)
+                    .remoteFs(Files.createTempDirectory("agents").toString())
+                    .javaExecPath(System.getProperty("java.home") + "/bin/java")
+                    .launchTimeoutSecondsStr("300")
+                    .retentionTimeMinutesStr("30")
+                    .build();
+            ComputeEngineCloud cloud = new ComputeEngineCloud(
+                    "launch", InstanceConfigurationTest.PROJECT_ID, "launch", String.valueOf(agents * 2));
+            cloud.setClient(compute.getClient());
+            cloud.setConfigurations(ImmutableList.of(config));
+            Jenkins.get().clouds.add(cloud);
+        }
+
+        @Override
+        public void tearDown() {
+            ComputeEngineComputerLauncher.setSingleSessionLaunch(true);
+            try {
+                ssh.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /** Adds agents whose instances are already running, so only their launch is measured. */
+        @Setup(Level.Invocation)
+        public void addAgents() throws Exception {
+            for (int i = 0; i < agents; i++) {
+                ComputeEngineInstance node = config.provision();
+                Jenkins.get().addNode(node);
+                nodes.add(node);
+            }
+            for (ComputeEngineInstance node : nodes) {
+                Computer computer = node.toComputer();
+                if (computer != null) {
+                    computer.waitUntilOnline();
+                    computer.disconnect(null).get();
+                }
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void removeAgents() throws Exception {
+            Jenkins jenkins = Jenkins.get();
+            for (Node node : nodes) {
+                jenkins.removeNode(node);
+            }
+            nodes.clear();
+            compute.reset();
+        }
+    }
+
+    @Benchmark
+    public void timeToLaunchAgents(LauncherState state) throws Exception {
+        List<Future<?>> launches = new ArrayList<>();
+        for (ComputeEngineInstance node : state.nodes) {
+            ComputeEngineComputer computer = (ComputeEngineComputer) node.toComputer();
+            if (computer != null) {
+                launches.add(computer.connect(true));
+            }
+        }
+        for (Future<?> launch : launches) {
+            launch.get(ONLINE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
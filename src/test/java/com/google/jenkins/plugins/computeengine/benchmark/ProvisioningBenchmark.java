@@ -0,0 +1,205 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.jenkins.plugins.computeengine.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.computeengine.ComputeEngineCloud;
+import com.google.jenkins.plugins.computeengine.ComputeEngineComputer;
+import com.google.jenkins.plugins.computeengine.ComputeEngineInstance;
+import com.google.jenkins.plugins.computeengine.InstanceConfiguration;
+import com.google.jenkins.plugins.computeengine.InstanceConfigurationTest;
+import hudson.model.Computer;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes from queueing jobs until an agent is online for each of them, and how
+ * many Compute Engine API calls that takes per agent. Instances are simulated by {@link
+ * FakeComputeClient} and agents run locally through {@link EmbeddedSshServer}, so the numbers cover
+ * {@link ComputeEngineCloud#provision} and the launchers but not Compute Engine itself.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class ProvisioningBenchmark {
+    private static final String LABEL = "benchmark";
+    private static final long ONLINE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int SSH_PORT;
+
+    static {
+        // Same provisioner pace as the integration tests.
+        System.setProperty("hudson.model.LoadStatistics.clock", "500");
+        System.setProperty("hudson.model.LoadStatistics.decay", "0.5");
+        System.setProperty("hudson.agents.NodeProvisioner.MARGIN", "100");
+        System.setProperty("hudson.agents.NodeProvisioner.MARGIN0", "1.0");
+        try {
+            SSH_PORT = EmbeddedSshServer.freePort();
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        System.setProperty(
+                "com.google.jenkins.plugins.computeengine.ComputeEngineComputerLauncher.sshPort",
+                String.valueOf(SSH_PORT));
+    }
+
+    @State(Scope.Benchmark)
+    public static class CloudState extends JmhBenchmarkState {
+        @Param({"10", "50"})
+        public int jobs;
+
+        @Param({"0", "0.1"})
+        public double stockoutRate;
+
+        @Param({"0", "20"})
+        public int rateLimitPerSecond;
+
+        FakeComputeClient compute;
+        private EmbeddedSshServer ssh;
+        private final List<FreeStyleProject> projects = new ArrayList<>();
+
+        @Override
+        public void setup() throws Exception {
+            ssh = EmbeddedSshServer.start(SSH_PORT);
+            compute = FakeComputeClient.builder()
+                    .operationMillis(2000)
+                    .bootMillis(5000)
+                    .stockoutRate(stockoutRate)
+                    .rateLimitPerSecond(rateLimitPerSecond)
+                    .build();
+
+            InstanceConfiguration config = InstanceConfigurationTest.instanceConfigurationBuilder()
+                    .labels(LABEL)
+                    .mode(Node.Mode.EXCLUSIVE)
+                    .numExecutorsStr("1")
+                    .preemptible(false)
+                    .acceleratorConfiguration(null)
+                    .remoteFs(Files.createTempDirectory("agents").toString())
+                    .javaExecPath(System.getProperty("java.home") + "/bin/java")
+                    .launchTimeoutSecondsStr("300")
+                    .retentionTimeMinutesStr("30")
+                    .build();
+            ComputeEngineCloud cloud = new ComputeEngineCloud(
+                    "benchmark", InstanceConfigurationTest.PROJECT_ID, "benchmark", String.valueOf(jobs * 2));
+            cloud.setNoDelayProvisioning(true);
+            cloud.setClient(compute.getClient());
+            cloud.setConfigurations(ImmutableList.of(config));
+            Jenkins jenkins = Jenkins.get();
+            jenkins.clouds.add(cloud);
+
+            for (int i = 0; i < jobs; i++) {
+                FreeStyleProject project = jenkins.createProject(FreeStyleProject.class, "job-" + i);
+                project.setAssignedLabel(new LabelAtom(LABEL));
+                projects.add(project);
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            try {
+                ssh.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /** Removes all agents, so that each invocation provisions from scratch. */
+        @TearDown(Level.Invocation)
+        public void removeAgents() throws Exception {
+            Jenkins jenkins = Jenkins.get();
+            jenkins.getQueue().clear();
+            for (Node node : jenkins.getNodes()) {
+                if (node instanceof ComputeEngineInstance) {
+                    jenkins.removeNode(node);
+                }
+            }
+            compute.reset();
+        }
+
+        void scheduleAll() {
+            projects.forEach(project -> project.scheduleBuild2(0));
+        }
+    }
+
+    /** API calls made while provisioning, reported per agent that came online. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ApiCalls {
+        public double apiCallsPerAgent;
+        public double insertsPerAgent;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            apiCallsPerAgent = 0;
+            insertsPerAgent = 0;
+        }
+    }
+
+    @Benchmark
+    public void timeToAllAgentsOnline(CloudState state, ApiCalls apiCalls) throws Exception {
+        state.scheduleAll();
+        long deadline = System.currentTimeMillis() + ONLINE_TIMEOUT_MILLIS;
+        int online;
+        while ((online = onlineAgents()) < state.jobs) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException(online + " of " + state.jobs + " agents online");
+            }
+            Thread.sleep(100);
+        }
+        apiCalls.apiCallsPerAgent = (double) state.compute.getTotalCalls() / online;
+        apiCalls.insertsPerAgent =
+                (double) state.compute.getCalls().getOrDefault("insertInstance", 0) / online;
+    }
+
+    private static int onlineAgents() {
+        int online = 0;
+        for (Computer computer : Jenkins.get().getComputers()) {
+            if (computer instanceof ComputeEngineComputer && computer.isOnline()) {
+                online++;
+            }
+        }
+        return online;
+    }
+}
@@ -119,7 +119,7 @@ public class ComputeEngineCloudRestartPreemptedIT {
         QueueTaskFuture<FreeStyleBuild> taskFuture = project.scheduleBuild2(0);
 
         Awaitility.await().timeout(7, TimeUnit.MINUTES).until(() -> computer.getLog()
-                .contains("listening to metadata for preemption event"));
+                .contains("setting up preemption listener"));
 
         client.simulateMaintenanceEvent(PROJECT_ID, ZONE, name);
         Awaitility.await().timeout(8, TimeUnit.MINUTES).until(computer::getPreempted);